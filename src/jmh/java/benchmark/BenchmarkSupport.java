@@ -0,0 +1,126 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/23
+ */
+package benchmark;
+
+import core.Block;
+import core.BlockChain;
+import core.BlockHead;
+import core.SHA256Hash;
+import core.StoredBlock;
+import core.Utils;
+import net.NetworkParameters;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import persistence.BlockPersistence;
+import persistence.DiskBlockPersistence;
+import persistence.LevelDBBlockPersistence;
+import utils.SpringContextUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixtures shared by the benchmarks.
+ * Code which reads "network_params" from {@link SpringContextUtil} needs a spring context,
+ * so a minimal one holding the unit test net parameters is started once per fork.
+ */
+final class BenchmarkSupport {
+    static final String DISK = "disk";
+    static final String DISK_MAPPED = "disk-mapped";
+    static final String LEVELDB = "leveldb";
+
+    private static final long BLOCK_SPACING = 10 * 60; // slower than the target, so the difficulty stays at the limit
+    private static NetworkParameters params;
+
+    private BenchmarkSupport() {
+    }
+
+    static synchronized NetworkParameters params() {
+        if (params == null) {
+            AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+            context.registerBean("network_params", NetworkParameters.class,
+                    () -> new NetworkParameters(NetworkParameters.ID_UNITTESTNET));
+            context.register(SpringContextUtil.class);
+            context.refresh();
+            params = (NetworkParameters) context.getBean("network_params");
+        }
+        return params;
+    }
+
+    /**
+     * open an empty block persistence with only the genesis block in the directory
+     * @param kind {@link #DISK}, {@link #DISK_MAPPED} or {@link #LEVELDB}
+     */
+    static BlockPersistence openPersistence(String kind, File dir) throws Exception {
+        NetworkParameters params = params(); // the disk store reads the genesis block from the spring context
+        switch (kind) {
+            case DISK:
+                return new DiskBlockPersistence(new File(dir, "blocks.dat"));
+            case DISK_MAPPED:
+                return new DiskBlockPersistence(new File(dir, "blocks.dat"), DiskBlockPersistence.Mode.MAPPED, 1);
+            case LEVELDB:
+                return new LevelDBBlockPersistence(params, new File(dir, "leveldb"));
+            default:
+                throw new IllegalArgumentException("Unknown persistence: " + kind);
+        }
+    }
+
+    /**
+     * mine a chain of blocks upon the genesis block of the unit test net
+     * @param count number of blocks
+     * @return blocks in the order of height
+     */
+    static List<Block> mineChain(int count) throws Exception {
+        File dir = createTempDir();
+        BlockPersistence persistence = openPersistence(DISK, dir);
+        try {
+            BlockChain chain = new BlockChain(persistence, params());
+            List<Block> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                StoredBlock tip = chain.getChainTip();
+                Block prev = tip.getBlock();
+                Block block = mine(prev.getHash(), prev.getnTime() + BLOCK_SPACING, chain.getNextnBits(tip));
+                chain.add(block);
+                blocks.add(block);
+            }
+            return blocks;
+        } finally {
+            persistence.close();
+            delete(dir);
+        }
+    }
+
+    private static Block mine(SHA256Hash prevHash, long nTime, long nBits) throws Exception {
+        for (long nonce = 0; ; nonce++) {
+            Block block = new Block(new BlockHead(prevHash, nTime, nBits, nonce));
+            if (block.verifyBlock(params())) {
+                return block;
+            }
+        }
+    }
+
+    /** a distinct hash for every index */
+    static SHA256Hash hashOf(int index) {
+        byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayBE(index, bytes, 0);
+        return SHA256Hash.create(bytes);
+    }
+
+    static File createTempDir() throws IOException {
+        return Files.createTempDirectory("mycoin-benchmark").toFile();
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
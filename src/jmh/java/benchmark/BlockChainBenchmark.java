@@ -0,0 +1,68 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/23
+ */
+package benchmark;
+
+import core.Block;
+import core.BlockChain;
+import exception.BlockPersistenceException;
+import exception.VerificationException;
+import org.openjdk.jmh.annotations.*;
+import persistence.BlockPersistence;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of adding a pre-mined chain into an empty {@link BlockChain} block by block,
+ * upon both kinds of block persistence.
+ * Every iteration starts from a fresh store holding only the genesis block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = BlockChainBenchmark.BLOCKS)
+@Measurement(iterations = 5, batchSize = BlockChainBenchmark.BLOCKS)
+@Fork(1)
+public class BlockChainBenchmark {
+    static final int BLOCKS = 2000;
+
+    @Param({BenchmarkSupport.DISK, BenchmarkSupport.DISK_MAPPED, BenchmarkSupport.LEVELDB})
+    public String persistence;
+
+    private List<Block> blocks;
+    private File dir;
+    private BlockPersistence store;
+    private BlockChain chain;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void mine() throws Exception {
+        blocks = BenchmarkSupport.mineChain(BLOCKS);
+    }
+
+    @Setup(Level.Iteration)
+    public void open() throws Exception {
+        dir = BenchmarkSupport.createTempDir();
+        store = BenchmarkSupport.openPersistence(persistence, dir);
+        chain = new BlockChain(store, BenchmarkSupport.params());
+        next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws BlockPersistenceException {
+        if (next != BLOCKS || chain.getChainHeight() != BLOCKS) {
+            throw new IllegalStateException("Chain height " + chain.getChainHeight() + " after adding " + next + " blocks");
+        }
+        store.close();
+        BenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public boolean add() throws VerificationException, BlockPersistenceException {
+        // a copy, so the cached hash of the mined block is not reused
+        return chain.add(new Block(blocks.get(next++)));
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/21
+ */
+package benchmark;
+
+import core.Block;
+import core.BlockHead;
+import core.SHA256Hash;
+import core.Sha256Midstate;
+import core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of hashing one nonce of a block header:
+ * the serialization stream path, the {@link Utils#doubleDigest(byte[])} path, and the midstate path,
+ * and {@link Block#getHash()} with its hash cache cleared
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderHashBenchmark {
+    private Block block;
+    private byte[] header;
+    private Sha256Midstate midstate;
+    private byte[] digest;
+    private long nonce;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkSupport.params(); // getHash() reads the header hash version from the unit test net
+        block = new Block(new BlockHead(SHA256Hash.create(new byte[]{1}), 1556696368L, 0x1e00dfffL, 0));
+        header = block.serialize();
+        midstate = new Sha256Midstate(header, header.length, BlockHead.NNONCE_OFFSET);
+        digest = new byte[SHA256Hash.SIZE];
+    }
+
+    @Benchmark
+    public byte[] serializationStream() throws IOException {
+        block.setnNonce(nonce++ & 0xFFFFFFFFL);
+        return Utils.doubleDigest(Utils.objectsToByteArray((BlockHead) block));
+    }
+
+    @Benchmark
+    public byte[] utilsDoubleDigest() {
+        Utils.uint32ToByteArrayLE(nonce++, header, BlockHead.NNONCE_OFFSET);
+        return Utils.doubleDigest(header);
+    }
+
+    @Benchmark
+    public byte[] midstateDoubleDigest() {
+        Utils.uint32ToByteArrayLE(nonce++, midstate.getBuffer(), BlockHead.NNONCE_OFFSET);
+        midstate.doubleDigest(digest, 0);
+        return digest;
+    }
+
+    @Benchmark
+    public SHA256Hash blockGetHash() {
+        block.setnNonce(nonce++ & 0xFFFFFFFFL);
+        block.setHash(null);
+        return block.getHash();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/23
+ */
+package benchmark;
+
+import core.Block;
+import core.BlockHead;
+import core.Inv;
+import core.Message;
+import core.MessageHeader;
+import core.SHA256Hash;
+import core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the payloads exchanged between peers, the same way {@link core.Peer} builds them
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    @State(Scope.Thread)
+    public static class InvState {
+        @Param({"1", "50", "500"})
+        public int invs;
+
+        List<Inv> list;
+        Message message;
+
+        @Setup
+        public void setup() throws IOException {
+            list = new ArrayList<>(invs);
+            for (int i = 0; i < invs; i++) {
+                list.add(new Inv(Inv.InvType.MSG_BLOCK, BenchmarkSupport.hashOf(i)));
+            }
+            message = encode(list);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class BlockState {
+        Block block;
+        Message message;
+
+        @Setup
+        public void setup() throws IOException {
+            block = new Block(new BlockHead(SHA256Hash.create(new byte[]{1}), 1556696368L, 0x1e00dfffL, 43983854L));
+            message = new Message(MessageHeader.BLOCK, 0, Utils.objectsToByteArray(block));
+        }
+    }
+
+    private static Message encode(List<Inv> invs) throws IOException {
+        Message msg = new Message(MessageHeader.INV, 0, null);
+        msg.setInvsIntoPayload(invs);
+        msg.setMessageSize(MessageHeader.SIZE + msg.getPayload().length);
+        return msg;
+    }
+
+    @Benchmark
+    public Message encodeInvs(InvState state) throws IOException {
+        return encode(state.list);
+    }
+
+    @Benchmark
+    public List<Inv> decodeInvs(InvState state) throws IOException, ClassNotFoundException {
+        return state.message.getPayloadAsInvs();
+    }
+
+    @Benchmark
+    public Message encodeBlock(BlockState state) throws IOException {
+        return new Message(MessageHeader.BLOCK, 0, Utils.objectsToByteArray(state.block));
+    }
+
+    @Benchmark
+    public Block decodeBlock(BlockState state) throws IOException, ClassNotFoundException {
+        return state.message.getPayloadAsBlock();
+    }
+}
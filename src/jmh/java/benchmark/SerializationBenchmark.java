@@ -0,0 +1,73 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/23
+ */
+package benchmark;
+
+import core.Block;
+import core.BlockHead;
+import core.SHA256Hash;
+import core.StoredBlock;
+import exception.BlockPersistenceException;
+import org.openjdk.jmh.annotations.*;
+import persistence.StoredBlockCodec;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a {@link StoredBlock}, the record format of the block persistence
+ * serialize/deserialize are of the legacy format, encode/decode of {@link StoredBlockCodec}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    private StoredBlock storedBlock;
+    private ByteBuffer buf;
+    private byte[] encoded;
+    private ByteBuffer record;
+    private byte[] encodedRecord;
+
+    @Setup
+    public void setup() throws IOException {
+        Block block = new Block(new BlockHead(SHA256Hash.create(new byte[]{1}), 1556696368L, 0x1e00dfffL, 43983854L));
+        storedBlock = new StoredBlock(block, new BigInteger("123456789abcdef0123456789", 16), 100000, SHA256Hash.create(new byte[]{2}));
+        buf = ByteBuffer.allocate(StoredBlock.SIZE);
+        storedBlock.serialize(buf);
+        encoded = buf.array().clone();
+        block.setHash(SHA256Hash.create(new byte[]{3})); // the codec keeps the hash, don't pay for hashing here
+        record = ByteBuffer.allocate(StoredBlockCodec.SIZE);
+        StoredBlockCodec.encode(storedBlock, record);
+        encodedRecord = record.array().clone();
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() throws IOException {
+        buf.clear();
+        storedBlock.serialize(buf);
+        return buf;
+    }
+
+    @Benchmark
+    public StoredBlock deserialize() {
+        return StoredBlock.deserialize(ByteBuffer.wrap(encoded));
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        record.clear();
+        StoredBlockCodec.encode(storedBlock, record);
+        return record;
+    }
+
+    @Benchmark
+    public StoredBlock decode() throws BlockPersistenceException {
+        return StoredBlockCodec.decode(ByteBuffer.wrap(encodedRecord));
+    }
+}
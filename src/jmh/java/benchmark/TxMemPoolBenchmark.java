@@ -0,0 +1,63 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/23
+ */
+package benchmark;
+
+import core.SHA256Hash;
+import core.Transaction;
+import core.TransactionInput;
+import core.TransactionOutpoint;
+import core.TransactionOutput;
+import core.TxMemPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per transaction of filling the {@link TxMemPool} and draining it again
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TxMemPoolBenchmark {
+    private static final int TRANSACTIONS = 1000;
+
+    private TxMemPool mempool;
+    private Transaction[] transactions;
+
+    @Setup
+    public void setup() {
+        mempool = new TxMemPool();
+        mempool.clear();
+        transactions = new Transaction[TRANSACTIONS];
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction tx = new Transaction();
+            SHA256Hash prev = BenchmarkSupport.hashOf(i);
+            tx.addInput(new TransactionInput(new TransactionOutpoint(prev, 0), SHA256Hash.ZERO_HASH));
+            tx.addInput(new TransactionInput(new TransactionOutpoint(prev, 1), SHA256Hash.ZERO_HASH));
+            tx.addOutput(new TransactionOutput(1.0, prev));
+            tx.getHash(); // computed once, only the pool is measured
+            transactions[i] = tx;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mempool.clear();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * TRANSACTIONS)
+    public void addRemove() {
+        for (Transaction tx : transactions) {
+            mempool.add(tx.getHash(), tx);
+        }
+        for (Transaction tx : transactions) {
+            mempool.remove(tx);
+        }
+    }
+}
@@ -28,6 +28,8 @@ public class Block extends BlockHead {
 //    public static final int MAX_BLOCK_SIZE = 1000000;
 
     private transient SHA256Hash hash; // hash of the block, memory only
+    private transient PowTarget target; // target decoded from targetBits, memory only
+    private transient long targetBits;
     //private transient List<SHA256Hash> merkleTree = new ArrayList<>(); // merkle tree of transactions
 
     //private List<Transaction> transactions = new ArrayList<>(); // transactions packaged into this block
@@ -96,10 +98,31 @@ public class Block extends BlockHead {
         return target;
     }
 
+    /**
+     * get the target decoded from nBits, it is decoded once until nBits changes
+     */
+    public PowTarget getTarget() throws VerificationException {
+        if (target == null || targetBits != nBits) {
+            target = PowTarget.decodeCompact(nBits);
+            targetBits = nBits;
+        }
+        return target;
+    }
+
+    /**
+     * verify the proof of work with the network parameters of the spring context
+     * @throws IllegalStateException if there is no spring context
+     */
     public boolean verifyBlock() throws VerificationException {
-        BigInteger target = getnBitsAsInteger();
-        BigInteger current = getHash().toBigInteger();
-        if (current.compareTo(target) > 0 || target.compareTo(((NetworkParameters)(SpringContextUtil.getBean("network_params"))).proofOfWorkLimit) > 0) {
+        return verifyBlock(contextParams());
+    }
+
+    /**
+     * verify the proof of work, the hash is of the header hash version of the network
+     */
+    public boolean verifyBlock(NetworkParameters params) throws VerificationException {
+        PowTarget target = getTarget();
+        if (!target.isMetByHash(getHash(params)) || target.compareTo(params.proofOfWorkTarget) > 0) {
             return false;
         }
         return true;
@@ -107,8 +130,10 @@ public class Block extends BlockHead {
 
     @Override
     public String toString() {
+        // the hash is unknown without network parameters, printing never throws
+        SHA256Hash h = hash != null || SpringContextUtil.getBean("network_params") == null ? hash : getHash();
         StringBuffer s = new StringBuffer(" block: \n"
-                + "   hash: " + getHash().toString() + "\n"
+                + "   hash: " + (h == null ? "unknown" : h.toString()) + "\n"
                 + "   previous block: " + hashPrevBlock.toString() + "\n"
                 + "   time: [" + nTime + "] " + new Date(nTime * 1000).toString() + "\n"
                 + "   difficulty target (nBits): 0x" + Long.toHexString(nBits) + "\n" + "   nonce: " + nNonce + "\n");
@@ -116,10 +141,26 @@ public class Block extends BlockHead {
         return s.toString();
     }
 
+    /**
+     * the hash set or computed before, otherwise it is computed with the network parameters of the spring context
+     * @throws IllegalStateException if it is not known yet and there is no spring context
+     */
     public SHA256Hash getHash() {
+        SHA256Hash h = hash;
+        return h != null ? h : getHash(contextParams());
+    }
+
+    /**
+     * the hash set or computed before, otherwise it is computed with the header hash version of the network
+     */
+    public SHA256Hash getHash(NetworkParameters params) {
         if (hash == null) {
             try {
-                hash = new SHA256Hash(Utils.reverseBytes(doubleDigest(Utils.objectsToByteArray((BlockHead)this))));
+                if (getHeaderHashVersion(params) == NetworkParameters.HEADER_HASH_V2) {
+                    hash = new SHA256Hash(Utils.reverseBytes(doubleDigest(serialize())));
+                } else {
+                    hash = new SHA256Hash(Utils.reverseBytes(doubleDigest(Utils.objectsToByteArray((BlockHead)this))));
+                }
             } catch (IOException e) {
                 throw new RuntimeException(e); // impossible
             }
@@ -127,6 +168,25 @@ public class Block extends BlockHead {
         return hash;
     }
 
+    /**
+     * get the version of header hash according to the nTime of this block
+     */
+    public int getHeaderHashVersion(NetworkParameters params) {
+        return params.getHeaderHashVersion(nTime);
+    }
+
+    /**
+     * the network parameters of the spring context, the header hash is consensus critical so it is never guessed
+     * @throws IllegalStateException if there is no spring context
+     */
+    private static NetworkParameters contextParams() {
+        NetworkParameters params = (NetworkParameters) SpringContextUtil.getBean("network_params");
+        if (params == null) {
+            throw new IllegalStateException("No network parameters to hash the block, pass them explicitly.");
+        }
+        return params;
+    }
+
     public void setHash(SHA256Hash hash) {
         this.hash = hash;
     }
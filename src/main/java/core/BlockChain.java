@@ -12,16 +12,26 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import persistence.BlockPersistence;
+import persistence.MainChainIterator;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A BlockChain holds a series of {@link Block} objects, links them together, and knows how to verify that the
  * chain follows the rules of the {@link net.NetworkParameters} for this chain.<p>
+ *
+ * There is a single writer: blocks are added under the BlockChain lock, and in the node all of them,
+ * received or mined, are applied by the connector thread of the {@link BlockPipeline}.
+ * Readers never take the lock, they read the {@link ChainState} published after each committed change.
+ *
+ * The coins follow the main chain: blocks joining or leaving it are connected or disconnected in a {@link CoinsViewCache}
+ * upon the chain coins, merged only once the batch of the blocks is committed and then flushed to the coins database,
+ * so the coins never see half of a re-organize. The coins database is written after the blocks, a node stopped
+ * in between does not start upon coins of another block.
  */
 @Component("BlockChain")
 public class BlockChain {
@@ -32,29 +42,62 @@ public class BlockChain {
 
     private NetworkParameters params;
 
-    /** The tip block of the chain */
-    protected StoredBlock chainTip;
+    /** the main chain published to the readers, replaced as a whole once a change is committed */
+    private volatile ChainState state;
 
     /**
-     * cahce for main chain block
+     * headers of the main chain and the side chain blocks met so far, chain decisions are made on it
+     * the persistence is only read for side chain blocks not indexed yet and written for durability
      */
-//    private Set<SHA256Hash> mainChainBlocks;
+    protected final HeaderIndex headerIndex = new HeaderIndex();
 
     /**
-     * chainHead is accessed under this lock rather than the BlockChain lock. This is to try and keep accessors
-     * responsive whilst the chain is downloading
+     * cahce for main chain block
      */
-    protected final Object chainTipLock = new Object();
+//    private Set<SHA256Hash> mainChainBlocks;
+
+    /** whether the blocks are added by addAll(), the chain tip connected by it is published once it is committed */
+    private boolean inRun;
+    private StoredBlock runTip;
+    private int runTipSlot;
+    private CoinsViewCache runCoins;
+
+    /** called back when a new chain state is published */
+    private final List<ChainTipListener> tipListeners = new CopyOnWriteArrayList<>();
 
     /** cache the unconnected blocks until they can be insert into chain */
-    private final List<Block> unconnectedBlocks = new ArrayList<>();
+    private final OrphanBlockPool orphanBlocks;
+
+    /** the difficulty adaption, shared with the miner */
+    private final DifficultyEngine difficulty;
+
+    /** the unspent outputs of the main chain, shared with the mempool */
+    private final CoinsViewCache coins;
+
+    /** initialize with a block persistence database, an orphan pool of the default limits and coins in memory */
+    public BlockChain(BlockPersistence blockPersistence, NetworkParameters params) throws BlockPersistenceException {
+        this(blockPersistence, params, new OrphanBlockPool(), new DifficultyEngine(params), new CoinsViewCache(new MemoryCoinsView()));
+    }
 
     /** initialize with a block persistence database */
     @Autowired
-    public BlockChain(BlockPersistence blockPersistence, NetworkParameters params) throws BlockPersistenceException {
+    public BlockChain(BlockPersistence blockPersistence, NetworkParameters params, OrphanBlockPool orphanBlocks,
+                      DifficultyEngine difficulty, CoinsViewCache coins) throws BlockPersistenceException {
         this.blockPersistence = blockPersistence;
+        this.orphanBlocks = orphanBlocks;
+        this.difficulty = difficulty;
+        this.coins = coins;
         this.params = params;
-        this.chainTip = blockPersistence.getChainTip();
+        StoredBlock chainTip = blockPersistence.getChainTip();
+
+        logger.info("Loading headers of main chain...");
+        MainChainIterator it = blockPersistence.getMainChain(0, chainTip.getHeight());
+        for (StoredBlock block = it.next(); block != null; block = it.next()) {
+            headerIndex.add(block);
+        }
+        reloadState();
+        logger.info("Loaded {} headers in {} bytes of direct memory.", headerIndex.size(), headerIndex.getMemoryBytes());
+        loadCoins();
 
 //        this.mainChainBlocks = new HashSet<>();
 //        // initialize cache, it may need a little time
@@ -67,26 +110,159 @@ public class BlockChain {
         logger.info("chain tip is at height {}:\n{}", chainTip.getHeight(), chainTip.getBlock());
     }
 
+    public NetworkParameters getParams() {
+        return params;
+    }
+
     public BlockPersistence getBlockPersistence() {
         return blockPersistence;
     }
 
+    public HeaderIndex getHeaderIndex() {
+        return headerIndex;
+    }
+
+    public OrphanBlockPool getOrphanBlocks() {
+        return orphanBlocks;
+    }
+
+    public CoinsViewCache getCoins() {
+        return coins;
+    }
+
+    /**
+     * the nBits of the block following a block of the chain, e.g. to build a block template upon the tip
+     * @throws VerificationException if the block is not in the chain
+     */
+    public long getNextnBits(StoredBlock prevBlock) throws VerificationException {
+        int slot = headerIndex.slotOf(prevBlock.getBlock().getHash());
+        if (slot == HeaderIndex.NONE) {
+            throw new VerificationException("Block " + prevBlock.getBlock().getHash() + " is not in the chain.");
+        }
+        return difficulty.getNextnBits(headerIndex, slot);
+    }
+
     // for logger info
     private long lastAddTime = System.currentTimeMillis();
     private long blocksAdded;
 
 
-    public synchronized boolean add(Block block) throws VerificationException, BlockPersistenceException {
+    public boolean add(Block block) throws VerificationException, BlockPersistenceException {
         return add(block, true);
     }
 
+    /**
+     * add block received from a peer to the chain, orphans are accounted to the peer
+     * @param source the peer, see {@link OrphanBlockPool#add(Block, String)}
+     */
+    public boolean add(Block block, String source) throws VerificationException, BlockPersistenceException {
+        verify(block);
+        return addVerified(block, source);
+    }
+
     /**
      * add block to the chain
      * @param block target block
      * @param connect if true, try to connect unconnected block to the tip
      * @return true if add successfully, otherwise false
      */
-    public synchronized boolean add(Block block, boolean connect) throws BlockPersistenceException, VerificationException {
+    public boolean add(Block block, boolean connect) throws BlockPersistenceException, VerificationException {
+        verify(block);
+        synchronized (this) {
+            return add(block, null, connect);
+        }
+    }
+
+    /**
+     * add a run of blocks, e.g. contiguous blocks being downloaded, within one batch
+     * thus the blocks, the next fields and the final tip are written at once rather than block by block
+     * it stops at the first block not connected, i.e. an orphan or one failing the checks, and commits the blocks before it
+     * an orphan is pooled, a failing block is left to the caller, e.g. to add it alone for the reason
+     * listeners are called back by the caller for each block added
+     * @param source the peer, see {@link OrphanBlockPool#add(Block, String)}
+     * @return number of blocks added from the head of the run
+     */
+    public int addAll(List<Block> blocks, String source) throws BlockPersistenceException {
+        int verified = 0;
+        try {
+            for (Block block : blocks) {
+                verify(block);
+                verified++;
+            }
+        } catch (VerificationException e) {
+            logger.debug("Run of blocks stops at {}: {}", blocks.get(verified).getHash(), e.getMessage());
+        }
+        return addAllVerified(blocks.subList(0, verified), source);
+    }
+
+    /**
+     * add a run of blocks which passed {@link #verify(Block)}, see {@link #addAll(List, String)}
+     */
+    public synchronized int addAllVerified(List<Block> blocks, String source) throws BlockPersistenceException {
+        int indexed = headerIndex.size();
+        int added = 0;
+        blockPersistence.beginBatch();
+        inRun = true;
+        CoinsViewCache view = new CoinsViewCache(coins);
+        runCoins = view;
+        try {
+            for (; added < blocks.size(); added++) {
+                try {
+                    if (!add(blocks.get(added), source, false)) {
+                        break;
+                    }
+                } catch (VerificationException e) {
+                    logger.debug("Run of blocks stops at {}: {}", blocks.get(added).getHash(), e.getMessage());
+                    break;
+                }
+            }
+            blockPersistence.commitBatch();
+        } catch (BlockPersistenceException | RuntimeException e) {
+            blockPersistence.abortBatch();
+            headerIndex.truncate(indexed);
+            reloadState();
+            runTip = null;
+            throw e;
+        } finally {
+            inRun = false;
+            runCoins = null;
+        }
+        if (runTip != null) {
+            view.flush();
+            publish(runTip, runTipSlot);
+            runTip = null;
+            coins.flush();
+        }
+        for (int i = 0; i < added; i++) {
+            connectOrphans(blocks.get(i).getHash());
+        }
+        return added;
+    }
+
+    /**
+     * the context-free checks of a block, i.e. hashing and proof of work
+     * they need no chain state, thus run without the chain lock, see {@link BlockPipeline}
+     * a block connected already is not checked again
+     */
+    public void verify(Block block) throws VerificationException {
+        if (headerIndex.slotOf(block.getHash(params)) != HeaderIndex.NONE) {
+            return;
+        }
+        if(!block.verifyBlock(params)) {
+            logger.error("Fail to verify block: {}", block.getHash().toString());
+            throw new VerificationException("Fail to verify block.");
+        }
+    }
+
+    /**
+     * add a block which passed {@link #verify(Block)} to the chain, only the checks depending on the chain are done
+     * @param source the peer, see {@link OrphanBlockPool#add(Block, String)}
+     */
+    public synchronized boolean addVerified(Block block, String source) throws VerificationException, BlockPersistenceException {
+        return add(block, source, true);
+    }
+
+    private boolean add(Block block, String source, boolean connect) throws BlockPersistenceException, VerificationException {
         if (System.currentTimeMillis() - lastAddTime > 1000) {
             if (blocksAdded > 1) {
                 logger.debug("{} blocks per second.", blocksAdded);
@@ -95,35 +271,66 @@ public class BlockChain {
             blocksAdded = 0;
         }
 
-        /** check the chain tip */
-        if (block.equals(chainTip.getBlock())) {
+        /** check the chain tip and the blocks already indexed */
+        if (block.equals(state.getTip().getBlock())) {
             logger.debug("Chain tip {} has already been added!", block.getHash());
             return true;
         }
-
-        if(!block.verifyBlock()) {
-            logger.error("Fail to verify block: ", block.getHash().toString());
-            throw new VerificationException("Fail to verify block.");
+        int slot = headerIndex.slotOf(block.getHash(params)); // the hash is cached for the calls below
+        if (slot != HeaderIndex.NONE) {
+            logger.debug("Duplicated block received at height {}.", headerIndex.getHeight(slot));
+            return true;
+        }
+        if (orphanBlocks.contains(block.getHash())) {
+            logger.debug("Block {} is an orphan already.", block.getHash());
+            return false;
         }
 
-        StoredBlock prevBlock = blockPersistence.get(block.getHashPrevBlock());
+        int prevSlot = slotOf(block.getHashPrevBlock());
 
-        if (prevBlock == null) {
-            /** can't find previous block in database, thus put it in unconnected blocks list */
+        if (prevSlot == HeaderIndex.NONE) {
+            /** can't find previous block in database, thus put it in the orphan pool */
             logger.info("Block {} can't be connected.", block.getHash());
-            unconnectedBlocks.add(block);
+            orphanBlocks.add(block, source);
             return false;
         } else {
-            /** connect to the chain */
-            StoredBlock newBlock = prevBlock.build(block);
-            checkDifficultAdaption(prevBlock, newBlock); // check whether difficulty is correct
-            blockPersistence.put(newBlock);
-            connectBlock(newBlock, prevBlock);
+            /** connect to the chain, the block, the next fields and the chain tip are written in one batch */
+            StoredBlock newBlock = headerIndex.get(prevSlot).build(block);
+            difficulty.checkNextnBits(headerIndex, prevSlot, block.getnBits()); // check whether difficulty is correct
+            int indexed = headerIndex.size();
+            int newSlot = headerIndex.add(newBlock);
+            StoredBlock newTip = null;
+            // a run applies its blocks to the coins of the run, committed with it
+            CoinsViewCache view = inRun ? runCoins : new CoinsViewCache(coins);
+            blockPersistence.beginBatch();
+            try {
+                blockPersistence.put(newBlock);
+                newTip = connectBlock(newBlock, newSlot, prevSlot, view);
+                blockPersistence.commitBatch();
+            } catch (BlockPersistenceException | RuntimeException e) {
+                blockPersistence.abortBatch();
+                headerIndex.truncate(indexed);
+                reloadState();
+                throw e;
+            }
+            if (newTip != null) {
+                headerIndex.setTip(newSlot);
+                if (inRun) {
+                    // published when the run is committed
+                    runTip = newTip;
+                    runTipSlot = newSlot;
+                } else {
+                    view.flush();
+                    publish(newTip, newSlot);
+                    coins.flush();
+                }
+                logger.debug("Chain height is now {}.", newTip.getHeight());
+            }
         }
 
-        /** after add a new block, try to connect unconnected blocks */
+        /** after add a new block, try to connect its orphan descendants */
         if (connect) {
-            tryConnectUnconnectedBlocks();
+            connectOrphans(block.getHash());
         }
 
         blocksAdded++;
@@ -131,225 +338,239 @@ public class BlockChain {
     }
 
     /**
-     * check the if difficulty adaption is correct
-     * every Networkparameters.interval change once
-     * @param prevBlock
+     * connect the new block into the block chain, set the tip of chain in the block persistence
+     * it runs inside a batch, the caller publishes the new tip once the batch is committed
      * @param newBlock
-     * @throws VerificationException
-     * @throws BlockPersistenceException
+     * @param newSlot slot of the new block in the header index
+     * @param prevSlot slot of the previous block in the header index
+     * @param view coins of the batch, the main chain blocks are connected to it
+     * @return the new chain tip, or null if the tip is unchanged
      */
-    private void checkDifficultAdaption(StoredBlock prevBlock, StoredBlock newBlock) throws VerificationException, BlockPersistenceException {
-        Block prev = prevBlock.getBlock();
-        Block current = newBlock.getBlock();
-        int blocksInterval = params.interval;
-        // check interval
-        if ((prevBlock.getHeight() + 1) % blocksInterval != 0) {
-            // don't change difficulty, check consistency
-            if (current.getnBits() != prev.getnBits()) {
-                throw new VerificationException("Unexpected change in difficulty at height " + prevBlock.getHeight() +
-                        ": " + Long.toHexString(current.getnBits()) + " vs " +
-                        Long.toHexString(prev.getnBits()));
-            }
-            return;
-        }
-
-        StoredBlock cursor = blockPersistence.get(prev.getHash());
-        for (int i = 0; i < blocksInterval - 1; i++) {
-            if (cursor == null) {
-                throw new VerificationException("Difficulty transition point but we dit not find a way back to genesis.");
-            }
-            cursor = blockPersistence.get(cursor.getBlock().getHashPrevBlock());
-        }
-
-        Block intervalStart = cursor.getBlock();
-        int timespan = (int)(prev.getnTime() - intervalStart.getnTime());
-        int targetTimespan = params.targetTimespan;
-        // Limit the adjustment step.
-        if (timespan < targetTimespan / 4)
-            timespan = targetTimespan / 4;
-        if (timespan > targetTimespan * 4)
-            timespan = targetTimespan * 4;
-
-        BigInteger newnBits = Utils.decodeCompactBits(intervalStart.getnBits());
-        newnBits = newnBits.multiply(BigInteger.valueOf(timespan));
-        newnBits = newnBits.divide(BigInteger.valueOf(targetTimespan));
-
-        if (newnBits.compareTo(params.proofOfWorkLimit) > 0) {
-            logger.debug("Difficulty hit proof of work limit: {}", newnBits.toString(16));
-            newnBits = params.proofOfWorkLimit;
-        }
-
-        int accuracyBytes = (int)(current.getnBits() >>> 24) - 3;
-        BigInteger receivednBits = current.getnBitsAsInteger();
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
-        newnBits = newnBits.and(mask);
-        if(newnBits.compareTo(receivednBits) != 0) {
-            throw new VerificationException("Network provided difficulty bits do not match what was calculated: " +
-                    receivednBits.toString(16) + " vs " + newnBits.toString(16));
-        }
-    }
-
-    /**
-     * connect the new block into the block chain, set the tip of chain
-     * @param newBlock
-     * @param prevBlock
-     */
-    private void connectBlock(StoredBlock newBlock, StoredBlock prevBlock) throws BlockPersistenceException {
-        if (prevBlock.equals(chainTip)) {
+    private StoredBlock connectBlock(StoredBlock newBlock, int newSlot, int prevSlot, CoinsViewCache view) throws BlockPersistenceException {
+        int tipSlot = headerIndex.getMainSlot(headerIndex.getTipHeight());
+        if (prevSlot == tipSlot) {
             // a new block, first set the prevblock's next field
-            chainTip.setNext(newBlock.getBlock().getHash());
-            blockPersistence.put(chainTip);
+            StoredBlock prevBlock = headerIndex.get(prevSlot);
+            prevBlock.setNext(newBlock.getBlock().getHash());
+            blockPersistence.put(prevBlock);
+            connectCoins(view, newSlot);
             // set new chain tip
-            setChainTip(newBlock);
-//            mainChainBlocks.add(newBlock.getBlock().getHash());
-            logger.debug("Chain height is now {}.", chainTip.getHeight());
+            blockPersistence.setChainTip(newBlock);
+            return newBlock;
         } else {
             // not a tip
             // test the work, if re-organize is necessary
-            boolean reorg = newBlock.moreWorkThan(chainTip);
+            boolean reorg = headerIndex.moreWorkThan(newSlot, tipSlot);
             if (reorg) {
                 logger.info("Block is causing re-organize.");
-                handleReOrganize(newBlock);
+                handleReOrganize(newBlock, newSlot, tipSlot, view);
+                return newBlock;
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, chainTip);
-                if (splitPoint.equals(newBlock)) {
-                    // the block is duplicated
-                    logger.debug("Duplicated block received at height {}.", newBlock.getHeight());
-                } else {
-                    int splitPointHeight = splitPoint != null ? splitPoint.getHeight() : -1;
-                    String splitPointHash = splitPoint != null ? splitPoint.getBlock().getHash().toString() : "?";
-                    logger.info("Block forks the chain at height {}/block {}, but it did not cause a reorganize:\n{}", splitPointHeight, splitPointHash, newBlock);
-                }
+                int splitPoint = headerIndex.findSplit(newSlot, tipSlot);
+                int splitPointHeight = splitPoint != HeaderIndex.NONE ? headerIndex.getHeight(splitPoint) : -1;
+                String splitPointHash = splitPoint != HeaderIndex.NONE ? headerIndex.getHash(splitPoint).toString() : "?";
+                logger.info("Block forks the chain at height {}/block {}, but it did not cause a reorganize:\n{}", splitPointHeight, splitPointHash, newBlock);
+                return null;
             }
         }
     }
 
     /**
-     * find the split point of two block
-     * e.g.   A <- B <- C <- D
-     *               <- E <- F
-     * the split point of D and F is B
-     * @param newBlock
-     * @param chainTip
-     * @return the split point block
-     * @throws BlockPersistenceException
+     * slot of the block in the header index
+     * a side chain block is indexed from the persistence on first use, together with its ancestors not indexed yet
+     * @return the slot, or NONE if the block is not stored
      */
-    private StoredBlock findSplit(StoredBlock newBlock, StoredBlock chainTip) throws BlockPersistenceException {
-        StoredBlock currentTip = chainTip;
-        StoredBlock newTip = newBlock;
-        // trace back until we find the common block
-        while (!currentTip.equals(newTip)) {
-            if (currentTip.getHeight() > newTip.getHeight()) {
-                currentTip = currentTip.getPreviousBlock(blockPersistence);
-            } else {
-                newTip = newTip.getPreviousBlock(blockPersistence);
+    private int slotOf(SHA256Hash hash) throws BlockPersistenceException {
+        int slot = headerIndex.slotOf(hash);
+        if (slot != HeaderIndex.NONE) {
+            return slot;
+        }
+        LinkedList<StoredBlock> missing = new LinkedList<>();
+        for (StoredBlock cursor = blockPersistence.get(hash); cursor != null; cursor = blockPersistence.get(cursor.getBlock().getHashPrevBlock())) {
+            missing.addFirst(cursor);
+            if (headerIndex.slotOf(cursor.getBlock().getHashPrevBlock()) != HeaderIndex.NONE) {
+                for (StoredBlock block : missing) {
+                    slot = headerIndex.add(block);
+                }
+                return slot;
             }
         }
-        return currentTip;
+        return HeaderIndex.NONE;
     }
 
-
     /**
-     * try to connect cached unconnected blocks
+     * connect the orphans descending from the block, each connected block pulls exactly its own children
+     * orphans are verified before they are pooled, one failing the checks depending on the chain is dropped
+     * it does not fail the block which connects it
      */
-    private void tryConnectUnconnectedBlocks() throws BlockPersistenceException, VerificationException {
+    private void connectOrphans(SHA256Hash parent) throws BlockPersistenceException {
+        Deque<SHA256Hash> parents = new ArrayDeque<>();
+        parents.add(parent);
         int blockConnected = 0;
-        do {
-            blockConnected = 0;
-            Iterator<Block> it = unconnectedBlocks.iterator();
-            while (it.hasNext()) {
-                Block block = it.next();
+        while (!parents.isEmpty()) {
+            for (Block block : orphanBlocks.takeChildren(parents.poll())) {
                 logger.debug("Try to connect {}", block.getHash());
-                StoredBlock prev = blockPersistence.get(block.getHashPrevBlock());
-                if (prev == null) {
-                    logger.debug("  Can't be connected.");
-                    continue;
+                try {
+                    if (add(block, null, false)) { // set false to avoid recurse
+                        parents.add(block.getHash());
+                        blockConnected++;
+                    }
+                } catch (VerificationException e) {
+                    logger.warn("Orphan block {} fails to verify: {}", block.getHash(), e.getMessage());
                 }
-                add(block, false); // set false to avoid recurse infinitely
-                it.remove();
-                blockConnected++;
             }
-            if (blockConnected > 0) {
-                logger.debug("Connected {} unconnected blocks.", blockConnected);
-            }
-        } while (blockConnected > 0);
+        }
+        if (blockConnected > 0) {
+            logger.debug("Connected {} orphan blocks, {}", blockConnected, orphanBlocks);
+        }
     }
 
     /**
      * re-organize the block, set and unset the next field
+     * it runs inside the batch of connectBlock(), thus all the rewritten blocks and the new tip are written at once
+     * the blocks are built from the header index, the persistence is only written
+     * the old chain is disconnected from the coins of the batch from its tip down, then the new chain is connected upwards
      */
-    private void handleReOrganize(StoredBlock newBlock) throws BlockPersistenceException {
-        StoredBlock splitPoint = findSplit(newBlock, chainTip);
-
-        List<StoredBlock> oldBlocks = getPartialChain(chainTip, splitPoint);
-        List<StoredBlock> newBlocks = getPartialChain(newBlock, splitPoint);
-        for (StoredBlock block : oldBlocks) {
+    private void handleReOrganize(StoredBlock newBlock, int newSlot, int tipSlot, CoinsViewCache view) throws BlockPersistenceException {
+        int splitPoint = headerIndex.findSplit(newSlot, tipSlot);
+
+        // the old chain below its tip down to the split point leaves the main chain
+        for (int cursor = tipSlot; cursor != splitPoint; cursor = headerIndex.getParent(cursor)) {
+            disconnectCoins(view, cursor);
+            if (cursor == tipSlot) {
+                continue; // next of the tip is zero already
+            }
+            StoredBlock block = headerIndex.get(cursor);
             block.setNext(SHA256Hash.ZERO_HASH);
             blockPersistence.put(block);
         }
-        for (int i = 1; i < newBlocks.size(); i++) {
-            StoredBlock block = newBlocks.get(i);
-            block.setNext(newBlocks.get(i-1).getBlock().getHash());
+        // the new chain from the split point up to the parent of new block joins it
+        Deque<Integer> joining = new ArrayDeque<>();
+        for (int child = newSlot, cursor = headerIndex.getParent(newSlot); ; child = cursor, cursor = headerIndex.getParent(cursor)) {
+            joining.push(child);
+            StoredBlock block = headerIndex.get(cursor);
+            block.setNext(headerIndex.getHash(child));
             blockPersistence.put(block);
+            if (cursor == splitPoint) {
+                break;
+            }
+        }
+        for (int slot : joining) {
+            connectCoins(view, slot);
         }
-        logger.info("Re-organize after split at height {}", splitPoint.getHeight());
-        logger.info("Old chain head: {}", chainTip.getBlock().getHash().toString());
+        logger.info("Re-organize after split at height {}", headerIndex.getHeight(splitPoint));
+        logger.info("Old chain head: {}", headerIndex.getHash(tipSlot).toString());
         logger.info("New chain head: {}", newBlock.getBlock().getHash().toString());
-        logger.info("Split at block: {}", splitPoint.getBlock().getHash().toString());
-        setChainTip(newBlock);
+        logger.info("Split at block: {}", headerIndex.getHash(splitPoint).toString());
+        blockPersistence.setChainTip(newBlock);
     }
 
     /**
-     * Returns the set of contiguous blocks between 'higher' and 'lower'. lower is included, higher is not.
+     * connect the transactions of a block joining the main chain to the coins
+     * blocks carry no transactions yet, so only the best block of the coins moves
      */
-    private List<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower) throws BlockPersistenceException {
-        assert higher.getHeight() > lower.getHeight();
-        LinkedList<StoredBlock> results = new LinkedList<>();
-        StoredBlock cursor = higher.getPreviousBlock(blockPersistence);
-        while (true) {
-            results.add(cursor);
-            assert cursor != null : "Ran off the end of the chain";
-            if (cursor.equals(lower)) {
-                break;
+    private void connectCoins(CoinsViewCache view, int slot) {
+        view.setBestBlock(headerIndex.getHash(slot));
+    }
+
+    /**
+     * disconnect the transactions of a block leaving the main chain from the coins, the reverse of connectCoins()
+     */
+    private void disconnectCoins(CoinsViewCache view, int slot) {
+        view.setBestBlock(headerIndex.getHash(headerIndex.getParent(slot)));
+    }
+
+    /**
+     * check the coins are of the chain tip, empty coins are started at the tip
+     * the coins are behind the tip if the node stopped between a commit and the flush, they are never moved silently
+     * @throws BlockPersistenceException if the coins are of another block, the coins database has to be rebuilt
+     */
+    private void loadCoins() throws BlockPersistenceException {
+        SHA256Hash tip = state.getTip().getBlock().getHash();
+        SHA256Hash best = coins.getBestBlock();
+        if (best == null) {
+            coins.setBestBlock(tip);
+            coins.flush();
+        } else if (!tip.equals(best)) {
+            throw new BlockPersistenceException("Coins are of block " + best + " but the chain tip is " + tip + ", rebuild the coins database.");
+        }
+        logger.info("Coins: {}", coins);
+    }
+
+    /**
+     * publish the chain tip stored in the persistence, e.g. after a failed batch is aborted
+     */
+    private void reloadState() throws BlockPersistenceException {
+        StoredBlock tip = blockPersistence.getChainTip();
+        int slot = headerIndex.slotOf(tip.getBlock().getHash());
+        headerIndex.setTip(slot);
+        publish(tip, slot);
+    }
+
+    /**
+     * publish a new chain state and call back the listeners, nothing is published if the tip is unchanged
+     */
+    private void publish(StoredBlock tip, int slot) {
+        ChainState current = state;
+        if (current != null && current.getTipSlot() == slot) {
+            return;
+        }
+        ChainState next = new ChainState(tip, slot, current == null ? 0 : current.getVersion() + 1);
+        state = next;
+        for (ChainTipListener listener : tipListeners) {
+            try {
+                listener.onChainTipChanged(next);
+            } catch (RuntimeException e) {
+                logger.error("Chain tip listener {} failed: {}", listener, e);
             }
-            cursor = cursor.getPreviousBlock(blockPersistence);
         }
-        return results;
+    }
+
+    public void addChainTipListener(ChainTipListener listener) {
+        tipListeners.add(listener);
+    }
+
+    public void removeChainTipListener(ChainTipListener listener) {
+        tipListeners.remove(listener);
+    }
+
+    /**
+     * the current snapshot of the main chain, it never blocks on the blocks being added
+     */
+    public ChainState getChainState() {
+        return state;
     }
 
     public StoredBlock getChainTip() {
-        synchronized (chainTipLock) {
-            return chainTip;
-        }
+        return state.getTip();
     }
 
-    public void setChainTip(StoredBlock chainTip) throws BlockPersistenceException {
-        blockPersistence.setChainTip(chainTip);
-        synchronized (chainTipLock) {
-            this.chainTip = chainTip;
+    public synchronized void setChainTip(StoredBlock chainTip) throws BlockPersistenceException {
+        int slot = slotOf(chainTip.getBlock().getHash());
+        if (slot == HeaderIndex.NONE) {
+            throw new BlockPersistenceException("Chain tip " + chainTip.getBlock().getHash() + " is not stored.");
         }
+        blockPersistence.setChainTip(chainTip);
+        headerIndex.setTip(slot);
+        publish(chainTip, slot);
     }
 
     public int getChainHeight() {
-        return getChainTip().getHeight();
+        return state.getHeight();
     }
 
     /**
      * if the block in the database
      */
     public boolean hasBlock(SHA256Hash hash) throws BlockPersistenceException {
-        return blockPersistence.get(hash) != null;
+        return headerIndex.slotOf(hash) != HeaderIndex.NONE || blockPersistence.hasBlock(hash);
     }
 
     /**
      * If the block in the main chain
-     * The next filed is zero or the chain tip
+     * The whole main chain is in the header index, so the persistence is not touched
      */
-    public boolean isMainBlock(SHA256Hash hash) throws BlockPersistenceException {
-        if (chainTip.getBlock().getHash().equals(hash))
-            return true;
-        if (!hasBlock(hash))
-            return false;
-        return !blockPersistence.get(hash).getNext().equals(SHA256Hash.ZERO_HASH);
+    public boolean isMainBlock(SHA256Hash hash) {
+        return state.isMain(headerIndex, headerIndex.slotOf(hash));
     }
 }
@@ -9,7 +9,6 @@ import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 
@@ -34,6 +33,10 @@ public class BlockHead implements Serializable {
      * nNonce -- 4 bytes
      */
     public static final int BLOCK_HEAD_SIZE = 44;
+    /** offsets of the fields in the canonical encoding */
+    public static final int NTIME_OFFSET = 32;
+    public static final int NBITS_OFFSET = 32 + 4;
+    public static final int NNONCE_OFFSET = 32 + 8;
 
     public BlockHead() {
         setNull();
@@ -87,12 +90,22 @@ public class BlockHead implements Serializable {
      * @return serialized data
      */
     public byte[] serialize() throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        bos.write(hashPrevBlock.getBytes());
-        bos.write(Utils.uint32ToByteArrayLE(nTime));
-        bos.write(Utils.uint32ToByteArrayLE(nBits));
-        bos.write(Utils.uint32ToByteArrayLE(nNonce));
-        return bos.toByteArray();
+        byte[] out = new byte[BLOCK_HEAD_SIZE];
+        serialize(out, 0);
+        return out;
+    }
+
+    /**
+     * write the canonical encoding of the header into out, from offset on
+     * hashPrevBlock is copied as it is, nTime, nBits and nNonce are uint32 in little-endian
+     * @param out buffer with at least BLOCK_HEAD_SIZE bytes after offset
+     * @param offset begin offset
+     */
+    public void serialize(byte[] out, int offset) {
+        System.arraycopy(hashPrevBlock.getBytes(), 0, out, offset, SHA256Hash.SIZE);
+        Utils.uint32ToByteArrayLE(nTime, out, offset + NTIME_OFFSET);
+        Utils.uint32ToByteArrayLE(nBits, out, offset + NBITS_OFFSET);
+        Utils.uint32ToByteArrayLE(nNonce, out, offset + NNONCE_OFFSET);
     }
 
     /**
@@ -103,9 +116,9 @@ public class BlockHead implements Serializable {
         byte[] hash = new byte[32];
         System.arraycopy(data, 0, hash, 0, 32);
         SHA256Hash hashPrevBlock = new SHA256Hash(hash);
-        long nTime = Utils.readUint32LE(data, 32);
-        long nBits = Utils.readUint32LE(data, 32 + 4);
-        long nNonce = Utils.readUint32LE(data, 32 + 8);
+        long nTime = Utils.readUint32LE(data, NTIME_OFFSET);
+        long nBits = Utils.readUint32LE(data, NBITS_OFFSET);
+        long nNonce = Utils.readUint32LE(data, NNONCE_OFFSET);
         return new BlockHead(hashPrevBlock, nTime, nBits, nNonce);
     }
 
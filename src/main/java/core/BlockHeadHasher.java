@@ -0,0 +1,109 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/20
+ */
+package core;
+
+import net.NetworkParameters;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Hash a block header again and again while only the nonce changes.
+ * The header is encoded once, then every attempt patches the nonce in place
+ * and runs the double SHA-256 into a reused buffer, thus no allocation happens per attempt.
+ * The bytes before the nonce never change, so their SHA-256 work is done once by {@link Sha256Midstate}.
+ *
+ * It supports both header hash versions in {@link NetworkParameters}:
+ * v1 -- the java serialization stream of the header, nonce is a big-endian long inside it
+ * v2 -- the canonical 44 bytes encoding, nonce is a little-endian uint32 at the end
+ *
+ * Not thread safe, each mining thread should own its hasher.
+ */
+public class BlockHeadHasher {
+    private static final int V1_NONCE_SIZE = Long.BYTES;
+
+    private final Sha256Midstate sha256;
+    private final int version;
+    private final byte[] header; // buffer of sha256 holding the encoded header, the nonce is patched in place
+    private final int nonceOffset;
+
+    /**
+     * build a hasher for the header
+     * @param head header template, the current nonce is encoded but will be overwritten by setNonce()
+     * @param version header hash version, see {@link NetworkParameters#getHeaderHashVersion(long)}
+     */
+    public BlockHeadHasher(BlockHead head, int version) throws IOException {
+        this.version = version;
+        byte[] encoded;
+        if (version == NetworkParameters.HEADER_HASH_V2) {
+            encoded = new byte[BlockHead.BLOCK_HEAD_SIZE];
+            head.serialize(encoded, 0);
+            this.nonceOffset = BlockHead.NNONCE_OFFSET;
+        } else {
+            encoded = Utils.objectsToByteArray(head);
+            this.nonceOffset = locateV1Nonce(head, encoded);
+        }
+        this.sha256 = new Sha256Midstate(encoded, encoded.length, nonceOffset);
+        this.header = sha256.getBuffer();
+    }
+
+    /**
+     * find where the nonce is inside the serialization stream by flipping every bit of it
+     */
+    private static int locateV1Nonce(BlockHead head, byte[] encoded) throws IOException {
+        long nonce = head.getnNonce();
+        byte[] flipped;
+        head.setnNonce(~nonce);
+        try {
+            flipped = Utils.objectsToByteArray(head);
+        } finally {
+            head.setnNonce(nonce);
+        }
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] != flipped[i]) {
+                return i;
+            }
+        }
+        throw new IOException("Can't locate nonce in the serialized header.");
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * get the encoded header, it is the exact input of the first SHA-256 round
+     */
+    public byte[] getHeader() {
+        return Arrays.copyOf(header, sha256.getLength());
+    }
+
+    public int getNonceOffset() {
+        return nonceOffset;
+    }
+
+    /**
+     * set the nonce of the encoded header
+     * @param nonce uint32 nonce
+     */
+    public void setNonce(long nonce) {
+        if (version == NetworkParameters.HEADER_HASH_V2) {
+            Utils.uint32ToByteArrayLE(nonce, header, nonceOffset);
+        } else {
+            for (int i = V1_NONCE_SIZE - 1; i >= 0; i--) {
+                header[nonceOffset + i] = (byte) nonce;
+                nonce >>>= 8;
+            }
+        }
+    }
+
+    /**
+     * calculate hash(hash(header)) into out, the byte order is the same as {@link Utils#doubleDigest(byte[])}
+     * @param out buffer holds at least 32 bytes
+     */
+    public void digest(byte[] out) {
+        sha256.doubleDigest(out, 0);
+    }
+}
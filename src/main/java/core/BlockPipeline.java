@@ -0,0 +1,195 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/2
+ */
+package core;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Blocks received from the peers go through two stages before they are in the {@link BlockChain}.
+ *
+ * 1. verify: the context-free checks of {@link BlockChain#verify(Block)}, i.e. hashing and proof of work,
+ *    run on a pool of workers, so they scale with the cores.
+ * 2. connect: a single thread connects the verified blocks in the order of submission,
+ *    thus the chain still has a single writer and blocks of a peer are connected in the order it sent them.
+ *    Verified blocks waiting at the head of the queue are connected as a run by {@link BlockChain#addAllVerified(List, String)},
+ *    so a download of many blocks is committed in a few batches rather than block by block.
+ *
+ * The blocks in flight are bounded, submit() blocks the peer when the pipeline is full.
+ */
+@Component("BlockPipeline")
+public class BlockPipeline {
+    /** blocks in flight per verifying thread */
+    private static final int BLOCKS_PER_THREAD = 64;
+    /** max blocks connected in one batch, as many as an inv message of a download */
+    private static final int MAX_RUN = 500;
+
+    private final BlockChain blockChain;
+    private final ExecutorService verifiers;
+    private final ExecutorService connector;
+    private final Semaphore inFlight;
+
+    private static final class Pending {
+        final Block block;
+        final String source;
+        final CompletableFuture<Block> verified;
+        final CompletableFuture<Boolean> added = new CompletableFuture<>();
+
+        Pending(Block block, String source, CompletableFuture<Block> verified) {
+            this.block = block;
+            this.source = source;
+            this.verified = verified;
+        }
+    }
+
+    /** blocks submitted and not connected yet, in the order of submission */
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+    /**
+     * @param threads number of verifying threads, use all available processors if not positive
+     */
+    @Autowired
+    public BlockPipeline(BlockChain blockChain, @Value("${mycoin.verifier.threads:0}") int threads) {
+        this.blockChain = blockChain;
+        threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.verifiers = Executors.newFixedThreadPool(threads, new PipelineThreadFactory("BlockVerifier-"));
+        this.connector = Executors.newSingleThreadExecutor(new PipelineThreadFactory("BlockConnector-"));
+        this.inFlight = new Semaphore(threads * BLOCKS_PER_THREAD);
+    }
+
+    public BlockChain getBlockChain() {
+        return blockChain;
+    }
+
+    /**
+     * verify the block on a worker, then connect it after all the blocks submitted before
+     * @param source the peer which sends the block
+     * @return the result of adding the block, it fails with the VerificationException or BlockPersistenceException
+     * wrapped in a CompletionException
+     */
+    public CompletableFuture<Boolean> submit(Block block, String source) throws InterruptedException {
+        inFlight.acquire();
+        Pending pending;
+        synchronized (this) {
+            pending = new Pending(block, source, CompletableFuture.supplyAsync(() -> {
+                try {
+                    blockChain.verify(block);
+                    return block;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, verifiers));
+            queue.add(pending);
+        }
+        pending.added.whenComplete((result, e) -> inFlight.release());
+        pending.verified.whenComplete((result, e) -> connector.execute(this::connect));
+        return pending.added;
+    }
+
+    /**
+     * connect the verified blocks at the head of the queue, it runs on the connector only
+     * a run is cut at a block not verified yet, a failed one or one from another peer
+     */
+    private void connect() {
+        while (true) {
+            List<Pending> run = new ArrayList<>();
+            synchronized (this) {
+                for (Pending pending : queue) {
+                    if (!pending.verified.isDone() || run.size() >= MAX_RUN
+                            || (!run.isEmpty() && !Objects.equals(pending.source, run.get(0).source))) {
+                        break;
+                    }
+                    run.add(pending);
+                    if (pending.verified.isCompletedExceptionally()) {
+                        break;
+                    }
+                }
+            }
+            if (run.isEmpty()) {
+                return;
+            }
+            Pending last = run.get(run.size() - 1);
+            if (last.verified.isCompletedExceptionally()) {
+                run.remove(run.size() - 1);
+            }
+            int added = 0;
+            try {
+                List<Block> blocks = new ArrayList<>(run.size());
+                for (Pending pending : run) {
+                    blocks.add(pending.block);
+                }
+                added = blocks.isEmpty() ? 0 : blockChain.addAllVerified(blocks, run.get(0).source);
+            } catch (Exception e) {
+                for (Pending pending : run) {
+                    complete(pending, null, e);
+                }
+                continue;
+            }
+            for (int i = 0; i < added; i++) {
+                complete(run.get(i), true, null);
+            }
+            if (added < run.size()) {
+                // the block stopping the run is added alone for the reason
+                Pending pending = run.get(added);
+                try {
+                    complete(pending, blockChain.addVerified(pending.block, pending.source), null);
+                } catch (Exception e) {
+                    complete(pending, null, e);
+                }
+            } else if (last.verified.isCompletedExceptionally()) {
+                try {
+                    last.verified.get();
+                } catch (ExecutionException e) {
+                    complete(last, null, e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    complete(last, null, e);
+                }
+            }
+        }
+    }
+
+    /** remove the block from the queue and complete its result */
+    private void complete(Pending pending, Boolean result, Throwable e) {
+        synchronized (this) {
+            queue.remove(pending);
+        }
+        if (e == null) {
+            pending.added.complete(result);
+        } else {
+            pending.added.completeExceptionally(e instanceof CompletionException ? e : new CompletionException(e));
+        }
+    }
+
+    private static class PipelineThreadFactory implements ThreadFactory {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        final String namePrefix;
+
+        PipelineThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
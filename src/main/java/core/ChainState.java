@@ -0,0 +1,84 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/4
+ */
+package core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the main chain: its tip, height and work.
+ * The version increases with every snapshot published, so a change of the tip is noticed by comparing one long.
+ *
+ * The {@link BlockChain} publishes a new snapshot after each committed change, readers take the current one
+ * without any lock and see a consistent chain even while blocks are being added.
+ * Main chain queries are answered by the ancestors of the tip slot in the {@link HeaderIndex},
+ * whose entries never change once they are added, so a snapshot stays valid after a re-organize.
+ */
+public final class ChainState {
+    private final StoredBlock tip;
+    private final int tipSlot;
+    private final long version;
+
+    ChainState(StoredBlock tip, int tipSlot, long version) {
+        this.tip = tip;
+        this.tipSlot = tipSlot;
+        this.version = version;
+    }
+
+    public StoredBlock getTip() {
+        return tip;
+    }
+
+    /** slot of the tip in the header index */
+    public int getTipSlot() {
+        return tipSlot;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getHeight() {
+        return tip.getHeight();
+    }
+
+    public BigInteger getChainWork() {
+        return tip.getChainWork();
+    }
+
+    /**
+     * @return slot of the main chain block at the height, or NONE if it is above the tip
+     */
+    public int getMainSlot(HeaderIndex headers, int height) {
+        return headers.getAncestor(tipSlot, height);
+    }
+
+    /** whether the block at the slot is in the main chain of this snapshot */
+    public boolean isMain(HeaderIndex headers, int slot) {
+        return slot != HeaderIndex.NONE && getMainSlot(headers, headers.getHeight(slot)) == slot;
+    }
+
+    /**
+     * the main chain blocks from the tip down, their next fields follow this snapshot
+     * @param count max number of blocks
+     */
+    public List<StoredBlock> getMainBlocks(HeaderIndex headers, int count) {
+        List<StoredBlock> blocks = new ArrayList<>(Math.min(count, getHeight() + 1));
+        SHA256Hash next = SHA256Hash.ZERO_HASH;
+        for (int slot = tipSlot; slot != HeaderIndex.NONE && blocks.size() < count; slot = headers.getParent(slot)) {
+            StoredBlock block = headers.get(slot);
+            block.setNext(next);
+            blocks.add(block);
+            next = block.getBlock().getHash();
+        }
+        return blocks;
+    }
+
+    @Override
+    public String toString() {
+        return "ChainState{version=" + version + ", height=" + getHeight() + ", tip=" + tip.getBlock().getHash() + "}";
+    }
+}
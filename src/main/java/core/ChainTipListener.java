@@ -0,0 +1,18 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/5
+ */
+package core;
+
+/**
+ * Invoke action when the tip of the main chain changes
+ */
+public interface ChainTipListener {
+    /**
+     * when a new chain state is published, i.e. the main chain is extended or re-organized
+     * it is called on the thread adding blocks, so it should return quickly, e.g. set a flag or hand the work over
+     *
+     * @param state the new chain state
+     */
+    void onChainTipChanged(ChainState state);
+}
@@ -0,0 +1,87 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/7
+ */
+package core;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An unspent {@link TransactionOutput} together with the height of the block creating it
+ * and whether it is created by a coinbase, immutable
+ */
+public final class Coin {
+    /** size of the encoding, the height and the coinbase flag in uint32 followed by the output */
+    public static final int SIZE = 4 + TransactionOutput.SIZE;
+
+    private final TransactionOutput output;
+    private final int height;
+    private final boolean coinbase;
+
+    public Coin(TransactionOutput output, int height, boolean coinbase) {
+        this.output = output;
+        this.height = height;
+        this.coinbase = coinbase;
+    }
+
+    public TransactionOutput getOutput() {
+        return output;
+    }
+
+    public double getValue() {
+        return output.getValue();
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isCoinbase() {
+        return coinbase;
+    }
+
+    /**
+     * write the encoding, height * 2 + coinbase in little-endian, then the output
+     */
+    public void serialize(ByteBuffer buf) {
+        Utils.putUint32LE(buf, height << 1 | (coinbase ? 1 : 0));
+        output.serialize(buf);
+    }
+
+    public static Coin deserialize(ByteBuffer buf) {
+        long code = Utils.getUint32LE(buf);
+        return new Coin(TransactionOutput.deserialize(buf), (int) (code >>> 1), (code & 1) != 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Coin that = (Coin) o;
+
+        return new EqualsBuilder()
+                .append(height, that.height)
+                .append(coinbase, that.coinbase)
+                .append(output, that.output)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 37)
+                .append(output)
+                .append(height)
+                .append(coinbase)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Coin{value=" + output.getValue() + ", height=" + height + (coinbase ? ", coinbase" : "") + "}";
+    }
+}
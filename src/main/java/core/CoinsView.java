@@ -0,0 +1,32 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/7
+ */
+package core;
+
+import exception.BlockPersistenceException;
+
+import java.util.Map;
+
+/**
+ * A view of the unspent transaction outputs, keyed by {@link TransactionOutpoint}
+ * Views are layered, a {@link CoinsViewCache} keeps the changes upon its base view until they are flushed into it
+ */
+public interface CoinsView {
+    /** the unspent coin at the outpoint, null if it is missing or spent */
+    Coin getCoin(TransactionOutpoint outpoint) throws BlockPersistenceException;
+
+    /** whether the outpoint is unspent */
+    default boolean haveCoin(TransactionOutpoint outpoint) throws BlockPersistenceException {
+        return getCoin(outpoint) != null;
+    }
+
+    /** hash of the chain tip the coins are of, null if none */
+    SHA256Hash getBestBlock() throws BlockPersistenceException;
+
+    /**
+     * write the dirty entries of a cache and the best block at once, the entries are not changed
+     * @param entries spent entries are those with a null coin
+     */
+    void batchWrite(Map<TransactionOutpoint, CoinsViewCache.Entry> entries, SHA256Hash bestBlock) throws BlockPersistenceException;
+}
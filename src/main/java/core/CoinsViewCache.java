@@ -0,0 +1,273 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/7
+ */
+package core;
+
+import exception.BlockPersistenceException;
+import exception.VerificationException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A write-back cache of coins upon a base {@link CoinsView}, e.g. the LevelDB coins or another cache
+ *
+ * Coins read from the base are kept clean, changes are kept in the cache flagged DIRTY until {@link #flush()}
+ * writes them into the base at once. An entry is also FRESH if the base has no unspent coin at its outpoint,
+ * then spending it simply drops it, so an output created and spent between two flushes never reaches the base.
+ *
+ * The block chain applies each block to a cache upon its own, which is flushed only once the block is committed,
+ * thus the chain never sees the coins of a re-organize broken off. Lookups are O(1) on a hit, methods are synchronized
+ * so the mempool reads the chain coins while blocks are connected.
+ */
+public class CoinsViewCache implements CoinsView {
+    /** the entry differs from the base */
+    public static final int DIRTY = 1;
+    /** the base has no unspent coin at the outpoint */
+    public static final int FRESH = 2;
+
+    /**
+     * a cached coin, the coin is null if it is spent
+     */
+    public static final class Entry {
+        private Coin coin;
+        private int flags;
+
+        Entry(Coin coin, int flags) {
+            this.coin = coin;
+            this.flags = flags;
+        }
+
+        public Coin getCoin() {
+            return coin;
+        }
+
+        public boolean isSpent() {
+            return coin == null;
+        }
+
+        public boolean isDirty() {
+            return (flags & DIRTY) != 0;
+        }
+
+        public boolean isFresh() {
+            return (flags & FRESH) != 0;
+        }
+    }
+
+    private final CoinsView base;
+    private final int maxEntries;
+    private final Map<TransactionOutpoint, Entry> cache = new HashMap<>();
+    private SHA256Hash bestBlock;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries the clean entries are dropped after a flush if there are more entries than it
+     */
+    public CoinsViewCache(CoinsView base, int maxEntries) {
+        this.base = base;
+        this.maxEntries = maxEntries;
+    }
+
+    /** a cache upon another, e.g. for the changes of one block, never trimmed */
+    public CoinsViewCache(CoinsView base) {
+        this(base, Integer.MAX_VALUE);
+    }
+
+    /** the cached entry or the coin of the base cached clean, null if the base has no unspent coin */
+    private Entry fetch(TransactionOutpoint outpoint) throws BlockPersistenceException {
+        Entry entry = cache.get(outpoint);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        Coin coin = base.getCoin(outpoint);
+        if (coin == null) {
+            return null;
+        }
+        entry = new Entry(coin, 0);
+        cache.put(outpoint, entry);
+        return entry;
+    }
+
+    @Override
+    public synchronized Coin getCoin(TransactionOutpoint outpoint) throws BlockPersistenceException {
+        Entry entry = fetch(outpoint);
+        return entry == null ? null : entry.coin;
+    }
+
+    /**
+     * add a coin created by a transaction, the outpoint must not be unspent in the base
+     */
+    public synchronized void addCoin(TransactionOutpoint outpoint, Coin coin) {
+        Entry entry = cache.get(outpoint);
+        if (entry == null) {
+            cache.put(outpoint, new Entry(coin, DIRTY | FRESH));
+        } else if (entry.isSpent()) {
+            // a spent entry not written yet still overrides an unspent coin of the base
+            entry.flags = entry.isDirty() ? entry.flags : DIRTY | FRESH;
+            entry.coin = coin;
+        } else {
+            throw new IllegalStateException("Coin " + outpoint.getHash() + ":" + outpoint.getN() + " is unspent already.");
+        }
+    }
+
+    /**
+     * spend the coin at the outpoint
+     * @return the spent coin, kept to disconnect the spending transaction, or null if it is missing or spent
+     */
+    public synchronized Coin spendCoin(TransactionOutpoint outpoint) throws BlockPersistenceException {
+        Entry entry = fetch(outpoint);
+        if (entry == null || entry.isSpent()) {
+            return null;
+        }
+        Coin coin = entry.coin;
+        if (entry.isFresh()) {
+            cache.remove(outpoint);
+        } else {
+            entry.coin = null;
+            entry.flags |= DIRTY;
+        }
+        return coin;
+    }
+
+    /** put back a coin spent by a disconnected transaction, the base may hold it spent or unspent */
+    private void restoreCoin(TransactionOutpoint outpoint, Coin coin) {
+        Entry entry = cache.get(outpoint);
+        if (entry == null) {
+            cache.put(outpoint, new Entry(coin, DIRTY));
+        } else {
+            entry.coin = coin;
+            entry.flags |= DIRTY;
+        }
+    }
+
+    /**
+     * spend the inputs of the transaction and add its outputs
+     * the cache is left half changed if it fails, it is meant to be dropped then
+     * @param height height of the block connecting the transaction
+     * @return the spent coins in the order of the inputs, needed by {@link #disconnect(Transaction, List)}
+     * @throws VerificationException if an input is missing or spent
+     */
+    public synchronized List<Coin> connect(Transaction tx, int height) throws VerificationException, BlockPersistenceException {
+        boolean coinbase = tx.isCoinbase();
+        List<Coin> undo = new ArrayList<>(tx.getInputs().size());
+        if (!coinbase) {
+            for (TransactionInput input : tx.getInputs()) {
+                Coin spent = spendCoin(input.getPrevout());
+                if (spent == null) {
+                    throw new VerificationException("Input " + input.getPrevout().getHash() + ":" + input.getPrevout().getN() + " is missing or spent.");
+                }
+                undo.add(spent);
+            }
+        }
+        SHA256Hash hash = tx.getHash();
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            addCoin(new TransactionOutpoint(hash, i), new Coin(tx.getOutputs().get(i), height, coinbase));
+        }
+        return undo;
+    }
+
+    /**
+     * the reverse of {@link #connect(Transaction, int)}, the outputs are spent and the spent coins are put back
+     * @param undo the coins returned by connect
+     */
+    public synchronized void disconnect(Transaction tx, List<Coin> undo) throws BlockPersistenceException {
+        SHA256Hash hash = tx.getHash();
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            spendCoin(new TransactionOutpoint(hash, i));
+        }
+        for (int i = 0; i < undo.size(); i++) {
+            restoreCoin(tx.getInputs().get(i).getPrevout(), undo.get(i));
+        }
+    }
+
+    @Override
+    public synchronized SHA256Hash getBestBlock() throws BlockPersistenceException {
+        if (bestBlock == null) {
+            bestBlock = base.getBestBlock();
+        }
+        return bestBlock;
+    }
+
+    public synchronized void setBestBlock(SHA256Hash bestBlock) {
+        this.bestBlock = bestBlock;
+    }
+
+    /**
+     * merge the dirty entries of a cache upon this one
+     */
+    @Override
+    public synchronized void batchWrite(Map<TransactionOutpoint, Entry> entries, SHA256Hash bestBlock) {
+        for (Map.Entry<TransactionOutpoint, Entry> e : entries.entrySet()) {
+            Entry child = e.getValue();
+            if (!child.isDirty()) {
+                continue;
+            }
+            Entry entry = cache.get(e.getKey());
+            if (entry == null) {
+                // created and spent upon this cache, nothing to write
+                if (!(child.isFresh() && child.isSpent())) {
+                    cache.put(e.getKey(), new Entry(child.coin, DIRTY | (child.flags & FRESH)));
+                }
+            } else if (child.isFresh() && !entry.isSpent()) {
+                throw new IllegalStateException("FRESH coin " + e.getKey().getHash() + " is unspent upon the cache.");
+            } else if (entry.isFresh() && child.isSpent()) {
+                cache.remove(e.getKey());
+            } else {
+                entry.coin = child.coin;
+                entry.flags |= DIRTY;
+            }
+        }
+        if (bestBlock != null) {
+            this.bestBlock = bestBlock;
+        }
+    }
+
+    /**
+     * write the dirty entries and the best block into the base at once, they are clean afterwards
+     * the cache is emptied if it holds more entries than its limit
+     */
+    public synchronized void flush() throws BlockPersistenceException {
+        base.batchWrite(cache, bestBlock);
+        if (cache.size() > maxEntries) {
+            cache.clear();
+            return;
+        }
+        for (Iterator<Entry> it = cache.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.isSpent()) {
+                it.remove();
+            } else {
+                entry.flags = 0;
+            }
+        }
+    }
+
+    /** number of cached entries, spent ones included */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized int getDirtyCount() {
+        int dirty = 0;
+        for (Entry entry : cache.values()) {
+            if (entry.isDirty()) {
+                dirty++;
+            }
+        }
+        return dirty;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d coins cached, %d hits, %d misses, best block %s", cache.size(), hits, misses, bestBlock);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/3
+ */
+package core;
+
+import exception.VerificationException;
+import net.NetworkParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Difficulty adaption shared by the block validation and the miner.
+ *
+ * The nBits changes every NetworkParameters.interval blocks, an epoch. Within an epoch it equals the nBits of the previous block.
+ * At the first block of an epoch the target of the previous epoch is scaled by its actual over the expected timespan,
+ * limited to a factor of 4 either way and to the proof of work limit.
+ *
+ * The expected nBits of an epoch is cached by the epoch index, together with the hash of the block ending the previous epoch,
+ * so a fork retargeting differently simply replaces it. Targets are computed in fixed width by {@link PowTarget}.
+ */
+@Component("DifficultyEngine")
+public class DifficultyEngine {
+    private static final Logger logger = LoggerFactory.getLogger(DifficultyEngine.class);
+
+    private final int interval;
+    private final int targetTimespan;
+    private final PowTarget limit;
+
+    private static final class Epoch {
+        final SHA256Hash parent; // the block ending the previous epoch
+        final long nBits;
+
+        Epoch(SHA256Hash parent, long nBits) {
+            this.parent = parent;
+            this.nBits = nBits;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Epoch> epochs = new ConcurrentHashMap<>();
+
+    @Autowired
+    public DifficultyEngine(NetworkParameters params) {
+        this.interval = params.interval;
+        this.targetTimespan = params.targetTimespan;
+        this.limit = params.proofOfWorkTarget;
+    }
+
+    /**
+     * the nBits of the block following the previous block
+     * @param headers the header index holding the previous block and its ancestors
+     * @param prevSlot slot of the previous block
+     * @throws VerificationException if there is no way back to the start of the epoch
+     */
+    public long getNextnBits(HeaderIndex headers, int prevSlot) throws VerificationException {
+        int height = headers.getHeight(prevSlot) + 1;
+        if (height % interval != 0) {
+            return headers.getnBits(prevSlot);
+        }
+        int index = height / interval;
+        SHA256Hash parent = headers.getHash(prevSlot);
+        Epoch epoch = epochs.get(index);
+        if (epoch == null || !epoch.parent.equals(parent)) {
+            int start = headers.getAncestor(prevSlot, height - interval);
+            if (start == HeaderIndex.NONE) {
+                throw new VerificationException("Difficulty transition point but we dit not find a way back to genesis.");
+            }
+            epoch = new Epoch(parent, calculateNextnBits(headers.getnBits(start), headers.getnTime(start), headers.getnTime(prevSlot)));
+            epochs.put(index, epoch);
+            logger.info("Difficulty of epoch {} at height {}: {}", index, height, Long.toHexString(epoch.nBits));
+        }
+        return epoch.nBits;
+    }
+
+    /**
+     * check the nBits of a new block following the previous block
+     */
+    public void checkNextnBits(HeaderIndex headers, int prevSlot, long nBits) throws VerificationException {
+        long expected = getNextnBits(headers, prevSlot);
+        if (nBits != expected) {
+            throw new VerificationException("Unexpected difficulty at height " + (headers.getHeight(prevSlot) + 1) +
+                    ": " + Long.toHexString(nBits) + " vs " + Long.toHexString(expected));
+        }
+    }
+
+    /**
+     * the nBits of an epoch from the previous epoch
+     * @param startnBits nBits of the previous epoch
+     * @param startTime nTime of the first block of the previous epoch
+     * @param endTime nTime of the last block of the previous epoch
+     */
+    public long calculateNextnBits(long startnBits, long startTime, long endTime) throws VerificationException {
+        long timespan = endTime - startTime;
+        // Limit the adjustment step.
+        timespan = Math.max(timespan, targetTimespan / 4);
+        timespan = Math.min(timespan, targetTimespan * 4L);
+        PowTarget target = PowTarget.decodeCompact(startnBits).multiplyDivide(timespan, targetTimespan);
+        if (target.compareTo(limit) > 0) {
+            logger.debug("Difficulty hit proof of work limit: {}", target);
+            target = limit;
+        }
+        return target.encodeCompact();
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/31
+ */
+package core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Headers of the block chain kept off the java heap, so chain decisions need neither the block persistence nor allocation.
+ *
+ * Blocks are appended to an arena of fixed size entries in direct memory segments and referred to by their slot.
+ * An open addressing table in direct memory maps the block hash to the slot,
+ * and an array of slots by height keeps the main chain.
+ *
+ * Entry --
+ * 32 bytes block hash
+ * 44 bytes block header, the canonical encoding of {@link BlockHead#serialize(byte[], int)}
+ * 4 bytes height
+ * 16 bytes chain work, an unsigned 128 bits integer in two longs
+ * 4 bytes slot of the parent, NONE for the first block
+ * 4 bytes slot of the skip ancestor, NONE for the first block
+ *
+ * As the skip pointer of Bitcoin, the skip ancestor is at a height derived from the height of the block,
+ * such that any ancestor is reached in a logarithmic number of hops.
+ *
+ * There is a single writer. An entry is immutable once added and the size is published after it,
+ * so readers never lock, a slot not below the size they read is taken as absent.
+ */
+public class HeaderIndex {
+    /** no such block */
+    public static final int NONE = -1;
+
+    private static final int ENTRY_SIZE = 104;
+    private static final int HASH_OFFSET = 0;
+    private static final int HEADER_OFFSET = SHA256Hash.SIZE;
+    private static final int HEIGHT_OFFSET = HEADER_OFFSET + BlockHead.BLOCK_HEAD_SIZE;
+    private static final int WORK_HIGH_OFFSET = HEIGHT_OFFSET + 4;
+    private static final int WORK_LOW_OFFSET = WORK_HIGH_OFFSET + 8;
+    private static final int PARENT_OFFSET = WORK_LOW_OFFSET + 8;
+    private static final int SKIP_OFFSET = PARENT_OFFSET + 4;
+
+    private static final int SEGMENT_SHIFT = 16; // 64k entries per segment
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+    private static final int MIN_BUCKETS = 1 << 12;
+
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private volatile ByteBuffer table = ByteBuffer.allocateDirect(MIN_BUCKETS * 4); // slot + 1 per bucket, 0 is empty
+    private volatile int size;
+
+    private volatile int[] mainChain = new int[1024]; // slot of the main chain block at each height
+    private volatile int tipHeight = -1;
+
+    /** number of blocks */
+    public int size() {
+        return size;
+    }
+
+    /** direct memory used by the arena and the hash table */
+    public long getMemoryBytes() {
+        return (long) segments.length * (ENTRY_SIZE << SEGMENT_SHIFT) + table.capacity();
+    }
+
+    private ByteBuffer segmentOf(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    private static int offsetOf(int slot) {
+        return (slot & SEGMENT_MASK) * ENTRY_SIZE;
+    }
+
+    /**
+     * @return slot of the block, or NONE if it is not added
+     */
+    public int slotOf(SHA256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long w0 = readLong(bytes, 0), w1 = readLong(bytes, 8), w2 = readLong(bytes, 16), w3 = readLong(bytes, 24);
+        ByteBuffer buckets = table;
+        int mask = buckets.capacity() / 4 - 1;
+        for (int bucket = (int) w3 & mask; ; bucket = (bucket + 1) & mask) {
+            int slot = buckets.getInt(bucket * 4) - 1;
+            if (slot < 0) {
+                return NONE;
+            }
+            if (slot >= size) {
+                continue; // being added
+            }
+            ByteBuffer segment = segmentOf(slot);
+            int offset = offsetOf(slot) + HASH_OFFSET;
+            if (segment.getLong(offset) == w0 && segment.getLong(offset + 8) == w1
+                    && segment.getLong(offset + 16) == w2 && segment.getLong(offset + 24) == w3) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * append a block whose parent is already added, unless it is the first one
+     * @return slot of the block, the existing one if it is added already
+     */
+    public synchronized int add(StoredBlock stored) {
+        Block block = stored.getBlock();
+        int existing = slotOf(block.getHash());
+        if (existing != NONE) {
+            return existing;
+        }
+        int parent = size == 0 ? NONE : slotOf(block.getHashPrevBlock());
+        if (parent == NONE && size > 0) {
+            throw new IllegalArgumentException("Parent of block " + block.getHash() + " is not in the header index");
+        }
+        int slot = size;
+        if ((slot >>> SEGMENT_SHIFT) >= segments.length) {
+            ByteBuffer[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[segments.length] = ByteBuffer.allocateDirect(ENTRY_SIZE << SEGMENT_SHIFT);
+            segments = grown;
+        }
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        byte[] entry = new byte[SHA256Hash.SIZE + BlockHead.BLOCK_HEAD_SIZE];
+        System.arraycopy(block.getHash().getBytes(), 0, entry, 0, SHA256Hash.SIZE);
+        block.serialize(entry, HEADER_OFFSET);
+        for (int i = 0; i < entry.length; i++) {
+            segment.put(offset + i, entry[i]);
+        }
+        segment.putInt(offset + HEIGHT_OFFSET, stored.getHeight());
+        segment.putLong(offset + WORK_HIGH_OFFSET, stored.getChainWorkHigh());
+        segment.putLong(offset + WORK_LOW_OFFSET, stored.getChainWorkLow());
+        segment.putInt(offset + PARENT_OFFSET, parent);
+        segment.putInt(offset + SKIP_OFFSET, parent == NONE ? NONE : getAncestor(parent, skipHeight(stored.getHeight())));
+
+        if ((slot + 1) * 2 > table.capacity() / 4) {
+            table = buildTable(slot + 1, table.capacity() / 4 * 2); // includes the new slot
+        } else {
+            insert(table, slot);
+        }
+        size = slot + 1; // publish
+        return slot;
+    }
+
+    private ByteBuffer buildTable(int count, int buckets) {
+        ByteBuffer built = ByteBuffer.allocateDirect(buckets * 4);
+        for (int slot = 0; slot < count; slot++) {
+            insert(built, slot);
+        }
+        return built;
+    }
+
+    private void insert(ByteBuffer buckets, int slot) {
+        int mask = buckets.capacity() / 4 - 1;
+        int w3 = (int) segmentOf(slot).getLong(offsetOf(slot) + HASH_OFFSET + 24);
+        int bucket = w3 & mask;
+        while (buckets.getInt(bucket * 4) != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        buckets.putInt(bucket * 4, slot + 1);
+    }
+
+    /**
+     * drop the blocks added from the slot on, e.g. after the batch adding them is aborted
+     * the main chain must not contain them
+     */
+    public synchronized void truncate(int newSize) {
+        if (newSize >= size) {
+            return;
+        }
+        size = newSize;
+        table = buildTable(newSize, table.capacity() / 4);
+    }
+
+    public SHA256Hash getHash(int slot) {
+        byte[] bytes = new byte[SHA256Hash.SIZE];
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot) + HASH_OFFSET;
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = segment.get(offset + i);
+        }
+        return new SHA256Hash(bytes);
+    }
+
+    public int getHeight(int slot) {
+        return segmentOf(slot).getInt(offsetOf(slot) + HEIGHT_OFFSET);
+    }
+
+    public int getParent(int slot) {
+        return segmentOf(slot).getInt(offsetOf(slot) + PARENT_OFFSET);
+    }
+
+    public int getSkip(int slot) {
+        return segmentOf(slot).getInt(offsetOf(slot) + SKIP_OFFSET);
+    }
+
+    /** clear the lowest set bit */
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    /** height of the skip ancestor of a block at the height */
+    static int skipHeight(int height) {
+        if (height < 2) {
+            return 0;
+        }
+        // any lower height works, this one keeps the walks logarithmic
+        return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+    }
+
+    public long getnTime(int slot) {
+        return Integer.reverseBytes(segmentOf(slot).getInt(offsetOf(slot) + HEADER_OFFSET + BlockHead.NTIME_OFFSET)) & 0xFFFFFFFFL;
+    }
+
+    public long getnBits(int slot) {
+        return Integer.reverseBytes(segmentOf(slot).getInt(offsetOf(slot) + HEADER_OFFSET + BlockHead.NBITS_OFFSET)) & 0xFFFFFFFFL;
+    }
+
+    /** whether block a has more chain work than block b */
+    public boolean moreWorkThan(int a, int b) {
+        ByteBuffer sa = segmentOf(a), sb = segmentOf(b);
+        int oa = offsetOf(a), ob = offsetOf(b);
+        int c = Long.compareUnsigned(sa.getLong(oa + WORK_HIGH_OFFSET), sb.getLong(ob + WORK_HIGH_OFFSET));
+        if (c == 0) {
+            c = Long.compareUnsigned(sa.getLong(oa + WORK_LOW_OFFSET), sb.getLong(ob + WORK_LOW_OFFSET));
+        }
+        return c > 0;
+    }
+
+    /**
+     * build the stored block of the slot
+     * next is the following main chain block, or zero if the block is the tip or not in the main chain
+     */
+    public StoredBlock get(int slot) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        byte[] header = new byte[BlockHead.BLOCK_HEAD_SIZE];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = segment.get(offset + HEADER_OFFSET + i);
+        }
+        Block block = new Block(BlockHead.deserialize(header));
+        block.setHash(getHash(slot));
+        int height = getHeight(slot);
+        int next = isMain(slot) ? getMainSlot(height + 1) : NONE;
+        return new StoredBlock(block, segment.getLong(offset + WORK_HIGH_OFFSET), segment.getLong(offset + WORK_LOW_OFFSET),
+                height, next == NONE ? SHA256Hash.ZERO_HASH : getHash(next));
+    }
+
+    /**
+     * @return slot of the ancestor of the block at the height, or NONE if the height is out of range
+     * it takes the skip ancestor whenever it does not overshoot, and only immutable entries are read
+     */
+    public int getAncestor(int slot, int height) {
+        int walkHeight = getHeight(slot);
+        if (height < 0 || height > walkHeight) {
+            return NONE;
+        }
+        while (walkHeight > height) {
+            int skipHeight = skipHeight(walkHeight);
+            int skipHeightPrev = skipHeight(walkHeight - 1);
+            // skip unless the parent's skip gets closer without overshooting
+            if (skipHeight == height
+                    || (skipHeight > height && !(skipHeightPrev < skipHeight - 2 && skipHeightPrev >= height))) {
+                slot = getSkip(slot);
+                walkHeight = skipHeight;
+            } else {
+                slot = getParent(slot);
+                walkHeight--;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * find the last common ancestor of two blocks
+     * ancestors at a height are the same from the split point down, so the height is searched by bisection
+     * @return slot of the split point, or NONE if they have none
+     */
+    public int findSplit(int a, int b) {
+        int height = Math.min(getHeight(a), getHeight(b));
+        a = getAncestor(a, height);
+        b = getAncestor(b, height);
+        if (a == b) {
+            return a;
+        }
+        if (getAncestor(a, 0) != getAncestor(b, 0)) {
+            return NONE;
+        }
+        int low = 0, high = height - 1; // ancestors are the same at low and differ above high
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (getAncestor(a, mid) == getAncestor(b, mid)) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return getAncestor(a, low);
+    }
+
+    /** height of the main chain tip, -1 if there is no tip */
+    public int getTipHeight() {
+        return tipHeight;
+    }
+
+    /** @return slot of the main chain block at the height, or NONE */
+    public int getMainSlot(int height) {
+        int[] chain = mainChain;
+        return height >= 0 && height <= tipHeight && height < chain.length ? chain[height] : NONE;
+    }
+
+    public boolean isMain(int slot) {
+        return getMainSlot(getHeight(slot)) == slot;
+    }
+
+    /**
+     * set the tip of main chain, heights are pointed to the new main chain by walking back until the fork point
+     */
+    public synchronized void setTip(int slot) {
+        int height = getHeight(slot);
+        int[] chain = mainChain;
+        if (height >= chain.length) {
+            chain = Arrays.copyOf(chain, Math.max(chain.length * 2, height + 1));
+        }
+        for (int cursor = slot; cursor != NONE; cursor = getParent(cursor)) {
+            int h = getHeight(cursor);
+            if (h <= tipHeight && chain[h] == cursor) {
+                break;
+            }
+            chain[h] = cursor;
+        }
+        mainChain = chain;
+        tipHeight = height; // publish
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = v << 8 | (bytes[offset + i] & 0xFFL);
+        }
+        return v;
+    }
+}
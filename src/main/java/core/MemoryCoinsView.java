@@ -0,0 +1,47 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/7
+ */
+package core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coins kept in memory only, e.g. under the block chain of tests which has no coins database
+ */
+public class MemoryCoinsView implements CoinsView {
+    private final Map<TransactionOutpoint, Coin> coins = new ConcurrentHashMap<>();
+    private volatile SHA256Hash bestBlock;
+
+    @Override
+    public Coin getCoin(TransactionOutpoint outpoint) {
+        return coins.get(outpoint);
+    }
+
+    @Override
+    public SHA256Hash getBestBlock() {
+        return bestBlock;
+    }
+
+    @Override
+    public synchronized void batchWrite(Map<TransactionOutpoint, CoinsViewCache.Entry> entries, SHA256Hash bestBlock) {
+        for (Map.Entry<TransactionOutpoint, CoinsViewCache.Entry> e : entries.entrySet()) {
+            if (!e.getValue().isDirty()) {
+                continue;
+            }
+            if (e.getValue().isSpent()) {
+                coins.remove(e.getKey());
+            } else {
+                coins.put(e.getKey(), e.getValue().getCoin());
+            }
+        }
+        if (bestBlock != null) {
+            this.bestBlock = bestBlock;
+        }
+    }
+
+    public int size() {
+        return coins.size();
+    }
+}
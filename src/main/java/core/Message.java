@@ -1,5 +1,6 @@
 package core;
 
+import exception.ProtocolException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -7,6 +8,7 @@ import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -87,6 +89,19 @@ public class Message extends MessageHeader {
         return block;
     }
 
+    /**
+     * get a transaction from the payload in its canonical encoding
+     * @throws ProtocolException if the payload is not exactly one transaction
+     */
+    public Transaction getPayloadAsTransaction() throws ProtocolException {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        Transaction tx = Transaction.deserialize(buf);
+        if (buf.hasRemaining()) {
+            throw new ProtocolException(buf.remaining() + " bytes after the transaction.");
+        }
+        return tx;
+    }
+
     /**
      * get blocks locator(a list) and a hash from the payload and return a Object array
      * which the first one is locator and the second is hashStop
@@ -107,6 +122,14 @@ public class Message extends MessageHeader {
         this.payload = Utils.objectsToByteArray(invs);
     }
 
+    /**
+     * set a transaction into the message payload in its canonical encoding
+     */
+    public void setTransactionIntoPayload(Transaction tx) {
+        setPayload(tx.serialize());
+        setMessageSize(payload.length);
+    }
+
     @Override
     public boolean valid() {
         if (!super.valid()) {
@@ -5,36 +5,75 @@
 package core;
 
 import exception.BlockPersistenceException;
-import exception.ProtocolException;
 import exception.VerificationException;
 
 import java.io.IOException;
-import java.math.BigInteger;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
  * A miner is trying to solve the hash puzzle It travel all the possible nonce
  * until the PoW is reached or a new block tip is concatenated
+ *
+ * The 32 bits nonce space is split into equal ranges, one for each worker thread.
+ * A worker rolls the time of its own template when its range is exhausted,
+ * thus no two workers ever try the same (nTime, nNonce) pair.
+ *
+ * The miner listens to the chain tip, a round upon an old tip is cancelled as soon as a new tip is published.
  */
 @Component("Miner")
 public class Miner {
     private static Logger logger = LoggerFactory.getLogger(Miner.class);
+    private static final long NONCE_SPACE = 0x100000000L;
+    private static final int HASHES_PER_REPORT = 0x10000; // check clock and publish counters every 64k hashes
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long TIP_POLL_MILLIS = 100;
 
     private BlockChain blockChain;
     private PeerGroup peerGroup;
     private boolean working;
+    private final int threads; // number of worker threads
 
     private MinerThread miner;
+    private ExecutorService workerPool;
+    private final MinerWorker[] workers;
+    private volatile MiningRound round; // the current round, cancelled by a new chain tip
 
-    @Autowired
     public Miner(BlockChain blockChain, PeerGroup peerGroup) {
+        this(blockChain, peerGroup, 0);
+    }
+
+    /**
+     * @param threads number of mining threads, use all available processors if not positive
+     */
+    @Autowired
+    public Miner(BlockChain blockChain, PeerGroup peerGroup, @Value("${mycoin.miner.threads:0}") int threads) {
         this.blockChain = blockChain;
         this.peerGroup = peerGroup;
         this.working = false;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.workers = new MinerWorker[this.threads];
+        for (int i = 0; i < this.threads; i++) {
+            workers[i] = new MinerWorker(i);
+        }
+        blockChain.addChainTipListener(state -> {
+            MiningRound current = round;
+            if (current != null && current.tipVersion != state.getVersion()) {
+                current.cancel();
+            }
+        });
     }
 
     /**
@@ -43,9 +82,10 @@ public class Miner {
     public synchronized void run() {
         if (!isWorking()) {
             this.working = true;
+            this.workerPool = Executors.newFixedThreadPool(threads, new MinerThreadFactory());
             this.miner = new MinerThread();
             miner.start();
-            logger.info("Start mining block");
+            logger.info("Start mining block with {} threads", threads);
         }
     }
 
@@ -56,6 +96,8 @@ public class Miner {
         if (isWorking()) {
             this.working = false;
             this.miner = null; // finalize the miner
+            this.workerPool.shutdown(); // workers leave once the current round is cancelled
+            this.workerPool = null;
             logger.info("Stop mining block.");
         }
     }
@@ -64,22 +106,60 @@ public class Miner {
         return this.working;
     }
 
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * get the hash rate of every worker thread in hash/sec
+     */
+    public double[] getThreadHashRates() {
+        double[] rates = new double[threads];
+        for (int i = 0; i < threads; i++) {
+            rates[i] = workers[i].hashRate;
+        }
+        return rates;
+    }
+
+    /**
+     * get the aggregate hash rate of all worker threads in hash/sec
+     */
+    public double getHashRate() {
+        double rate = 0;
+        for (MinerWorker worker : workers) {
+            rate += worker.hashRate;
+        }
+        return rate;
+    }
+
+    /**
+     * get the number of hashes tried since the miner is created
+     */
+    public long getTotalHashes() {
+        long hashes = 0;
+        for (MinerWorker worker : workers) {
+            hashes += worker.hashes;
+        }
+        return hashes;
+    }
+
     /**
      * When a block is mined 1. add to the block chain 2. broadcast the inv to all
      * peers
+     * the block is added through the block pipeline like a received one, thus the chain has a single writer
      */
-    private void handleBlockMined(Block block) {
+    private void handleBlockMined(Block block) throws InterruptedException {
         logger.info("New block is mined: {}", block);
         try {
-            blockChain.add(block);
+            peerGroup.getBlockPipeline().submit(block, OrphanBlockPool.LOCAL).get();
             peerGroup.broadcastBlockInv(new Inv(Inv.InvType.MSG_BLOCK, block.getHash()));
-        } catch (VerificationException e) {
-            // impossible, thus the block is mined after verification
-            throw new RuntimeException(e);
-        } catch (BlockPersistenceException e) {
-            // database has some problem
-            logger.error("Error when adding block into chain.");
-            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BlockPersistenceException) {
+                // database has some problem
+                logger.error("Error when adding block into chain.");
+            }
+            // a VerificationException is impossible, thus the block is mined after verification
+            throw new RuntimeException(e.getCause());
         } catch (IOException e) {
             logger.error("Error while broadcast new mined block inv to peers.");
         }
@@ -88,12 +168,54 @@ public class Miner {
     /**
      * create a block template for mining with nTime and nNonce unset
      */
-    private Block createBlockTemplate(StoredBlock prevBlock) throws ProtocolException, BlockPersistenceException {
+    private Block createBlockTemplate(StoredBlock prevBlock) throws VerificationException {
         return new Block(
-                new BlockHead(prevBlock.getBlock().getHash(), -1, StoredBlock.getNextnBits(prevBlock, blockChain.getBlockPersistence()), 0)
+                new BlockHead(prevBlock.getBlock().getHash(), -1, blockChain.getNextnBits(prevBlock), 0)
         );
     }
 
+    /**
+     * One round of mining upon a chain tip, shared by all workers.
+     * The round is finished once a worker solves it or it is cancelled,
+     * every worker checks the finished flag before each attempt.
+     */
+    private static class MiningRound {
+        private final Block template;
+        private final long tipVersion; // version of the chain state the template is built upon
+        private final AtomicBoolean solved = new AtomicBoolean(false);
+        private final CountDownLatch workersLeft;
+        private volatile boolean finished = false;
+        private volatile Block solution;
+        private volatile Exception error;
+
+        MiningRound(Block template, long tipVersion, int workers) {
+            this.template = template;
+            this.tipVersion = tipVersion;
+            this.workersLeft = new CountDownLatch(workers);
+        }
+
+        /** only the first solution is taken, the others are dropped */
+        void solve(Block block) {
+            if (solved.compareAndSet(false, true)) {
+                solution = block;
+                finished = true;
+            }
+        }
+
+        void fail(Exception e) {
+            error = e;
+            finished = true;
+        }
+
+        void cancel() {
+            finished = true;
+        }
+
+        boolean isFinished() {
+            return finished;
+        }
+    }
+
     private class MinerThread extends Thread {
 
         public MinerThread() {
@@ -102,53 +224,146 @@ public class Miner {
             setDaemon(true);
         }
 
+        /** whether this thread is still the running miner, it may be replaced by stop() and run() */
+        private boolean isCurrent() {
+            synchronized (Miner.this) {
+                return working && miner == this;
+            }
+        }
+
         /**
          * while running:
          * 1. get the chainTip and construct next block template
-         * 2. set the nTime and nNonce
-         * 3. increment nNonce until 
-         *      a. nNonce is found -- add the new block to blockchain and broadcast the Inv
-         *      b. nNonce is overflow -- update the time field, go to step 1 and continue
-         *      c. chainTip is updated -- a new chainTip is received, go to step 1 and continue
+         * 2. set the nTime and dispatch the template to all workers
+         * 3. wait until
+         *      a. nNonce is found by a worker -- add the new block to blockchain and broadcast the Inv
+         *      b. chainTip is updated -- the round is cancelled by the tip listener, go to step 1 and continue
          */
         @Override
         public void run() {
             try {
-                while (isWorking()) {
-                    StoredBlock prevChainTip = blockChain.getChainTip();
-                    Block template = createBlockTemplate(prevChainTip);
-                    long now = System.currentTimeMillis()/1000;
-                    template.setnTime(now); // TODO in decenteralized system, the time need to be set smarter
+                while (isCurrent()) {
+                    ChainState state = blockChain.getChainState();
+                    Block template = createBlockTemplate(state.getTip());
+                    template.setnTime(System.currentTimeMillis()/1000); // TODO in decenteralized system, the time need to be set smarter
                     template.setnNonce(0);
-                    while (isWorking()) {
-                        SHA256Hash hash = new SHA256Hash(Utils.reverseBytes(Utils.doubleDigest(Utils.objectsToByteArray((BlockHead)template))));
-                        BigInteger target = template.getnBitsAsInteger();
-                        BigInteger current = hash.toBigInteger();
-                        if (current.compareTo(target) <= 0) {
-                            // available nNonce is found
-                            handleBlockMined(template);
-                            break;
+
+                    MiningRound round = new MiningRound(template, state.getVersion(), threads);
+                    Miner.this.round = round;
+                    if (blockChain.getChainState().getVersion() != round.tipVersion) {
+                        continue; // the tip changed before the round is visible to the listener
+                    }
+                    ExecutorService pool;
+                    synchronized (Miner.this) {
+                        if (!isCurrent()) {
+                            break; // stopped while creating template
                         }
+                        pool = workerPool;
+                        for (MinerWorker worker : workers) {
+                            pool.execute(() -> worker.mine(round));
+                        }
+                    }
 
-                        long nonce = template.getnNonce();
-                        if (nonce + 1 > 0xFFFFFFFFL) {
-                            logger.info("Nonce overflow, reset block time.");
-                            break;
+                    while (!round.workersLeft.await(TIP_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (!isCurrent()) {
+                            // stopped
+                            round.cancel();
                         }
-                        if (!prevChainTip.equals(blockChain.getChainTip())) {
-                            // chainTip is updated
+                    }
+                    if (round.error != null) {
+                        throw round.error;
+                    }
+                    if (round.solution != null) {
+                        handleBlockMined(round.solution);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Error in when mining, start shutdown miner. {}", e);
+                synchronized (Miner.this) {
+                    if (isCurrent()) {
+                        Miner.this.stop();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A worker owns a nonce range, its own copy of the template and its own hasher.
+     * Counters are written by the worker only and read by anyone.
+     */
+    private class MinerWorker {
+        private final int index;
+        private final long nonceStart;
+        private final long nonceEnd; // inclusive
+
+        private volatile long hashes = 0; // hashes tried since the miner is created
+        private volatile double hashRate = 0; // hash/sec in the last window
+
+        MinerWorker(int index) {
+            this.index = index;
+            this.nonceStart = NONCE_SPACE * index / threads;
+            this.nonceEnd = NONCE_SPACE * (index + 1) / threads - 1;
+        }
+
+        void mine(MiningRound round) {
+            try {
+                Block template = new Block(round.template);
+                PowTarget target = template.getTarget(); // decoded once for the whole round
+                byte[] digest = new byte[SHA256Hash.SIZE];
+                long windowStart = System.nanoTime();
+                long windowHashes = 0;
+                int sinceReport = 0;
+                while (!round.isFinished()) {
+                    BlockHeadHasher hasher = new BlockHeadHasher(template, template.getHeaderHashVersion(blockChain.getParams()));
+                    for (long nonce = nonceStart; nonce <= nonceEnd && !round.isFinished(); nonce++) {
+                        hasher.setNonce(nonce);
+                        hasher.digest(digest);
+                        if (target.isMetByDigest(digest, 0)) {
+                            // available nNonce is found
+                            template.setnNonce(nonce);
+                            round.solve(template);
                             break;
                         }
-                        template.setnNonce(nonce + 1);
-                        if ((nonce + 1) % 0x00FFFFFFL == 0) {
-                            logger.info("Hash rate: {} hash/sec", nonce / ((System.currentTimeMillis()/1000 - now)));
+                        if (++sinceReport == HASHES_PER_REPORT) {
+                            hashes += sinceReport;
+                            windowHashes += sinceReport;
+                            sinceReport = 0;
+                            long elapsed = System.nanoTime() - windowStart;
+                            if (elapsed >= RATE_WINDOW_NANOS) {
+                                hashRate = windowHashes * 1e9 / elapsed;
+                                windowStart += elapsed;
+                                windowHashes = 0;
+                            }
                         }
                     }
+                    if (!round.isFinished()) {
+                        // nonce range is exhausted, roll the time of this worker's template
+                        template.setnTime(template.getnTime() + 1);
+                        logger.debug("Nonce range of worker {} overflow, roll block time to {}.", index, template.getnTime());
+                    }
                 }
+                hashes += sinceReport;
             } catch (Exception e) {
-                logger.error("Error in when mining, start shutdown miner. {}", e);
-                Miner.this.stop();
+                round.fail(e);
+            } finally {
+                if (!isWorking()) {
+                    hashRate = 0;
+                }
+                round.workersLeft.countDown();
             }
         }
     }
+
+    private static class MinerThreadFactory implements ThreadFactory {
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Miner Worker-" + threadNumber.getAndIncrement());
+            t.setPriority(Math.max(Thread.MIN_PRIORITY, Thread.currentThread().getPriority() - 1));
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
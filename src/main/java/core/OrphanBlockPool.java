@@ -0,0 +1,230 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/1
+ */
+package core;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blocks whose previous block is unknown yet, kept until the previous block is connected.
+ *
+ * Orphans are indexed by the previous block hash, so connecting a block takes exactly its children.
+ * The pool is bounded by number of blocks and memory. When it is full, the oldest orphan of the peer
+ * holding the most orphans is evicted, thus a single peer sending junk can not push out the orphans of others.
+ * Orphans older than the expiry are dropped anyway.
+ */
+@Component("OrphanBlockPool")
+public class OrphanBlockPool {
+    /** estimated memory of an orphan, the header and hash plus the objects and map entries holding them */
+    public static final int ORPHAN_BYTES = BlockHead.BLOCK_HEAD_SIZE + SHA256Hash.SIZE + 176;
+    /** source of the blocks not received from a peer */
+    public static final String LOCAL = "local";
+
+    private final int maxBlocks;
+    private final long maxBytes;
+    private final long expiryNanos;
+
+    private static final class Orphan {
+        final Block block;
+        final String source;
+        final long time; // System.nanoTime() when it is added
+
+        Orphan(Block block, String source, long time) {
+            this.block = block;
+            this.source = source;
+            this.time = time;
+        }
+    }
+
+    /** in the order of arrival, the oldest first */
+    private final LinkedHashMap<SHA256Hash, Orphan> orphans = new LinkedHashMap<>();
+    private final Map<SHA256Hash, List<Orphan>> byPrev = new HashMap<>();
+    private final Map<String, Integer> bySource = new HashMap<>();
+
+    // metrics
+    private long added;
+    private long resolved;
+    private long evicted;
+    private long expired;
+    private long resolveNanos;
+    private long maxResolveNanos;
+
+    /**
+     * @param maxBlocks max number of orphans
+     * @param maxBytes max estimated memory of orphans, no limit if not positive
+     * @param expirySeconds orphans are dropped after it, never if not positive
+     */
+    @Autowired
+    public OrphanBlockPool(@Value("${mycoin.orphan.blocks:750}") int maxBlocks,
+                           @Value("${mycoin.orphan.bytes:0}") long maxBytes,
+                           @Value("${mycoin.orphan.expiry:1200}") int expirySeconds) {
+        if (maxBlocks <= 0) {
+            throw new IllegalArgumentException("Max number of orphan blocks must be positive: " + maxBlocks);
+        }
+        this.maxBlocks = maxBlocks;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.expiryNanos = expirySeconds > 0 ? expirySeconds * 1_000_000_000L : Long.MAX_VALUE;
+    }
+
+    /** a pool of the default limits */
+    public OrphanBlockPool() {
+        this(750, 0, 1200);
+    }
+
+    /**
+     * add an orphan received from the source, old orphans are expired and the pool is trimmed to its limits
+     * @return false if it is in the pool already
+     */
+    public synchronized boolean add(Block block, String source) {
+        SHA256Hash hash = block.getHash();
+        if (orphans.containsKey(hash)) {
+            return false;
+        }
+        long now = System.nanoTime();
+        expire(now);
+        Orphan orphan = new Orphan(block, source == null ? LOCAL : source, now);
+        orphans.put(hash, orphan);
+        byPrev.computeIfAbsent(block.getHashPrevBlock(), k -> new ArrayList<>(1)).add(orphan);
+        bySource.merge(orphan.source, 1, Integer::sum);
+        added++;
+        while (orphans.size() > maxBlocks || getBytes() > maxBytes) {
+            evict();
+        }
+        return true;
+    }
+
+    /**
+     * remove the orphans whose previous block is the given one
+     * @return the children in the order of arrival, empty if there is none
+     */
+    public synchronized List<Block> takeChildren(SHA256Hash prev) {
+        List<Orphan> children = byPrev.remove(prev);
+        if (children == null) {
+            return Collections.emptyList();
+        }
+        long now = System.nanoTime();
+        List<Block> blocks = new ArrayList<>(children.size());
+        for (Orphan orphan : children) {
+            orphans.remove(orphan.block.getHash());
+            release(orphan.source);
+            long latency = now - orphan.time;
+            resolveNanos += latency;
+            maxResolveNanos = Math.max(maxResolveNanos, latency);
+            resolved++;
+            blocks.add(orphan.block);
+        }
+        return blocks;
+    }
+
+    public synchronized boolean contains(SHA256Hash hash) {
+        return orphans.containsKey(hash);
+    }
+
+    /** drop orphans older than the expiry */
+    private void expire(long now) {
+        Iterator<Orphan> it = orphans.values().iterator();
+        while (it.hasNext()) {
+            Orphan orphan = it.next();
+            if (now - orphan.time <= expiryNanos) {
+                break; // the rest are younger
+            }
+            it.remove();
+            unlink(orphan);
+            expired++;
+        }
+    }
+
+    /** drop the oldest orphan of the source holding the most */
+    private void evict() {
+        String heaviest = null;
+        int most = 0;
+        for (Map.Entry<String, Integer> entry : bySource.entrySet()) {
+            if (entry.getValue() > most) {
+                heaviest = entry.getKey();
+                most = entry.getValue();
+            }
+        }
+        Iterator<Orphan> it = orphans.values().iterator();
+        while (it.hasNext()) {
+            Orphan orphan = it.next();
+            if (orphan.source.equals(heaviest)) {
+                it.remove();
+                unlink(orphan);
+                evicted++;
+                return;
+            }
+        }
+    }
+
+    /** remove the orphan from the indexes other than orphans */
+    private void unlink(Orphan orphan) {
+        SHA256Hash prev = orphan.block.getHashPrevBlock();
+        List<Orphan> siblings = byPrev.get(prev);
+        siblings.remove(orphan);
+        if (siblings.isEmpty()) {
+            byPrev.remove(prev);
+        }
+        release(orphan.source);
+    }
+
+    private void release(String source) {
+        bySource.computeIfPresent(source, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public synchronized int size() {
+        return orphans.size();
+    }
+
+    /** estimated memory of the orphans */
+    public synchronized long getBytes() {
+        return (long) orphans.size() * ORPHAN_BYTES;
+    }
+
+    /** number of orphans received from the source */
+    public synchronized int getCount(String source) {
+        return bySource.getOrDefault(source, 0);
+    }
+
+    public synchronized long getAdded() {
+        return added;
+    }
+
+    /** number of orphans connected after their previous block */
+    public synchronized long getResolved() {
+        return resolved;
+    }
+
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    /** mean time from being added until connected, in milliseconds */
+    public synchronized double getMeanResolveMillis() {
+        return resolved == 0 ? 0 : resolveNanos / 1e6 / resolved;
+    }
+
+    public synchronized double getMaxResolveMillis() {
+        return maxResolveNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d orphans in %d bytes from %d peers, %d added, %d resolved in %.1f ms on average, %d evicted, %d expired",
+                size(), getBytes(), bySource.size(), added, resolved, getMeanResolveMillis(), evicted, expired);
+    }
+}
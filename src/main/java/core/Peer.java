@@ -14,7 +14,6 @@ import net.PeerAddress;
 import net.TCPNetworkConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import persistence.BlockPersistence;
 import utils.EventListenerInvoker;
 
 import java.io.ByteArrayOutputStream;
@@ -39,6 +38,7 @@ public class Peer {
     private boolean running;
     private PeerAddress address;
     private final BlockChain blockChain;
+    private final BlockPipeline blockPipeline;
     private final NetworkParameters params;
 
     private Set<Inv> invKonwn = new HashSet<>();
@@ -50,8 +50,9 @@ public class Peer {
     /**
      * construct a peer that uses peer address, then call connect() to connect to it
      */
-    public Peer(PeerAddress address, BlockChain blockChain, NetworkParameters params) {
-        this.blockChain = blockChain;
+    public Peer(PeerAddress address, BlockPipeline blockPipeline, NetworkParameters params) {
+        this.blockChain = blockPipeline.getBlockChain();
+        this.blockPipeline = blockPipeline;
         this.address = address;
         this.params = params;
         this.inBound = false; // this construction means this connection is outBound
@@ -61,8 +62,8 @@ public class Peer {
     /**
      * Construct a peer that uses the given, already connected network connection object.
      */
-    public Peer(BlockChain blockChain, NetworkConnection connection, NetworkParameters params) {
-        this(null, blockChain, params);
+    public Peer(BlockPipeline blockPipeline, NetworkConnection connection, NetworkParameters params) {
+        this(null, blockPipeline, params);
         this.connection = connection;
         this.inBound = true; // this construction means this connection is inBound
         this.address = connection.getPeerAddress();
@@ -187,17 +188,34 @@ public class Peer {
         sendMessage(getDataMessage);
     }
 
-    private void processBlockMessage(Message msg) throws IOException, ClassNotFoundException, PeerException, BlockPersistenceException {
+    /**
+     * the block is verified and connected by the pipeline, the peer goes on reading meanwhile
+     * the result is handled on the connecting thread
+     */
+    private void processBlockMessage(Message msg) throws IOException, ClassNotFoundException {
         Block block = msg.getPayloadAsBlock();
         logger.debug("Received block message containing {}", block);
         try {
-            if (blockChain.add(block)) {
-                invokeOnBlocksDownloaded(block);
-            } else {
-                blocksDownload(block.getHash());
-            }
-        } catch (VerificationException e) {
-            logger.warn("Block validate failure, {}", block);
+            blockPipeline.submit(block, toString()).whenComplete((added, e) -> {
+                try {
+                    if (e == null) {
+                        if (added) {
+                            invokeOnBlocksDownloaded(block);
+                        } else {
+                            blocksDownload(block.getHash());
+                        }
+                    } else if (e.getCause() instanceof VerificationException) {
+                        logger.warn("Block validate failure, {}", block);
+                    } else {
+                        logger.error("Fail to add block {}", block.getHash(), e.getCause());
+                    }
+                } catch (IOException | PeerException ex) {
+                    logger.warn("Fail to handle block {} from {}", block.getHash(), this, ex);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while submitting block " + block.getHash(), e);
         }
     }
 
@@ -206,25 +224,30 @@ public class Peer {
         Object[] obj = msg.getPayloadAsLocatorAndHash();
         SHA256Hash[] locator = (SHA256Hash[]) obj[0];
         SHA256Hash hashStop = (SHA256Hash) obj[1];
-        StoredBlock locatedBlock = null;
+        HeaderIndex headers = blockChain.getHeaderIndex();
+        ChainState state = blockChain.getChainState(); // served from one snapshot while blocks are being added
+        int located = HeaderIndex.NONE;
         for (SHA256Hash hash : locator) {
             // find the block where we first have
-            if (blockChain.isMainBlock(hash)) {
-                locatedBlock = blockChain.getBlockPersistence().get(hash);
+            int slot = headers.slotOf(hash);
+            if (state.isMain(headers, slot)) {
+                located = slot;
                 break;
             }
         }
         // send inv message with block's hash from locator to hashStop
-        assert locatedBlock != null;
-        StoredBlock cursor = locatedBlock.getNextBlock(blockChain.getBlockPersistence());
+        assert located != HeaderIndex.NONE;
         List<Inv> invs = new ArrayList<>();
-        while(cursor != null && !cursor.getBlock().getHash().equals(hashStop)) {
-            invs.add(new Inv(Inv.InvType.MSG_BLOCK, cursor.getBlock().getHash())); 
+        for (int height = headers.getHeight(located) + 1, slot; (slot = state.getMainSlot(headers, height)) != HeaderIndex.NONE; height++) {
+            SHA256Hash hash = headers.getHash(slot);
+            if (hash.equals(hashStop)) {
+                break;
+            }
+            invs.add(new Inv(Inv.InvType.MSG_BLOCK, hash));
             if (invs.size() >= 500) {
                 sendMessage(createInvMessage(invs)); // limit size if inv message
                 invs.clear();
             }
-            cursor = cursor.getNextBlock(blockChain.getBlockPersistence());
         }
         if (!invs.isEmpty()) {
             sendMessage(createInvMessage(invs));
@@ -330,23 +353,18 @@ public class Peer {
      */
     private void blocksDownload(SHA256Hash hashStop) throws IOException {
         logger.info("blocksDownload({}", hashStop.toString());
-        BlockPersistence source = blockChain.getBlockPersistence();
-        StoredBlock cursor = blockChain.getChainTip();
+        HeaderIndex headers = blockChain.getHeaderIndex();
+        ChainState state = blockChain.getChainState();
+        int height = state.getHeight();
         /**
          * Construct block locator which indicate the top 50 blocks and the genesis block
          * It means that we assume that the block difference is less than 50
          */
         List<SHA256Hash> blockLocator = new ArrayList<>(51);
-        for (int i = 50; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getBlock().getHash());
-            try {
-                cursor = cursor.getPreviousBlock(source);
-            } catch (BlockPersistenceException e) {
-                logger.error("Fail to trace the block chain while constructing a locator.");
-                throw new RuntimeException(e);
-            }
+        for (int h = height, slot; h >= Math.max(height - 49, 0) && (slot = state.getMainSlot(headers, h)) != HeaderIndex.NONE; h--) {
+            blockLocator.add(headers.getHash(slot));
         }
-        if (cursor != null) {
+        if (height >= 50) {
             blockLocator.add(params.genesisBlock.getHash());
         }
 
@@ -360,7 +378,7 @@ public class Peer {
 
     private Message createVersionMessage() throws IOException {
         Message versionMessage = new Message(MessageHeader.VERSION, 0, null);
-        byte[] payload = Utils.objectsToByteArray(blockChain.chainTip.getHeight());
+        byte[] payload = Utils.objectsToByteArray(blockChain.getChainHeight());
         versionMessage.setMessageSize(payload.length);
         versionMessage.setPayload(payload);
         return versionMessage;
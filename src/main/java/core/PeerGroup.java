@@ -40,6 +40,7 @@ public class PeerGroup {
     private Set<Peer> peers; // connected peers
     private Peer downloadPeer; // the peer where we
     private BlockChain blockchain;
+    private final BlockPipeline blockPipeline;
     private boolean running;
     private ThreadPoolExecutor peerPool; // thread pool for peers
     private PeerGroupThread peerGroupThread;
@@ -47,9 +48,14 @@ public class PeerGroup {
     private List<PeerEventListener> peerEventListeners;
     private PeerEventListener downloadListener;
 
-    @Autowired
     public PeerGroup(BlockChain chain, NetworkParameters params) throws IOException {
-        this.blockchain = chain;
+        this(new BlockPipeline(chain, 0), params);
+    }
+
+    @Autowired
+    public PeerGroup(BlockPipeline blockPipeline, NetworkParameters params) throws IOException {
+        this.blockchain = blockPipeline.getBlockChain();
+        this.blockPipeline = blockPipeline;
         this.params = params;
         this.peers = Collections.synchronizedSet(new HashSet<>());
         this.peerEventListeners = new ArrayList<>();
@@ -155,6 +161,10 @@ public class PeerGroup {
         }
     }
 
+    public BlockPipeline getBlockPipeline() {
+        return blockPipeline;
+    }
+
     public synchronized boolean isRunning() {
         return running;
     }
@@ -358,7 +368,7 @@ public class PeerGroup {
             try {
                 while (isRunning()) {
                     Socket socket = serverSocket.accept(); // block here to wait for a new inbound connection
-                    Peer peer = new Peer(blockchain, new TCPNetworkConnection(socket), params);
+                    Peer peer = new Peer(blockPipeline, new TCPNetworkConnection(socket), params);
                     runNewPeer(peer, false);
                 }
             } catch (IOException e) {
@@ -0,0 +1,246 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/22
+ */
+package core;
+
+import exception.VerificationException;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+
+/**
+ * A 256 bits unsigned proof of work target held in four longs, w0 is the most significant word.
+ * It is decoded once from the compact nBits, then a hash is checked against it
+ * by an unsigned word-wise comparison which allocates nothing.
+ */
+public final class PowTarget implements Comparable<PowTarget>, Serializable {
+    private static final long serialVersionUID = 6180357428916447723L;
+    /** the largest value, 2^256 - 1 */
+    public static final PowTarget MAX = new PowTarget(-1L, -1L, -1L, -1L);
+
+    private final long w0, w1, w2, w3;
+
+    private PowTarget(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * decode the compact nBits, the same as {@link Utils#decodeCompactBits(long)}
+     * a value over 256 bits is saturated to {@link #MAX}
+     * @throws VerificationException if the target is not positive
+     */
+    public static PowTarget decodeCompact(long compact) throws VerificationException {
+        int size = (int) (compact >>> 24) & 0xFF;
+        long mantissa = compact & 0x007FFFFFL;
+        if (size == 0 || (compact & 0x00800000L) != 0 || mantissa == 0) {
+            throw new VerificationException("nBits is error: " + Long.toHexString(compact));
+        }
+        if (size <= 3) {
+            mantissa >>>= 8 * (3 - size);
+            if (mantissa == 0) {
+                throw new VerificationException("nBits is error: " + Long.toHexString(compact));
+            }
+            return new PowTarget(0, 0, 0, mantissa);
+        }
+        int shift = 8 * (size - 3);
+        if (64 - Long.numberOfLeadingZeros(mantissa) + shift > 256) {
+            return MAX;
+        }
+        return new PowTarget(shiftedWord(mantissa, shift, 3), shiftedWord(mantissa, shift, 2),
+                shiftedWord(mantissa, shift, 1), shiftedWord(mantissa, shift, 0));
+    }
+
+    /** the index-th 64 bits word (0 is the least significant) of value << shift */
+    private static long shiftedWord(long value, int shift, int index) {
+        int low = 64 * index;
+        if (shift >= low) {
+            return shift - low < 64 ? value << (shift - low) : 0;
+        }
+        return low - shift < 64 ? value >>> (low - shift) : 0;
+    }
+
+    /**
+     * convert a non-negative integer, a value over 256 bits is saturated to {@link #MAX}
+     */
+    public static PowTarget fromBigInteger(BigInteger value) {
+        if (value.signum() < 0) {
+            throw new IllegalArgumentException("Negative target: " + value);
+        }
+        if (value.bitLength() > 256) {
+            return MAX;
+        }
+        return new PowTarget(value.shiftRight(192).longValue(), value.shiftRight(128).longValue(),
+                value.shiftRight(64).longValue(), value.longValue());
+    }
+
+    /**
+     * this * num / den truncated, e.g. the retarget scales the target by the actual over the expected timespan
+     * it is computed on 32 bits limbs, a result over 256 bits is saturated to {@link #MAX}
+     * @param num in [0, 2^31)
+     * @param den in (0, 2^31)
+     */
+    public PowTarget multiplyDivide(long num, long den) {
+        if (num < 0 || num > Integer.MAX_VALUE || den <= 0 || den > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Out of range: " + num + " / " + den);
+        }
+        long[] words = {w3, w2, w1, w0};
+        long[] limbs = new long[9]; // the least significant first, the last one takes the overflow of the product
+        long carry = 0;
+        for (int i = 0; i < 8; i++) {
+            long product = ((words[i / 2] >>> (32 * (i % 2))) & 0xFFFFFFFFL) * num + carry; // < 2^63
+            limbs[i] = product & 0xFFFFFFFFL;
+            carry = product >>> 32;
+        }
+        limbs[8] = carry;
+        long remainder = 0;
+        for (int i = 8; i >= 0; i--) {
+            long current = remainder << 32 | limbs[i]; // remainder < den < 2^31
+            limbs[i] = current / den;
+            remainder = current % den;
+        }
+        if (limbs[8] != 0) {
+            return MAX;
+        }
+        return new PowTarget(limbs[7] << 32 | limbs[6], limbs[5] << 32 | limbs[4], limbs[3] << 32 | limbs[2], limbs[1] << 32 | limbs[0]);
+    }
+
+    /** number of significant bits */
+    public int bitLength() {
+        if (w0 != 0) {
+            return 256 - Long.numberOfLeadingZeros(w0);
+        } else if (w1 != 0) {
+            return 192 - Long.numberOfLeadingZeros(w1);
+        } else if (w2 != 0) {
+            return 128 - Long.numberOfLeadingZeros(w2);
+        }
+        return 64 - Long.numberOfLeadingZeros(w3);
+    }
+
+    /** the low 64 bits of this >>> shift */
+    private long shiftRight(int shift) {
+        long[] words = {w3, w2, w1, w0};
+        int index = shift / 64, bits = shift % 64;
+        long low = index < 4 ? words[index] >>> bits : 0;
+        if (bits != 0 && index + 1 < 4) {
+            low |= words[index + 1] << (64 - bits);
+        }
+        return low;
+    }
+
+    /**
+     * encode the positive target into compact nBits, the same as {@link Utils#encodeCompactBits(BigInteger)}
+     */
+    public long encodeCompact() {
+        int size = (bitLength() + 7) / 8;
+        long mantissa = size <= 3 ? w3 << 8 * (3 - size) : shiftRight(8 * (size - 3)) & 0xFFFFFFL;
+        // The 0x00800000 bit denotes the sign, thus if it is set, divide the mantissa by 256 and increase the exponent.
+        if ((mantissa & 0x00800000L) != 0) {
+            mantissa >>>= 8;
+            size++;
+        }
+        return (long) size << 24 | mantissa;
+    }
+
+    public BigInteger toBigInteger() {
+        BigInteger value = BigInteger.ZERO;
+        for (long w : new long[]{w0, w1, w2, w3}) {
+            value = value.shiftLeft(64).or(new BigInteger(Long.toUnsignedString(w)));
+        }
+        return value;
+    }
+
+    /**
+     * whether the raw output of a double SHA-256 meets the target
+     * the digest is read as a little-endian number, the same as {@link Block#getHash()} reverses it
+     * @param digest the digest buffer
+     * @param offset begin offset of the 32 bytes digest
+     * @return true if digest <= target
+     */
+    public boolean isMetByDigest(byte[] digest, int offset) {
+        int c = Long.compareUnsigned(readLE(digest, offset + 24), w0);
+        if (c == 0) {
+            c = Long.compareUnsigned(readLE(digest, offset + 16), w1);
+            if (c == 0) {
+                c = Long.compareUnsigned(readLE(digest, offset + 8), w2);
+                if (c == 0) {
+                    c = Long.compareUnsigned(readLE(digest, offset), w3);
+                }
+            }
+        }
+        return c <= 0;
+    }
+
+    /**
+     * whether a block hash meets the target
+     * @param hash big-endian hash, see {@link SHA256Hash#toBigInteger()}
+     * @return true if hash <= target
+     */
+    public boolean isMetByHash(SHA256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        int c = Long.compareUnsigned(readBE(bytes, 0), w0);
+        if (c == 0) {
+            c = Long.compareUnsigned(readBE(bytes, 8), w1);
+            if (c == 0) {
+                c = Long.compareUnsigned(readBE(bytes, 16), w2);
+                if (c == 0) {
+                    c = Long.compareUnsigned(readBE(bytes, 24), w3);
+                }
+            }
+        }
+        return c <= 0;
+    }
+
+    private static long readLE(byte[] bytes, int offset) {
+        long v = 0;
+        for (int i = 7; i >= 0; i--) {
+            v = v << 8 | (bytes[offset + i] & 0xFFL);
+        }
+        return v;
+    }
+
+    private static long readBE(byte[] bytes, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = v << 8 | (bytes[offset + i] & 0xFFL);
+        }
+        return v;
+    }
+
+    @Override
+    public int compareTo(PowTarget o) {
+        int c = Long.compareUnsigned(w0, o.w0);
+        if (c == 0) {
+            c = Long.compareUnsigned(w1, o.w1);
+            if (c == 0) {
+                c = Long.compareUnsigned(w2, o.w2);
+                if (c == 0) {
+                    c = Long.compareUnsigned(w3, o.w3);
+                }
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PowTarget)) {
+            return false;
+        }
+        PowTarget other = (PowTarget) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(w0) ^ Long.hashCode(w1) ^ Long.hashCode(w2) ^ Long.hashCode(w3);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x%016x%016x", w0, w1, w2, w3);
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/21
+ */
+package core;
+
+import java.util.Arrays;
+
+/**
+ * SHA-256 for a message whose leading part stays the same between hashes, e.g. a header where only the nonce changes.
+ *
+ * The message is split at the variable offset:
+ * 1. all the 64 bytes blocks before the block holding the variable offset are compressed once (the midstate)
+ * 2. inside that block, the rounds fed only by constant words are run once as well
+ * 3. each hash only finishes the remaining rounds and blocks, and the second round of the double digest
+ *
+ * For the 44 bytes canonical header the whole message is one block and the nonce is word 10,
+ * thus 10 of the 64 rounds of the first compression are skipped for every nonce.
+ *
+ * The message is held in an internal padded buffer, see {@link #getBuffer()}.
+ * Not thread safe, results are written into caller buffers and nothing is allocated per hash.
+ */
+public class Sha256Midstate {
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int[] IV = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private final byte[] buffer; // message followed by SHA-256 padding
+    private final int length; // message length
+    private final int variableBlock; // offset of the block holding the first variable byte
+    private final int constantRounds; // rounds of variableBlock fed only by constant words
+
+    private final int[] midstate = new int[8]; // state before variableBlock
+    private final int[] roundState = new int[8]; // working variables after constantRounds of variableBlock
+    private final int[] w = new int[64]; // message schedule
+    private final int[] state = new int[8];
+    private final int[] work = new int[8]; // working variables of a full compression
+
+    /**
+     * @param message message to be hashed, it is copied
+     * @param length message length
+     * @param variableOffset the bytes before this offset never change, see {@link #getBuffer()}
+     */
+    public Sha256Midstate(byte[] message, int length, int variableOffset) {
+        if (variableOffset < 0 || variableOffset > length) {
+            throw new IllegalArgumentException("Variable offset out of message: " + variableOffset);
+        }
+        this.length = length;
+        int padded = (length + 9 + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        this.buffer = Arrays.copyOf(message, padded);
+        Arrays.fill(buffer, length, padded, (byte) 0);
+        buffer[length] = (byte) 0x80;
+        long bits = (long) length * 8;
+        for (int i = 0; i < 8; i++) {
+            buffer[padded - 1 - i] = (byte) (bits >>> (8 * i));
+        }
+
+        // variable bytes can't fall into padding, so the block is never beyond the last one
+        this.variableBlock = Math.min(variableOffset / BLOCK_SIZE * BLOCK_SIZE, padded - BLOCK_SIZE);
+        this.constantRounds = Math.min((variableOffset - variableBlock) / 4, 16);
+
+        System.arraycopy(IV, 0, midstate, 0, 8);
+        for (int offset = 0; offset < variableBlock; offset += BLOCK_SIZE) {
+            compress(midstate, buffer, offset);
+        }
+        System.arraycopy(midstate, 0, roundState, 0, 8);
+        loadWords(buffer, variableBlock, 0, constantRounds);
+        rounds(roundState, 0, constantRounds);
+    }
+
+    /**
+     * get the internal buffer, the message is at [0, length)
+     * only the bytes from variable offset to length can be changed between hashes
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * calculate SHA-256 of the message into out
+     * @param out buffer with at least 32 bytes after offset
+     * @param offset begin offset
+     */
+    public void digest(byte[] out, int offset) {
+        finishMessage();
+        writeState(out, offset);
+    }
+
+    /**
+     * calculate hash(hash(message)) into out, the same as {@link Utils#doubleDigest(byte[])}
+     * @param out buffer with at least 32 bytes after offset
+     * @param offset begin offset
+     */
+    public void doubleDigest(byte[] out, int offset) {
+        finishMessage();
+        // the first digest is 8 words, padded into a single block of 256 bits message
+        System.arraycopy(state, 0, w, 0, 8);
+        w[8] = 0x80000000;
+        Arrays.fill(w, 9, 15, 0);
+        w[15] = 256;
+        System.arraycopy(IV, 0, state, 0, 8);
+        compressWords(state);
+        writeState(out, offset);
+    }
+
+    /** hash the variable part of the message from the precomputed states into state */
+    private void finishMessage() {
+        // finish the rest rounds of the variable block, the schedule is reloaded as later blocks overwrite it
+        loadWords(buffer, variableBlock, 0, 16);
+        expand();
+        System.arraycopy(roundState, 0, state, 0, 8);
+        rounds(state, constantRounds, 64);
+        for (int i = 0; i < 8; i++) {
+            state[i] += midstate[i];
+        }
+        // then the blocks after it
+        for (int offset = variableBlock + BLOCK_SIZE; offset < buffer.length; offset += BLOCK_SIZE) {
+            compress(state, buffer, offset);
+        }
+    }
+
+    private void writeState(byte[] out, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int v = state[i];
+            out[offset + 4 * i] = (byte) (v >>> 24);
+            out[offset + 4 * i + 1] = (byte) (v >>> 16);
+            out[offset + 4 * i + 2] = (byte) (v >>> 8);
+            out[offset + 4 * i + 3] = (byte) v;
+        }
+    }
+
+    /** load big-endian words [from, to) of the block at offset into the schedule */
+    private void loadWords(byte[] data, int offset, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int p = offset + 4 * i;
+            w[i] = (data[p] & 0xFF) << 24 | (data[p + 1] & 0xFF) << 16 | (data[p + 2] & 0xFF) << 8 | (data[p + 3] & 0xFF);
+        }
+    }
+
+    private void expand() {
+        for (int i = 16; i < 64; i++) {
+            int w15 = w[i - 15];
+            int w2 = w[i - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+    }
+
+    /** compress the block at offset into h */
+    private void compress(int[] h, byte[] data, int offset) {
+        loadWords(data, offset, 0, 16);
+        compressWords(h);
+    }
+
+    /** compress the first 16 words of the schedule into h */
+    private void compressWords(int[] h) {
+        expand();
+        System.arraycopy(h, 0, work, 0, 8);
+        rounds(work, 0, 64);
+        for (int i = 0; i < 8; i++) {
+            h[i] += work[i];
+        }
+    }
+
+    /** run rounds [from, to) upon working variables v */
+    private void rounds(int[] v, int from, int to) {
+        int a = v[0], b = v[1], c = v[2], d = v[3], e = v[4], f = v[5], g = v[6], h = v[7];
+        for (int i = from; i < to; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + K[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        v[0] = a; v[1] = b; v[2] = c; v[3] = d; v[4] = e; v[5] = f; v[6] = g; v[7] = h;
+    }
+}
@@ -5,13 +5,10 @@
 package core;
 
 import exception.BlockPersistenceException;
-import exception.ProtocolException;
 import exception.VerificationException;
-import net.NetworkParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import persistence.BlockPersistence;
-import utils.SpringContextUtil;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -31,22 +28,38 @@ public class StoredBlock implements Serializable {
     private static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
 
     private Block block;
-    private BigInteger chainWork; // cumulative work from genesis block
+    private long chainWorkHigh; // cumulative work from genesis block, an unsigned 128 bits integer
+    private long chainWorkLow;
+    private transient BigInteger chainWork; // created on demand
     private int height; // height of the block in block chain from 0
     private SHA256Hash next; // next block's hash, the field of chainTip is 0
 
     public StoredBlock(Block block, BigInteger chainWork, int height, SHA256Hash next) {
+        if (chainWork.signum() < 0 || chainWork.bitLength() > 2 * Long.SIZE) {
+            throw new IllegalArgumentException("Chain work out of 128 bits: " + chainWork);
+        }
         this.block = block;
+        this.chainWorkHigh = chainWork.shiftRight(Long.SIZE).longValue();
+        this.chainWorkLow = chainWork.longValue();
         this.chainWork = chainWork;
         this.height = height;
         this.next = next;
     }
 
     public StoredBlock(Block block, BigInteger chainWork, int height) {
+        this(block, chainWork, height, SHA256Hash.ZERO_HASH);
+    }
+
+    /**
+     * @param chainWorkHigh high 64 bits of the chain work
+     * @param chainWorkLow low 64 bits of the chain work
+     */
+    public StoredBlock(Block block, long chainWorkHigh, long chainWorkLow, int height, SHA256Hash next) {
         this.block = block;
-        this.chainWork = chainWork;
+        this.chainWorkHigh = chainWorkHigh;
+        this.chainWorkLow = chainWorkLow;
         this.height = height;
-        this.next = SHA256Hash.ZERO_HASH;
+        this.next = next;
     }
 
     public Block getBlock() {
@@ -54,7 +67,21 @@ public class StoredBlock implements Serializable {
     }
 
     public BigInteger getChainWork() {
-        return chainWork;
+        BigInteger work = chainWork;
+        if (work == null) {
+            work = new BigInteger(Long.toUnsignedString(chainWorkHigh)).shiftLeft(Long.SIZE)
+                    .or(new BigInteger(Long.toUnsignedString(chainWorkLow)));
+            chainWork = work;
+        }
+        return work;
+    }
+
+    public long getChainWorkHigh() {
+        return chainWorkHigh;
+    }
+
+    public long getChainWorkLow() {
+        return chainWorkLow;
     }
 
     public int getHeight() {
@@ -71,7 +98,8 @@ public class StoredBlock implements Serializable {
 
     /** compare whether the block has more work than the other */
     public boolean moreWorkThan(StoredBlock other) {
-        return chainWork.compareTo(other.chainWork) > 0;
+        int c = Long.compareUnsigned(chainWorkHigh, other.chainWorkHigh);
+        return (c != 0 ? c : Long.compareUnsigned(chainWorkLow, other.chainWorkLow)) > 0;
     }
 
     @Override
@@ -80,12 +108,13 @@ public class StoredBlock implements Serializable {
             return false;
         }
         StoredBlock o = (StoredBlock)other;
-        return this.block.equals(o.getBlock()) && this.chainWork.equals(o.getChainWork()) && this.height == o.getHeight() && this.next.equals(o.getNext());
+        return this.block.equals(o.getBlock()) && this.chainWorkHigh == o.chainWorkHigh && this.chainWorkLow == o.chainWorkLow
+                && this.height == o.getHeight() && this.next.equals(o.getNext());
     }
 
     @Override
     public int hashCode() {
-        return block.hashCode() ^ chainWork.hashCode() ^ height ^ next.hashCode();
+        return block.hashCode() ^ Long.hashCode(chainWorkHigh) ^ Long.hashCode(chainWorkLow) ^ height ^ next.hashCode();
     }
 
     @Override
@@ -100,9 +129,15 @@ public class StoredBlock implements Serializable {
      * @throws VerificationException
      */
     public StoredBlock build(Block block) throws VerificationException {
-        BigInteger chainWork = this.chainWork.add(block.getWork());
+        BigInteger work = block.getWork();
+        long workHigh = work.shiftRight(Long.SIZE).longValue();
+        long low = chainWorkLow + work.longValue();
+        long high = chainWorkHigh + workHigh + (Long.compareUnsigned(low, chainWorkLow) < 0 ? 1 : 0); // carry
+        if (work.bitLength() > 2 * Long.SIZE || Long.compareUnsigned(high, chainWorkHigh) < 0) {
+            throw new VerificationException("Chain work overflows 128 bits");
+        }
         int height = this.height + 1;
-        return new StoredBlock(block, chainWork, height);
+        return new StoredBlock(block, high, low, height, SHA256Hash.ZERO_HASH);
     }
 
     /**
@@ -118,12 +153,34 @@ public class StoredBlock implements Serializable {
         return source.get(next);
     }
 
+    /**
+     * get the ancestor of this block at the height
+     * it is looked up by height if this block is in the main chain, otherwise it walks back
+     * @param height height of the ancestor, not greater than this block's
+     * @return the ancestor or null if not found
+     */
+    public StoredBlock getAncestor(BlockPersistence source, int height) throws BlockPersistenceException {
+        if (height > this.height || height < 0) {
+            return null;
+        }
+        StoredBlock mainBlock = source.getByHeight(this.height);
+        if (mainBlock != null && mainBlock.getBlock().getHash().equals(block.getHash())) {
+            return source.getByHeight(height);
+        }
+        StoredBlock cursor = this;
+        while (cursor != null && cursor.getHeight() > height) {
+            cursor = cursor.getPreviousBlock(source);
+        }
+        return cursor;
+    }
+
     /**
      * serialize the block into ByteBuffer
+     * it is the legacy format of LevelDBBlockPersistence, the stores use {@link persistence.StoredBlockCodec} now
      */
     public void serialize(ByteBuffer buf) throws IOException {
         buf.putInt(height);
-        byte[] chainWorkBytes = chainWork.toByteArray();
+        byte[] chainWorkBytes = getChainWork().toByteArray();
         /** chainWork use a constant 16 bytes to store, thus padding with 0 if necessary */
         if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
             buf.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
@@ -151,45 +208,4 @@ public class StoredBlock implements Serializable {
         return new StoredBlock(new Block(block), chainWork, height, hashNext);
     }
 
-    /**
-     * base the block, get the nBits of next block according difficulty adaption
-     */
-    public static long getNextnBits(StoredBlock prevBlock, BlockPersistence source) throws BlockPersistenceException, ProtocolException {
-        Block prev = prevBlock.getBlock();
-        int blocksInterval = ((NetworkParameters)(SpringContextUtil.getBean("network_params"))).interval;
-        // check interval
-        if ((prevBlock.getHeight() + 1) % blocksInterval != 0) {
-            return prev.getnBits();
-        }
-
-        logger.info("Changing difficulty.");
-        StoredBlock cursor = source.get(prev.getHash());
-        for (int i = 0; i < blocksInterval - 1; i++) {
-            if (cursor == null) {
-                throw new ProtocolException("Difficulty transition point but we dit not find a way back to genesis.");
-            }
-            cursor = source.get(cursor.getBlock().getHashPrevBlock());
-        }
-        Block intervalStart = cursor.getBlock();
-        int timespan = (int)(prev.getnTime() - intervalStart.getnTime());
-        int targetTimespan = ((NetworkParameters)(SpringContextUtil.getBean("network_params"))).targetTimespan;
-        // Limit the adjustment step.
-        if (timespan < targetTimespan / 4)
-            timespan = targetTimespan / 4;
-        if (timespan > targetTimespan * 4)
-            timespan = targetTimespan * 4;
-
-        BigInteger newnBits = Utils.decodeCompactBits(intervalStart.getnBits());
-        newnBits = newnBits.multiply(BigInteger.valueOf(timespan));
-        newnBits = newnBits.divide(BigInteger.valueOf(targetTimespan));
-
-        logger.info("New difficulty: {}", newnBits);
-
-        if (newnBits.compareTo(((NetworkParameters)(SpringContextUtil.getBean("network_params"))).proofOfWorkLimit) > 0) {
-            newnBits = ((NetworkParameters)(SpringContextUtil.getBean("network_params"))).proofOfWorkLimit;
-            logger.info("New difficulty over limit, reset to {}", newnBits);
-        }
-
-        return Utils.encodeCompactBits(newnBits);
-    }
 }
@@ -4,14 +4,20 @@
  */
 package core;
 
+import exception.BlockPersistenceException;
+import exception.ProtocolException;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -19,6 +25,11 @@ import java.util.Set;
 /**
  * A {@link Transaction} contains a list of inputs and outputs like bitcoin
  * It can be packaged into a block which means that the transaction is valid
+ *
+ * The canonical encoding is a varint count of inputs, the inputs, a varint count of outputs and the outputs,
+ * see {@link TransactionInput#serialize(ByteBuffer)} and {@link TransactionOutput#serialize(ByteBuffer)}.
+ * The hash is the double SHA-256 of it, computed once and dropped when an input or output is added or changed,
+ * the lists are read-only and the inputs and outputs report their changes to the transaction they are added to.
  */
 public class Transaction implements Serializable {
     private static final long serialVersionUID = 8875805052125612642L;
@@ -27,7 +38,7 @@ public class Transaction implements Serializable {
     private List<TransactionInput> inputs;
     private List<TransactionOutput> outputs;
 
-    /** hash of the transaction */
+    /** hash of the transaction, cached */
     transient private SHA256Hash hash;
     //TODO
     public Transaction() {
@@ -39,6 +50,7 @@ public class Transaction implements Serializable {
     public void setNull() {
         inputs.clear();
         outputs.clear();
+        hash = null;
     }
 
     public boolean isNull() {
@@ -96,9 +108,43 @@ public class Transaction implements Serializable {
         return true;
     }
 
-    // TODO pass a Coins db
-    public double getInputValue() {
-        return 0;
+    /**
+     * check the transaction against the coins it spends, the inputs must be unspent and worth the outputs at least
+     * a coinbase spends no coins
+     */
+    public boolean isValid(CoinsView coins) throws BlockPersistenceException {
+        if (!isValid()) {
+            return false;
+        }
+        if (isCoinbase()) {
+            return true;
+        }
+        double inputValue = getInputValue(coins);
+        if (inputValue < 0) {
+            logger.info("isValid(): input missing or spent");
+            return false;
+        }
+        if (inputValue < getOutputValue()) {
+            logger.info("isValid(): output value exceeds input value");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * the value of the coins spent by the inputs, one lookup per input
+     * @return the value, or -1 if an input is missing or spent
+     */
+    public double getInputValue(CoinsView coins) throws BlockPersistenceException {
+        double inVal = 0;
+        for (TransactionInput in : inputs) {
+            Coin coin = coins.getCoin(in.getPrevout());
+            if (coin == null) {
+                return -1;
+            }
+            inVal += coin.getValue();
+        }
+        return inVal;
     }
 
     public double getOutputValue() {
@@ -109,32 +155,117 @@ public class Transaction implements Serializable {
         return outVal;
     }
 
+    /**
+     * the double SHA-256 of the canonical encoding
+     */
     public SHA256Hash getHash() {
-        if (hash != null) {
-            return hash;
+        SHA256Hash h = hash;
+        if (h == null) {
+            hash = h = new SHA256Hash(Utils.doubleDigest(serialize()));
+        }
+        return h;
+    }
+
+    /**
+     * size of the canonical encoding in bytes, e.g. for the fee rate
+     */
+    public int getSize() {
+        return Utils.varIntSize(inputs.size()) + inputs.size() * TransactionInput.SIZE
+                + Utils.varIntSize(outputs.size()) + outputs.size() * TransactionOutput.SIZE;
+    }
+
+    /**
+     * the canonical encoding
+     */
+    public byte[] serialize() {
+        ByteBuffer buf = ByteBuffer.allocate(getSize());
+        serialize(buf);
+        return buf.array();
+    }
+
+    /**
+     * write the canonical encoding into the buffer from its position on
+     */
+    public void serialize(ByteBuffer buf) {
+        Utils.putVarInt(buf, inputs.size());
+        for (TransactionInput in : inputs) {
+            in.serialize(buf);
         }
+        Utils.putVarInt(buf, outputs.size());
+        for (TransactionOutput out : outputs) {
+            out.serialize(buf);
+        }
+    }
+
+    /**
+     * read a transaction from the canonical encoding, the buffer is left after it
+     * @throws ProtocolException if the encoding is malformed or truncated
+     */
+    public static Transaction deserialize(ByteBuffer buf) throws ProtocolException {
         try {
-            hash = new SHA256Hash(Utils.doubleDigest(Utils.objectsToByteArray(this)));
-        } catch (IOException e) {
-            logger.error(e.toString());
+            Transaction tx = new Transaction();
+            long inputs = Utils.getVarInt(buf);
+            if (inputs > buf.remaining() / TransactionInput.SIZE) {
+                throw new ProtocolException("Too many inputs: " + inputs);
+            }
+            for (long i = 0; i < inputs; i++) {
+                tx.addInput(TransactionInput.deserialize(buf));
+            }
+            long outputs = Utils.getVarInt(buf);
+            if (outputs > buf.remaining() / TransactionOutput.SIZE) {
+                throw new ProtocolException("Too many outputs: " + outputs);
+            }
+            for (long i = 0; i < outputs; i++) {
+                tx.addOutput(TransactionOutput.deserialize(buf));
+            }
+            return tx;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Transaction is truncated.", e);
         }
-        return hash;
     }
 
+    /**
+     * add an input, it belongs to this transaction afterwards
+     */
     public void addInput(TransactionInput in) {
+        in.setOwner(this);
         inputs.add(in);
+        hash = null;
     }
 
+    /**
+     * add an output, it belongs to this transaction afterwards
+     */
     public void addOutput(TransactionOutput out) {
+        out.setOwner(this);
         outputs.add(out);
+        hash = null;
+    }
+
+    /** drop the cached hash, called by the inputs and outputs when they are changed */
+    void invalidateHash() {
+        hash = null;
     }
 
+    /** the inputs, read-only, see {@link #addInput(TransactionInput)} */
     public List<TransactionInput> getInputs() {
-        return inputs;
+        return Collections.unmodifiableList(inputs);
     }
 
+    /** the outputs, read-only, see {@link #addOutput(TransactionOutput)} */
     public List<TransactionOutput> getOutputs() {
-        return outputs;
+        return Collections.unmodifiableList(outputs);
+    }
+
+    /** the owners of the inputs and outputs are not serialized */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        for (TransactionInput input : inputs) {
+            input.setOwner(this);
+        }
+        for (TransactionOutput output : outputs) {
+            output.setOwner(this);
+        }
     }
 
     @Override
@@ -145,10 +276,10 @@ public class Transaction implements Serializable {
 
         Transaction that = (Transaction) o;
 
+        // the cached hash is derived from them
         return new EqualsBuilder()
                 .append(inputs, that.inputs)
                 .append(outputs, that.outputs)
-                .append(hash, that.hash)
                 .isEquals();
     }
 
@@ -157,7 +288,6 @@ public class Transaction implements Serializable {
         return new HashCodeBuilder(17, 37)
                 .append(inputs)
                 .append(outputs)
-                .append(hash)
                 .toHashCode();
     }
 }
@@ -7,7 +7,10 @@ package core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * A {@link TransactionInput} must be in a transaction
@@ -16,20 +19,35 @@ import java.io.Serializable;
 public class TransactionInput implements Serializable {
     private static final long serialVersionUID = -7080009362836154695L;
     private static final Logger logger = LoggerFactory.getLogger(TransactionInput.class);
+    /** size of the canonical encoding, the outpoint and the signature */
+    public static final int SIZE = TransactionOutpoint.SIZE + SHA256Hash.SIZE;
 
     /** index of previous transaction outpitut */
     private TransactionOutpoint prevout;
     /** signature to unlock previous output */
     private SHA256Hash signature;
+    /** the transaction it is added to, its hash is dropped on a change */
+    transient private Transaction owner;
 
     public TransactionInput() {
-        this.prevout = new TransactionOutpoint();
-        this.signature = SHA256Hash.ZERO_HASH;
+        this(new TransactionOutpoint(), SHA256Hash.ZERO_HASH);
     }
 
     public TransactionInput(TransactionOutpoint prevout, SHA256Hash signature) {
         this.prevout = prevout;
         this.signature = signature;
+        prevout.setOwner(this);
+    }
+
+    void setOwner(Transaction owner) {
+        this.owner = owner;
+    }
+
+    /** called when this input or its outpoint is changed */
+    void changed() {
+        if (owner != null) {
+            owner.invalidateHash();
+        }
     }
 
     public TransactionOutpoint getPrevout() {
@@ -38,6 +56,8 @@ public class TransactionInput implements Serializable {
 
     public void setPrevout(TransactionOutpoint prevout) {
         this.prevout = prevout;
+        prevout.setOwner(this);
+        changed();
     }
 
     public SHA256Hash getSignature() {
@@ -46,6 +66,28 @@ public class TransactionInput implements Serializable {
 
     public void setSignature(SHA256Hash signature) {
         this.signature = signature;
+        changed();
+    }
+
+    /**
+     * write the canonical encoding, the outpoint followed by the signature
+     */
+    public void serialize(ByteBuffer buf) {
+        prevout.serialize(buf);
+        buf.put(signature.getBytes());
+    }
+
+    public static TransactionInput deserialize(ByteBuffer buf) {
+        TransactionOutpoint prevout = TransactionOutpoint.deserialize(buf);
+        byte[] signature = new byte[SHA256Hash.SIZE];
+        buf.get(signature);
+        return new TransactionInput(prevout, new SHA256Hash(signature));
+    }
+
+    /** the owner of the outpoint is not serialized */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        prevout.setOwner(this);
     }
 
     @Override
@@ -10,6 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * A {@link TransactionOutpoint} index a corresponding transaction output
@@ -18,11 +19,15 @@ import java.io.Serializable;
 public class TransactionOutpoint implements Serializable {
     private static final long serialVersionUID = 2522241225027684239L;
     private static final Logger logger = LoggerFactory.getLogger(TransactionOutpoint.class);
+    /** size of the canonical encoding, the hash and n in uint32 */
+    public static final int SIZE = SHA256Hash.SIZE + 4;
 
     /** transaction hash */
     private SHA256Hash hash;
     /** the index of output */
     private int n;
+    /** the input it is the previous output of, a change is reported to it */
+    transient private TransactionInput owner;
 
     public TransactionOutpoint() {
         setNull();
@@ -36,6 +41,17 @@ public class TransactionOutpoint implements Serializable {
     public void setNull() {
         hash = SHA256Hash.ZERO_HASH;
         n = -1;
+        changed();
+    }
+
+    void setOwner(TransactionInput owner) {
+        this.owner = owner;
+    }
+
+    private void changed() {
+        if (owner != null) {
+            owner.changed();
+        }
     }
 
     public boolean isNull() {
@@ -48,6 +64,7 @@ public class TransactionOutpoint implements Serializable {
 
     public void setHash(SHA256Hash hash) {
         this.hash = hash;
+        changed();
     }
 
     public int getN() {
@@ -56,6 +73,21 @@ public class TransactionOutpoint implements Serializable {
 
     public void setN(int n) {
         this.n = n;
+        changed();
+    }
+
+    /**
+     * write the canonical encoding, the hash as it is and n in little-endian, a null n is 0xFFFFFFFF
+     */
+    public void serialize(ByteBuffer buf) {
+        buf.put(hash.getBytes());
+        Utils.putUint32LE(buf, n);
+    }
+
+    public static TransactionOutpoint deserialize(ByteBuffer buf) {
+        byte[] hash = new byte[SHA256Hash.SIZE];
+        buf.get(hash);
+        return new TransactionOutpoint(new SHA256Hash(hash), (int) Utils.getUint32LE(buf));
     }
 
     @Override
@@ -10,6 +10,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * A {@link TransactionOutput} must be in a {@link Transaction}
@@ -18,11 +19,17 @@ import java.io.Serializable;
 public class TransactionOutput implements Serializable {
     private static final long serialVersionUID = -6690165031938265040L;
     private static final Logger logger = LoggerFactory.getLogger(TransactionOutput.class);
+    /** size of the canonical encoding, the amount and the pubkey */
+    public static final int SIZE = 8 + SHA256Hash.SIZE;
+    /** units of the fixed-point amount in a coin */
+    public static final long COIN = 100_000_000L;
 
     /** the amount of coin */
     private double value;
     /** the pubkey of receiver */
     private SHA256Hash pubkey;
+    /** the transaction it is added to, its hash is dropped on a change */
+    transient private Transaction owner;
 
     public TransactionOutput() {
         setNull();
@@ -36,6 +43,17 @@ public class TransactionOutput implements Serializable {
     public void setNull() {
         value = -1;
         pubkey = SHA256Hash.ZERO_HASH;
+        changed();
+    }
+
+    void setOwner(Transaction owner) {
+        this.owner = owner;
+    }
+
+    private void changed() {
+        if (owner != null) {
+            owner.invalidateHash();
+        }
     }
 
     public boolean isNull() {
@@ -48,6 +66,7 @@ public class TransactionOutput implements Serializable {
 
     public void setPubkey(SHA256Hash pubkey) {
         this.pubkey = pubkey;
+        changed();
     }
 
     public double getValue() {
@@ -56,6 +75,23 @@ public class TransactionOutput implements Serializable {
 
     public void setValue(double value) {
         this.value = value;
+        changed();
+    }
+
+    /**
+     * write the canonical encoding, the amount in fixed-point int64 little-endian followed by the pubkey
+     * the amount is rounded to 1 / COIN, a null value is written as -COIN
+     */
+    public void serialize(ByteBuffer buf) {
+        Utils.putInt64LE(buf, Math.round(value * COIN));
+        buf.put(pubkey.getBytes());
+    }
+
+    public static TransactionOutput deserialize(ByteBuffer buf) {
+        double value = (double) Utils.getInt64LE(buf) / COIN;
+        byte[] pubkey = new byte[SHA256Hash.SIZE];
+        buf.get(pubkey);
+        return new TransactionOutput(value, new SHA256Hash(pubkey));
     }
 
     @Override
@@ -4,116 +4,708 @@
  */
 package core;
 
+import exception.BlockPersistenceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Store transactions in-memory
  * Transaction must be verified first and then add into pool
- * Pool is singleton globally
+ *
+ * The pool is shared by the relaying peers, the REST api and the block template builder without a global lock.
+ * Lookups and iteration read the concurrent maps directly, iteration is weakly consistent and copies nothing.
+ * Adding and removing lock the stripes of the outpoints spent by the transaction, in ascending order,
+ * so two transactions spending the same outpoint are serialized and only the first one is taken.
+ *
+ * Transactions are also indexed by the fee rate of their ancestor package, i.e. the transaction together with
+ * the pooled transactions it depends on, so a child paying for its parents is ranked by their total fee per byte.
+ * The package graph and the index are updated incrementally under their own short lock.
+ *
+ * The pool is bounded by the estimated heap of its transactions. When it is full, the package with the lowest
+ * fee rate of a transaction and its descendants is evicted, and the fee rate a new transaction must pay
+ * is raised above it. The floor decays by half every 12 hours, so the pool opens again once the flood is over.
+ * A package is limited to 25 transactions, so updating the scores stays cheap.
+ *
+ * With the coins of the chain, a transaction is only admitted if each input spends a pooled output or an unspent coin,
+ * one lookup per input, and its fee is valued from them.
  */
+@Component("TxMemPool")
 public class TxMemPool {
-    private static final TxMemPool mempool = new TxMemPool();
+    private static final Logger logger = LoggerFactory.getLogger(TxMemPool.class);
+    private static final int STRIPES = 64; // a power of 2
+    /** max number of transactions in a package, counting the ancestors or the descendants of one */
+    public static final int MAX_PACKAGE_COUNT = 25;
+    private static final long FEE_FLOOR_HALFLIFE_NANOS = 12 * 3600 * 1_000_000_000L;
+    /** the fee rate a replacement of evicted transactions pays on top of theirs */
+    private static final double INCREMENTAL_FEE_RATE = 1e-8;
+
+    // estimated heap of a pooled transaction on a 64 bits VM with compressed references
+    private static final int HASH_BYTES = 16 + 48; // SHA256Hash and its byte[32]
+    /** the Transaction with its cached hash, the two ArrayLists, the pool entry, its sets and the map and index nodes */
+    private static final int TX_BYTES = 24 + HASH_BYTES + 2 * 24 + 96 + 2 * 64 + 4 * 40;
+    /** the TransactionInput, its outpoint and signature, the slot of the list, the inpoint and the spent outpoint node */
+    private static final int INPUT_BYTES = 24 + 24 + 2 * HASH_BYTES + 4 + 24 + 40;
+    /** the TransactionOutput, its pubkey and the slot of the list */
+    private static final int OUTPUT_BYTES = 24 + HASH_BYTES + 4;
+    /** the template is full enough once so many packages in a row do not fit */
+    private static final int MAX_CONSECUTIVE_FAILURES = 1000;
+
+    private final AtomicLong nTransactionsaUpdated = new AtomicLong(); // increment when mempool update, check for its updated
+    private final Map<SHA256Hash, Transaction> mapTx = new ConcurrentHashMap<>();
+    private final Map<TransactionOutpoint, TransactionInpoint> mapNextTx = new ConcurrentHashMap<>();
+    private final Object[] stripes = new Object[STRIPES];
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+
+    /** a pooled transaction in the package graph */
+    private static final class Entry {
+        final Transaction tx;
+        final SHA256Hash hash;
+        final double fee;
+        final int size;
+        final long sequence; // arrival order, breaks ties of the fee rate
+        final long memory; // estimated heap
+        final Set<Entry> parents = new HashSet<>(); // pooled transactions whose outputs it spends
+        final Set<Entry> children = new HashSet<>();
+        // the package: this and all its pooled ancestors
+        double ancestorFee;
+        long ancestorSize;
+        int ancestorCount;
+        // this and all its pooled descendants, evicted together
+        double descendantFee;
+        long descendantSize;
+        int descendantCount;
+
+        Entry(Transaction tx, SHA256Hash hash, double fee, int size, long sequence) {
+            this.tx = tx;
+            this.hash = hash;
+            this.fee = fee;
+            this.size = size;
+            this.sequence = sequence;
+            this.memory = memoryOf(tx);
+        }
+    }
+
+    /** the highest package fee rate first, then the earliest */
+    private static final Comparator<Entry> BY_ANCESTOR_SCORE = (a, b) -> {
+        int c = Double.compare(b.ancestorFee * a.ancestorSize, a.ancestorFee * b.ancestorSize);
+        return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+    };
+
+    /** the lowest fee rate of a transaction and its descendants first, then the latest */
+    private static final Comparator<Entry> BY_DESCENDANT_SCORE = (a, b) -> {
+        int c = Double.compare(a.descendantFee * b.descendantSize, b.descendantFee * a.descendantSize);
+        return c != 0 ? c : Long.compare(b.sequence, a.sequence);
+    };
+
+    /** guards the package graph, entries are re-inserted into the index whenever their package changes */
+    private final Object graphLock = new Object();
+    private final Map<SHA256Hash, Entry> entries = new HashMap<>();
+    private final NavigableSet<Entry> byAncestorScore = new ConcurrentSkipListSet<>(BY_ANCESTOR_SCORE);
+    private final NavigableSet<Entry> byDescendantScore = new ConcurrentSkipListSet<>(BY_DESCENDANT_SCORE);
+    private long sequence;
+
+    // the rolling fee floor and metrics, guarded by the graph lock
+    private double minFeeRate;
+    private long lastFeeBump = System.nanoTime();
+    private long evicted;
+    private long evictedBytes;
+    private long rejected;
 
-    private long nTransactionsaUpdated; // increment when mempool update, check for its updated
-    private Map<SHA256Hash, Transaction> mapTx;
-    private Map<TransactionOutpoint, TransactionInpoint> mapNextTx;
+    /** only one thread trims the pool at a time */
+    private final Object trimLock = new Object();
 
-    private TxMemPool() {
-        nTransactionsaUpdated = 0;
-        mapTx = new HashMap<>();
-        mapNextTx = new HashMap<>();
+    /** the coins of the chain, null if inputs are only valued from the pooled transactions */
+    private final CoinsView coins;
+
+    /**
+     * @param maxBytes max estimated heap of the transactions, no limit if not positive
+     * @param coins the coins of the chain, the inputs not spending a pooled transaction must be unspent in it
+     */
+    @Autowired
+    public TxMemPool(@Value("${mycoin.mempool.bytes:300000000}") long maxBytes, @Qualifier("CoinsCache") CoinsView coins) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.coins = coins;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
     }
 
+    /** a pool without the coins of the chain */
+    public TxMemPool(long maxBytes) {
+        this(maxBytes, null);
+    }
 
-    public static TxMemPool getInstance() {
-        return mempool;
+    /** a pool of the default limit */
+    public TxMemPool() {
+        this(300_000_000L);
     }
 
     /**
-     * add tx into the memory pool
+     * add tx into the memory pool, its fee is valued from the outputs of the pooled transactions and the coins it spends
      * @param hash the hash of tx
      * @param tx corresponding transaction
-     * @return true if add into the pool
+     * @return true if add into the pool, false if it is in the pool already, spends an outpoint spent by another one,
+     * or an input is missing from the coins or worth less than the outputs
      */
-    public synchronized boolean add(SHA256Hash hash, Transaction tx) {
-        mapTx.put(hash, tx);
-        for (int i = 0; i < tx.getInputs().size(); i++) {
-            mapNextTx.put(tx.getInputs().get(i).getPrevout(), new TransactionInpoint(tx, i));
+    public boolean add(SHA256Hash hash, Transaction tx) {
+        double inputValue = 0;
+        for (TransactionInput input : tx.getInputs()) {
+            Transaction prev = mapTx.get(input.getPrevout().getHash());
+            int n = input.getPrevout().getN();
+            if (prev != null && n >= 0 && n < prev.getOutputs().size()) {
+                inputValue += prev.getOutputs().get(n).getValue();
+            } else if (coins != null) {
+                Coin coin;
+                try {
+                    coin = coins.getCoin(input.getPrevout());
+                } catch (BlockPersistenceException e) {
+                    logger.error("Fail to read the coin spent by {}: {}", hash, e.getMessage());
+                    return false;
+                }
+                if (coin == null) {
+                    logger.debug("Transaction {} spends a missing or spent coin.", hash);
+                    return false;
+                }
+                inputValue += coin.getValue();
+            }
         }
-        nTransactionsaUpdated++;
-        return true;
+        double fee = inputValue - tx.getOutputValue();
+        if (coins != null && fee < 0) {
+            logger.debug("Transaction {} spends more than its inputs.", hash);
+            return false;
+        }
+        return add(hash, tx, Math.max(0, fee));
     }
 
     /**
-     * remove the tx from mempool
-     * @param tx transaction to be removed
-     * @return true if success
+     * add tx into the memory pool, the pool is trimmed to its limit afterwards
+     * @param fee input value minus output value, given by the validation which knows the spent coins
+     * @return true if add into the pool, false if it is in the pool already, spends an outpoint spent by another one,
+     * pays less than the fee floor, exceeds the package limit or is evicted at once
      */
-    public synchronized boolean remove(Transaction tx) {
-        SHA256Hash hash = tx.getHash();
-        if (mapTx.containsKey(hash)) {
+    public boolean add(SHA256Hash hash, Transaction tx, double fee) {
+        int size = tx.getSize();
+        synchronized (graphLock) {
+            if (fee < getMinFeeRate() * size) {
+                rejected++;
+                return false;
+            }
+        }
+        boolean added = locked(stripesOf(tx), 0, () -> {
             for (TransactionInput input : tx.getInputs()) {
-                mapNextTx.remove(input.getPrevout());
+                if (mapNextTx.containsKey(input.getPrevout())) {
+                    return false;
+                }
+            }
+            if (mapTx.containsKey(hash) || !link(tx, hash, fee, size)) {
+                return false;
             }
-            mapTx.remove(hash);
-            nTransactionsaUpdated++;
+            mapTx.put(hash, tx);
+            nTransactionsaUpdated.incrementAndGet();
             return true;
-        } else {
+        });
+        if (added && bytes.get() > maxBytes) {
+            trim();
+            return mapTx.containsKey(hash);
+        }
+        return added;
+    }
+
+    /**
+     * remove the tx from mempool together with its pooled descendants, which spend its outputs
+     * @param tx transaction to be removed
+     * @return true if success
+     */
+    public boolean remove(Transaction tx) {
+        return remove(tx.getHash());
+    }
+
+    /**
+     * remove the tx of the hash from mempool together with its pooled descendants
+     * @param hash the hash the tx is pooled by
+     * @return true if success
+     */
+    public boolean remove(SHA256Hash hash) {
+        List<SHA256Hash> descendants = new ArrayList<>();
+        synchronized (graphLock) {
+            Entry entry = entries.get(hash);
+            if (entry != null) {
+                for (Entry descendant : descendantsOf(entry)) {
+                    descendants.add(descendant.hash);
+                }
+            }
+        }
+        boolean removed = removeOne(hash);
+        for (SHA256Hash descendant : descendants) {
+            removeOne(descendant);
+        }
+        return removed;
+    }
+
+    /**
+     * remove a tx confirmed by a block, its descendants are kept as their inputs are still valid
+     * @param tx transaction in the block
+     * @return true if it was in the pool
+     */
+    public boolean removeForBlock(Transaction tx) {
+        return removeOne(tx.getHash());
+    }
+
+    /** remove the tx of the hash only, its descendants lose it from their packages */
+    private boolean removeOne(SHA256Hash hash) {
+        Transaction pooled = mapTx.get(hash);
+        if (pooled == null) {
             return false;
         }
+        return locked(stripesOf(pooled), 0, () -> {
+            if (!mapTx.remove(hash, pooled)) {
+                return false; // removed meanwhile
+            }
+            unlink(hash, pooled);
+            nTransactionsaUpdated.incrementAndGet();
+            return true;
+        });
     }
 
     /**
-     * remove transaction conflicted with input tx
+     * remove transactions conflicted with input tx, together with their descendants
      * @param tx
      */
-    public synchronized void removeConflicts(Transaction tx) {
+    public void removeConflicts(Transaction tx) {
         for (TransactionInput in : tx.getInputs()) {
-            if (mapNextTx.containsKey(in.getPrevout())) {
-                Transaction txConflict = mapNextTx.get(in.getPrevout()).getTx();
-                if (!tx.equals(txConflict)) {
-                    remove(txConflict);
-                }
+            TransactionInpoint inpoint = mapNextTx.get(in.getPrevout());
+            if (inpoint != null && !tx.equals(inpoint.getTx())) {
+                remove(inpoint.getTx());
             }
         }
     }
 
     /**
      * get all transaction hash in the mempool
+     * it copies every hash, use {@link #getTransactions()} to iterate the pool
      * @return list of tx hash
      */
-    public synchronized List<SHA256Hash> getAllHash() {
+    public List<SHA256Hash> getAllHash() {
         return new ArrayList<>(mapTx.keySet());
     }
 
+    /**
+     * a read-only view of the transactions in the pool, it reflects the changes made while iterating
+     */
+    public Collection<Transaction> getTransactions() {
+        return Collections.unmodifiableCollection(mapTx.values());
+    }
+
+    public int size() {
+        return mapTx.size();
+    }
+
     /**
      * lookup tx with given hash in mempool
      * @param hash
      * @return tx if found in pool, or null
      */
-    public synchronized Transaction lookup(SHA256Hash hash) {
-        return mapTx.getOrDefault(hash, null);
+    public Transaction lookup(SHA256Hash hash) {
+        return mapTx.get(hash);
+    }
+
+    /**
+     * whether an outpoint is spent by a transaction in the pool
+     */
+    public boolean isSpent(TransactionOutpoint outpoint) {
+        return mapNextTx.containsKey(outpoint);
+    }
+
+    /**
+     * the fee per byte of the transaction together with its pooled ancestors
+     * @return the fee rate, or -1 if it is not in the pool
+     */
+    public double getAncestorFeeRate(SHA256Hash hash) {
+        synchronized (graphLock) {
+            Entry entry = entries.get(hash);
+            return entry == null ? -1 : entry.ancestorFee / entry.ancestorSize;
+        }
+    }
+
+    /**
+     * select transactions for a block template, the highest package fee rate first
+     * a transaction is taken together with its ancestors not selected yet, parents before children,
+     * a package which does not fit into the space left is skipped, the selection stops after many in a row
+     * the order of the index is not updated for the ancestors already selected, a package is valued as it is in the pool
+     * @param maxBytes max total size of the selected transactions
+     * @return transactions in an order valid within a block
+     */
+    public List<Transaction> selectTransactions(long maxBytes) {
+        List<Transaction> selected = new ArrayList<>();
+        synchronized (graphLock) {
+            Set<Entry> taken = new HashSet<>();
+            long bytes = 0;
+            int failures = 0;
+            for (Entry entry : byAncestorScore) {
+                if (taken.contains(entry)) {
+                    continue;
+                }
+                if (bytes + entry.size > maxBytes) {
+                    if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                        break;
+                    }
+                    continue;
+                }
+                List<Entry> pack = new ArrayList<>();
+                long packSize = 0;
+                for (Entry ancestor : entry.parents.isEmpty() ? Collections.singleton(entry) : ancestorsOf(entry)) {
+                    if (!taken.contains(ancestor)) {
+                        pack.add(ancestor);
+                        packSize += ancestor.size;
+                    }
+                }
+                if (bytes + packSize > maxBytes) {
+                    if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                        break;
+                    }
+                    continue;
+                }
+                failures = 0;
+                pack.sort(Comparator.comparingInt(e -> e.ancestorCount)); // an ancestor has less ancestors
+                for (Entry e : pack) {
+                    taken.add(e);
+                    selected.add(e.tx);
+                }
+                bytes += packSize;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * evict the packages of the lowest fee rate until the pool is within its limit
+     * a transaction is evicted with its descendants, which can not be mined without it
+     */
+    private void trim() {
+        synchronized (trimLock) {
+            while (bytes.get() > maxBytes) {
+                List<Entry> pack;
+                synchronized (graphLock) {
+                    if (byDescendantScore.isEmpty()) {
+                        return;
+                    }
+                    Entry worst = byDescendantScore.first();
+                    pack = descendantsOf(worst);
+                    pack.add(worst);
+                    double rate = worst.descendantFee / worst.descendantSize + INCREMENTAL_FEE_RATE;
+                    if (rate > getMinFeeRate()) {
+                        minFeeRate = rate;
+                        lastFeeBump = System.nanoTime();
+                    }
+                }
+                boolean removed = false;
+                for (Entry entry : pack) {
+                    if (removeOne(entry.hash)) {
+                        removed = true;
+                        synchronized (graphLock) {
+                            evicted++;
+                            evictedBytes += entry.memory;
+                        }
+                    }
+                }
+                if (!removed) {
+                    logger.warn("Mempool can not evict {}, it is over its limit.", pack.get(pack.size() - 1).hash);
+                    break;
+                }
+            }
+        }
+        logger.debug("Mempool is trimmed, {}", this);
+    }
+
+    /**
+     * the fee per byte a new transaction must pay, raised by evictions and halved every 12 hours
+     */
+    public double getMinFeeRate() {
+        synchronized (graphLock) {
+            long now = System.nanoTime();
+            if (minFeeRate > 0 && now - lastFeeBump >= FEE_FLOOR_HALFLIFE_NANOS) {
+                minFeeRate *= Math.pow(0.5, (double) (now - lastFeeBump) / FEE_FLOOR_HALFLIFE_NANOS);
+                lastFeeBump = now;
+                if (minFeeRate < INCREMENTAL_FEE_RATE / 2) {
+                    minFeeRate = 0;
+                }
+            }
+            return minFeeRate;
+        }
+    }
+
+    /** estimated heap of the pooled transactions */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** number of transactions evicted when the pool is full */
+    public long getEvicted() {
+        synchronized (graphLock) {
+            return evicted;
+        }
+    }
+
+    public long getEvictedBytes() {
+        synchronized (graphLock) {
+            return evictedBytes;
+        }
+    }
+
+    /** number of transactions paying less than the fee floor */
+    public long getRejected() {
+        synchronized (graphLock) {
+            return rejected;
+        }
+    }
+
+    /**
+     * the estimated heap of a pooled transaction, including the pool's own structures
+     */
+    static long memoryOf(Transaction tx) {
+        int inputs = tx.getInputs().size(), outputs = tx.getOutputs().size();
+        // ArrayList grows to 10 slots on the first add
+        long slots = align(16 + 4L * (inputs == 0 ? 0 : Math.max(10, inputs))) + align(16 + 4L * (outputs == 0 ? 0 : Math.max(10, outputs)));
+        return TX_BYTES + slots + (long) inputs * INPUT_BYTES + (long) outputs * OUTPUT_BYTES;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
     }
 
     /**
      * clear the mempool
      */
-    public synchronized void clear() {
-        mapTx.clear();
-        mapNextTx.clear();
-        nTransactionsaUpdated++;
+    public void clear() {
+        int[] all = new int[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            all[i] = i;
+        }
+        locked(all, 0, () -> {
+            mapTx.clear();
+            mapNextTx.clear();
+            synchronized (graphLock) {
+                entries.clear();
+                byAncestorScore.clear();
+                byDescendantScore.clear();
+                bytes.set(0);
+            }
+            nTransactionsaUpdated.incrementAndGet();
+            return true;
+        });
     }
 
     //TODO
 
-    public synchronized void update() {
-        nTransactionsaUpdated++;
+    public void update() {
+        nTransactionsaUpdated.incrementAndGet();
     }
 
     public long getnTransactionsaUpdated() {
-        return nTransactionsaUpdated;
+        return nTransactionsaUpdated.get();
+    }
+
+    /**
+     * add the transaction to the package graph, linking its pooled parents and the pooled children which arrived first
+     * the spent outpoints are indexed under the same lock, so a parent and a child linked at once always see each other
+     * @return false if it is linked already or its package would exceed the limit
+     */
+    private boolean link(Transaction tx, SHA256Hash hash, double fee, int size) {
+        synchronized (graphLock) {
+            if (entries.containsKey(hash)) {
+                return false;
+            }
+            Entry entry = new Entry(tx, hash, fee, size, sequence++);
+            for (TransactionInput input : tx.getInputs()) {
+                Entry parent = entries.get(input.getPrevout().getHash());
+                if (parent != null) {
+                    entry.parents.add(parent);
+                }
+            }
+            Set<Entry> ancestors = ancestorsOf(entry);
+            if (ancestors.size() > MAX_PACKAGE_COUNT) {
+                logger.debug("Transaction {} has too many ancestors.", hash);
+                return false;
+            }
+            for (Entry ancestor : ancestors) {
+                if (ancestor != entry && ancestor.descendantCount + 1 > MAX_PACKAGE_COUNT) {
+                    logger.debug("Transaction {} has an ancestor of too many descendants.", hash);
+                    return false;
+                }
+            }
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                mapNextTx.put(tx.getInputs().get(i).getPrevout(), new TransactionInpoint(tx, i));
+            }
+            for (Entry parent : entry.parents) {
+                parent.children.add(entry);
+            }
+            for (int n = 0; n < tx.getOutputs().size(); n++) {
+                TransactionInpoint inpoint = mapNextTx.get(new TransactionOutpoint(hash, n));
+                Entry child = inpoint == null ? null : entries.get(inpoint.getTx().getHash());
+                if (child != null) {
+                    entry.children.add(child);
+                    child.parents.add(entry);
+                }
+            }
+            entries.put(hash, entry);
+            bytes.addAndGet(entry.memory);
+            rescore(entry);
+            for (Entry related : ancestorsOf(entry)) {
+                if (related != entry) {
+                    rescore(related);
+                }
+            }
+            for (Entry descendant : descendantsOf(entry)) {
+                rescore(descendant);
+            }
+            return true;
+        }
+    }
+
+    /** remove the transaction and its spent outpoints from the package graph, its descendants lose it from their packages */
+    private void unlink(SHA256Hash hash, Transaction pooled) {
+        synchronized (graphLock) {
+            for (TransactionInput input : pooled.getInputs()) {
+                mapNextTx.computeIfPresent(input.getPrevout(), (k, inpoint) -> inpoint.getTx() == pooled ? null : inpoint);
+            }
+            Entry entry = entries.remove(hash);
+            if (entry == null) {
+                return;
+            }
+            byAncestorScore.remove(entry);
+            byDescendantScore.remove(entry);
+            bytes.addAndGet(-entry.memory);
+            Set<Entry> ancestors = ancestorsOf(entry);
+            ancestors.remove(entry);
+            List<Entry> descendants = descendantsOf(entry);
+            for (Entry parent : entry.parents) {
+                parent.children.remove(entry);
+            }
+            for (Entry child : entry.children) {
+                child.parents.remove(entry);
+            }
+            for (Entry ancestor : ancestors) {
+                rescore(ancestor);
+            }
+            for (Entry descendant : descendants) {
+                rescore(descendant);
+            }
+        }
+    }
+
+    /** recompute the packages of the entry and re-insert it into the indexes */
+    private void rescore(Entry entry) {
+        byAncestorScore.remove(entry);
+        byDescendantScore.remove(entry);
+        entry.ancestorFee = 0;
+        entry.ancestorSize = 0;
+        entry.ancestorCount = 0;
+        for (Entry ancestor : ancestorsOf(entry)) {
+            entry.ancestorFee += ancestor.fee;
+            entry.ancestorSize += ancestor.size;
+            entry.ancestorCount++;
+        }
+        entry.descendantFee = entry.fee;
+        entry.descendantSize = entry.size;
+        entry.descendantCount = 1;
+        for (Entry descendant : descendantsOf(entry)) {
+            entry.descendantFee += descendant.fee;
+            entry.descendantSize += descendant.size;
+            entry.descendantCount++;
+        }
+        byAncestorScore.add(entry);
+        byDescendantScore.add(entry);
+    }
+
+    /** the entry and all its ancestors */
+    private static Set<Entry> ancestorsOf(Entry entry) {
+        return closure(entry, e -> e.parents);
+    }
+
+    /** all the descendants of the entry */
+    private static List<Entry> descendantsOf(Entry entry) {
+        Set<Entry> all = closure(entry, e -> e.children);
+        all.remove(entry);
+        return new ArrayList<>(all);
+    }
+
+    private interface Links {
+        Set<Entry> of(Entry entry);
+    }
+
+    private static Set<Entry> closure(Entry entry, Links links) {
+        Set<Entry> seen = new HashSet<>();
+        Deque<Entry> queue = new ArrayDeque<>();
+        seen.add(entry);
+        queue.add(entry);
+        while (!queue.isEmpty()) {
+            for (Entry next : links.of(queue.poll())) {
+                if (seen.add(next)) {
+                    queue.add(next);
+                }
+            }
+        }
+        return seen;
+    }
+
+    /** the distinct stripes of the outpoints spent by the transaction, in ascending order */
+    private static int[] stripesOf(Transaction tx) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (TransactionInput input : tx.getInputs()) {
+            int h = input.getPrevout().hashCode();
+            indexes.add((h ^ (h >>> 16)) & (STRIPES - 1));
+        }
+        int[] result = new int[indexes.size()];
+        int i = 0;
+        for (int index : indexes) {
+            result[i++] = index;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d transactions in %d/%d bytes, %d evicted in %d bytes, %d rejected under the fee rate %.10f",
+                size(), getBytes(), maxBytes, getEvicted(), getEvictedBytes(), getRejected(), getMinFeeRate());
+    }
+
+    private interface StripedAction {
+        boolean run();
+    }
+
+    /** run the action holding the stripes from the position on */
+    private boolean locked(int[] indexes, int position, StripedAction action) {
+        if (position == indexes.length) {
+            return action.run();
+        }
+        synchronized (stripes[indexes[position]]) {
+            return locked(indexes, position + 1, action);
+        }
     }
 }
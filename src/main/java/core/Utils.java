@@ -5,11 +5,14 @@
 package core;
 
 import com.alibaba.fastjson.JSONObject;
+import exception.ProtocolException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
@@ -261,6 +264,105 @@ public class Utils {
         return out;
     }
 
+    /**
+     * convert long value to byte array in little-endian, write into out at offset
+     * @param value
+     * @param out
+     * @param offset
+     */
+    public static void uint32ToByteArrayLE(long value, byte[] out, int offset) {
+        out[offset + 0] = (byte)(0xFF & (value >> 0));
+        out[offset + 1] = (byte)(0xFF & (value >> 8));
+        out[offset + 2] = (byte)(0xFF & (value >> 16));
+        out[offset + 3] = (byte)(0xFF & (value >> 24));
+    }
+
+    /**
+     * write uint32 in little-endian whatever the byte order of the buffer is
+     */
+    public static void putUint32LE(ByteBuffer buf, long value) {
+        int v = (int) value;
+        buf.putInt(buf.order() == ByteOrder.LITTLE_ENDIAN ? v : Integer.reverseBytes(v));
+    }
+
+    public static long getUint32LE(ByteBuffer buf) {
+        int v = buf.getInt();
+        return (buf.order() == ByteOrder.LITTLE_ENDIAN ? v : Integer.reverseBytes(v)) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * write int64 in little-endian whatever the byte order of the buffer is
+     */
+    public static void putInt64LE(ByteBuffer buf, long value) {
+        buf.putLong(buf.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value));
+    }
+
+    public static long getInt64LE(ByteBuffer buf) {
+        long v = buf.getLong();
+        return buf.order() == ByteOrder.LITTLE_ENDIAN ? v : Long.reverseBytes(v);
+    }
+
+    /**
+     * number of bytes of the variable length integer, the same as the CompactSize of bitcoin
+     * @param value non-negative
+     */
+    public static int varIntSize(long value) {
+        if (value < 0xFD) {
+            return 1;
+        } else if (value <= 0xFFFF) {
+            return 3;
+        } else if (value <= 0xFFFFFFFFL) {
+            return 5;
+        }
+        return 9;
+    }
+
+    /**
+     * write a non-negative variable length integer
+     * below 0xFD it is a single byte, otherwise a prefix 0xFD, 0xFE or 0xFF followed by a uint16, uint32 or uint64 in little-endian
+     */
+    public static void putVarInt(ByteBuffer buf, long value) {
+        if (value < 0xFD) {
+            buf.put((byte) value);
+        } else if (value <= 0xFFFF) {
+            buf.put((byte) 0xFD);
+            buf.put((byte) value);
+            buf.put((byte) (value >>> 8));
+        } else if (value <= 0xFFFFFFFFL) {
+            buf.put((byte) 0xFE);
+            putUint32LE(buf, value);
+        } else {
+            buf.put((byte) 0xFF);
+            putInt64LE(buf, value);
+        }
+    }
+
+    /**
+     * read a variable length integer written by {@link #putVarInt(ByteBuffer, long)}
+     * @throws ProtocolException if it is not in the shortest form or does not fit into a long
+     */
+    public static long getVarInt(ByteBuffer buf) throws ProtocolException {
+        int first = buf.get() & 0xFF;
+        long value;
+        long min;
+        if (first < 0xFD) {
+            return first;
+        } else if (first == 0xFD) {
+            value = (buf.get() & 0xFF) | (buf.get() & 0xFF) << 8;
+            min = 0xFD;
+        } else if (first == 0xFE) {
+            value = getUint32LE(buf);
+            min = 0x10000;
+        } else {
+            value = getInt64LE(buf);
+            min = 0x100000000L;
+        }
+        if (value < min) {
+            throw new ProtocolException("Non-canonical variable length integer: " + value);
+        }
+        return value;
+    }
+
     /**
      * MPI encoded numbers are produced by the OpenSSL BN_bn2mpi function. They consist of
      * a 4 byte big endian length field, followed by the stated number of bytes representing
@@ -5,10 +5,13 @@
 package main;
 
 import com.google.common.collect.Sets;
+import core.CoinsViewCache;
 import net.NetworkParameters;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import persistence.LevelDBCoinsView;
 import springfox.documentation.builders.ApiInfoBuilder;
 import springfox.documentation.builders.PathSelectors;
 import springfox.documentation.builders.RequestHandlerSelectors;
@@ -30,6 +33,12 @@ public class Main {
         return new NetworkParameters(NetworkParameters.ID_TESTNET);
     }
 
+    /** the coins of the main chain, shared by the block chain and the mempool */
+    @Bean("CoinsCache")
+    public CoinsViewCache coinsCache(LevelDBCoinsView coinsView, @Value("${mycoin.coins.entries:1000000}") int entries) {
+        return new CoinsViewCache(coinsView, entries);
+    }
+
     @Bean
     public Docket createRestApi() {
         return new Docket(DocumentationType.SWAGGER_2)
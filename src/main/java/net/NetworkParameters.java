@@ -23,11 +23,20 @@ public class NetworkParameters implements Serializable {
     public static final String ID_MAINNET = "main";
     /** id of test net */
     public static final String ID_TESTNET = "test";
+    /** id of unit test net, the proof of work is trivial so blocks can be mined in tests and benchmarks */
+    public static final String ID_UNITTESTNET = "unittest";
+
+    /** block hash is the double SHA-256 of the java serialization stream of the header */
+    public static final int HEADER_HASH_V1 = 1;
+    /** block hash is the double SHA-256 of the canonical 44 bytes header, see {@link BlockHead#serialize(byte[], int)} */
+    public static final int HEADER_HASH_V2 = 2;
 
     /** Genesis block for the block chai */
     public Block genesisBlock;
     /** the proof of work difficulty */
     public BigInteger proofOfWorkLimit;
+    /** proofOfWorkLimit in fixed width */
+    public PowTarget proofOfWorkTarget;
     /** Default TCP port on which to connect to nodes */
     public int port;
     /** difficulty adjustment periods in seconds */
@@ -35,6 +44,9 @@ public class NetworkParameters implements Serializable {
     /** difficulty adjustment periods in block number */
     public int interval;
 
+    /** blocks whose nTime is not earlier than this are hashed with {@link #HEADER_HASH_V2} */
+    public long headerHashV2Time;
+
     /** the id of network */
     private String id;
 
@@ -45,6 +57,10 @@ public class NetworkParameters implements Serializable {
                 logger.info("Test Net.");
                 createTestNet();
                 break;
+            case ID_UNITTESTNET:
+                logger.info("Unit Test Net.");
+                createUnitTestNet();
+                break;
             case ID_MAINNET:
                 logger.info("Main Net.");
                 createMainNet();
@@ -53,6 +69,9 @@ public class NetworkParameters implements Serializable {
                 // impossible
                 break;
         }
+        if (genesisBlock != null) {
+            genesisBlock.getHash(this); // hashed with the version of this network, whether there is a spring context or not
+        }
     }
 
     /**
@@ -73,6 +92,7 @@ public class NetworkParameters implements Serializable {
      */
     private void createTestNet() {
         proofOfWorkLimit = new BigInteger("000000ffffffffffffffffffffffffffffffffffffffffffffffffffffffffff", 16);
+        proofOfWorkTarget = PowTarget.fromBigInteger(proofOfWorkLimit);
         port = 23333;
         interval = BLOCK_INTERVAL;
         targetTimespan = TARGET_TIMESPAN;
@@ -80,9 +100,50 @@ public class NetworkParameters implements Serializable {
         genesisBlock.setnTime(1556696368L); // Sat Apr 20 18:02:56 CST 2019
         genesisBlock.setnBits(0x1e00dfffL);
         genesisBlock.setnNonce(43983854L);
+        headerHashV2Time = 1798761600L; // Fri Jan 01 00:00:00 UTC 2027, blocks before it keep the v1 hash
         id = ID_TESTNET;
     }
 
+    /**
+     * setup the parameters of unit test net
+     * about one of two hashes meets the target, and all blocks are hashed with {@link #HEADER_HASH_V2}
+     */
+    private void createUnitTestNet() {
+        proofOfWorkLimit = new BigInteger("7fffffffffffffffffffffffffffffffffffffffffffffffffffffffffffffff", 16);
+        proofOfWorkTarget = PowTarget.fromBigInteger(proofOfWorkLimit);
+        port = 23334;
+        interval = BLOCK_INTERVAL;
+        targetTimespan = TARGET_TIMESPAN;
+        headerHashV2Time = 0;
+        genesisBlock = createGenesis();
+        genesisBlock.setnTime(1556696368L);
+        genesisBlock.setnBits(0x207fffffL);
+        genesisBlock.setnNonce(solveNonce(genesisBlock, HEADER_HASH_V2));
+        id = ID_UNITTESTNET;
+    }
+
+    /**
+     * find the first nonce with which the block meets its own target
+     * only used for the easy targets of test nets
+     */
+    private static long solveNonce(Block block, int headerHashVersion) {
+        try {
+            PowTarget target = block.getTarget();
+            BlockHeadHasher hasher = new BlockHeadHasher(block, headerHashVersion);
+            byte[] digest = new byte[SHA256Hash.SIZE];
+            for (long nonce = 0; nonce <= 0xFFFFFFFFL; nonce++) {
+                hasher.setNonce(nonce);
+                hasher.digest(digest);
+                if (target.isMetByDigest(digest, 0)) {
+                    return nonce;
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e); // impossible
+        }
+        throw new IllegalStateException("No nonce solves the genesis block.");
+    }
+
     /**
      * setup the parameters of main net
      * @return the corresponding network parameters
@@ -91,6 +152,15 @@ public class NetworkParameters implements Serializable {
         // TODO
     }
 
+    /**
+     * get the header hash version for a block with given time
+     * @param nTime the time field of block header
+     * @return HEADER_HASH_V1 or HEADER_HASH_V2
+     */
+    public int getHeaderHashVersion(long nTime) {
+        return nTime >= headerHashV2Time ? HEADER_HASH_V2 : HEADER_HASH_V1;
+    }
+
     public String getId() {
         return id;
     }
@@ -0,0 +1,39 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/28
+ */
+package persistence;
+
+import core.SHA256Hash;
+import core.StoredBlock;
+
+/**
+ * Size bounded memory cache of recently used blocks, shared by the block persistence implementations.
+ * It is thread safe, a lookup must not need the lock of the persistence.
+ */
+public interface BlockCache {
+    /** @return the cached block, or null if it is not cached */
+    StoredBlock get(SHA256Hash hash);
+
+    /** cache the block, an existing entry is replaced */
+    void put(SHA256Hash hash, StoredBlock block);
+
+    /**
+     * cache the block unless the hash is already cached
+     * used by readers, so a block loaded from the store never replaces a newer one put by the writer
+     */
+    void putIfAbsent(SHA256Hash hash, StoredBlock block);
+
+    void remove(SHA256Hash hash);
+
+    void clear();
+
+    /** number of cached blocks */
+    int size();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+}
@@ -18,12 +18,45 @@ public interface BlockPersistence {
     /** fetch a specified block from database */
     StoredBlock get(SHA256Hash hash) throws BlockPersistenceException;
 
+    /** whether the block is stored, it may answer without reading the block */
+    boolean hasBlock(SHA256Hash hash) throws BlockPersistenceException;
+
     /** get the head block of the block chain */
     StoredBlock getChainTip() throws BlockPersistenceException;
 
-    /** set the head of chain */
+    /** set the head of chain, the height index of main chain is updated as well */
     void setChainTip(StoredBlock block) throws BlockPersistenceException;
 
+    /** fetch the main chain block at the height, null if there is no such height */
+    StoredBlock getByHeight(int height) throws BlockPersistenceException;
+
+    /**
+     * iterate the main chain blocks from one height to another, both included
+     * it goes downwards if from is greater than to
+     */
+    default MainChainIterator getMainChain(int from, int to) {
+        return new MainChainIterator(this, from, to);
+    }
+
+    /**
+     * begin a batch, the following put() and setChainTip() of this thread are written atomically by commitBatch()
+     * pending writes are only visible to this thread, writes of other threads wait until the batch ends
+     * batches may nest, only the outermost commitBatch() writes
+     */
+    void beginBatch() throws BlockPersistenceException;
+
+    /** leave the batch, write all pending blocks and the chain tip in one write if it is the outermost one */
+    void commitBatch() throws BlockPersistenceException;
+
+    /** drop the pending writes, the enclosing batches are aborted as well */
+    void abortBatch() throws BlockPersistenceException;
+
+    /** the filter answering the lookups of blocks never stored, its metrics are published by the REST api */
+    ScalableBloomFilter getBloomFilter();
+
+    /** the cache of recently used blocks, its counters are published by the REST api */
+    BlockCache getBlockCache();
+
     /** close the source */
     void close() throws BlockPersistenceException;
 }
@@ -0,0 +1,212 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/28
+ */
+package persistence;
+
+import core.SHA256Hash;
+import core.StoredBlock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link BlockCache} with CLOCK eviction split into stripes.
+ *
+ * Lookups go to a ConcurrentHashMap and only set the referenced bit of the entry, thus they never lock.
+ * A hash always belongs to the same stripe, which owns a ring of slots and a clock hand.
+ * Puts and removes lock their stripe only. When a stripe is full, the hand sweeps the ring,
+ * clears the referenced bits it passes and evicts the first entry not referenced since the last sweep.
+ */
+public class ClockBlockCache implements BlockCache {
+    /** estimated heap size of a cached block and its entry, blocks are of fixed size so a byte capacity is turned into entries */
+    public static final int ENTRY_BYTES = 512;
+    private static final int MAX_STRIPES = 16;
+
+    private final ConcurrentHashMap<SHA256Hash, Node> map;
+    private final Stripe[] stripes;
+    private final int capacity;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Node {
+        final SHA256Hash hash;
+        final int slot;
+        volatile StoredBlock block;
+        volatile boolean referenced;
+
+        Node(SHA256Hash hash, StoredBlock block, int slot) {
+            this.hash = hash;
+            this.block = block;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * @param capacity max number of cached blocks
+     */
+    public ClockBlockCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity of block cache must be positive: " + capacity);
+        }
+        int stripeCount = Math.min(MAX_STRIPES, Integer.highestOneBit(capacity));
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap<>(capacity * 4 / 3 + 1, 0.75f, stripeCount);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            // spread the remainder, so the stripes hold exactly capacity entries in total
+            stripes[i] = new Stripe(capacity / stripeCount + (i < capacity % stripeCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * @param bytes max heap size of cached blocks, see {@link #ENTRY_BYTES}
+     */
+    public static ClockBlockCache ofBytes(long bytes) {
+        return new ClockBlockCache((int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / ENTRY_BYTES)));
+    }
+
+    /** the leading bytes of a block hash are mostly zero, so the stripe is picked by the last ones */
+    private Stripe stripeOf(SHA256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        return stripes[bytes[bytes.length - 1] & (stripes.length - 1)];
+    }
+
+    @Override
+    public StoredBlock get(SHA256Hash hash) {
+        Node node = map.get(hash);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        if (!node.referenced) {
+            node.referenced = true; // avoid writing the shared line on every hit
+        }
+        hits.increment();
+        return node.block;
+    }
+
+    @Override
+    public void put(SHA256Hash hash, StoredBlock block) {
+        stripeOf(hash).put(hash, block, true);
+    }
+
+    @Override
+    public void putIfAbsent(SHA256Hash hash, StoredBlock block) {
+        stripeOf(hash).put(hash, block, false);
+    }
+
+    @Override
+    public void remove(SHA256Hash hash) {
+        stripeOf(hash).remove(hash);
+    }
+
+    @Override
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d blocks, %d hits, %d misses, %d evictions",
+                size(), capacity, getHits(), getMisses(), getEvictions());
+    }
+
+    /**
+     * A ring of slots with a clock hand, free slots are kept in a stack.
+     * The entries of its hashes in the map are only changed under its lock.
+     */
+    private final class Stripe {
+        private final Node[] slots;
+        private final int[] free;
+        private int freeCount;
+        private int hand;
+
+        Stripe(int size) {
+            slots = new Node[size];
+            free = new int[size];
+            for (int i = 0; i < size; i++) {
+                free[i] = size - 1 - i;
+            }
+            freeCount = size;
+        }
+
+        synchronized void put(SHA256Hash hash, StoredBlock block, boolean replace) {
+            Node node = map.get(hash);
+            if (node != null) {
+                if (replace) {
+                    node.block = block;
+                }
+                return;
+            }
+            int slot = freeCount > 0 ? free[--freeCount] : evict();
+            node = new Node(hash, block, slot);
+            slots[slot] = node;
+            map.put(hash, node);
+        }
+
+        /** sweep the ring until an entry not referenced is found, evict it and return its slot */
+        private int evict() {
+            while (true) {
+                Node node = slots[hand];
+                int slot = hand;
+                hand = (hand + 1) % slots.length;
+                if (node.referenced) {
+                    node.referenced = false; // second chance
+                } else {
+                    map.remove(node.hash);
+                    evictions.increment();
+                    return slot;
+                }
+            }
+        }
+
+        synchronized void remove(SHA256Hash hash) {
+            Node node = map.remove(hash);
+            if (node != null) {
+                slots[node.slot] = null;
+                free[freeCount++] = node.slot;
+            }
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != null) {
+                    map.remove(slots[i].hash);
+                    slots[i] = null;
+                }
+                free[i] = slots.length - 1 - i;
+            }
+            freeCount = slots.length;
+            hand = 0;
+        }
+    }
+}
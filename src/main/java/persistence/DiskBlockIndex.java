@@ -0,0 +1,254 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/24
+ */
+package persistence;
+
+import core.SHA256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * Hash index of {@link DiskBlockPersistence}, block hash -> position of the record in the block file.
+ * It is an open addressing table with linear probing, mapped into memory,
+ * so a lookup costs no I/O and a miss costs no record read at all.
+ *
+ * The index can always be rebuilt from the block file, thus it is not forced to disk on every put.
+ * It is marked dirty while opened and clean on close(), an index which was not closed cleanly is dropped.
+ *
+ * File Format --
+ * 4 bytes magic
+ * 4 bytes capacity, a power of 2
+ * 4 bytes number of entries
+ * 1 byte clean flag
+ * 8 bytes length of the block file covered by the index
+ * ... padding to HEADER_SIZE
+ * capacity slots of 32 bytes block hash + 8 bytes record position, position 0 means an empty slot
+ */
+class DiskBlockIndex {
+    private static final int MAGIC = 0x6d796978;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = SHA256Hash.SIZE + Long.BYTES;
+    private static final int MIN_CAPACITY = 1 << 12;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    private static final int CLEAN_OFFSET = 12;
+    private static final int LENGTH_OFFSET = 13;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int count;
+
+    private DiskBlockIndex(RandomAccessFile file) {
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * create an empty index, an existing file is overwritten
+     * @param expected number of entries expected, the table grows anyway
+     */
+    static DiskBlockIndex create(File path, int expected) throws IOException {
+        DiskBlockIndex index = new DiskBlockIndex(new RandomAccessFile(path, "rw"));
+        try {
+            index.channel.truncate(0);
+            index.capacity = capacityFor(expected);
+            index.count = 0;
+            index.map(index.capacity);
+            index.map.putInt(MAGIC_OFFSET, MAGIC);
+            index.writeHeader();
+            index.map.put(CLEAN_OFFSET, (byte) 0);
+            index.setIndexedLength(0);
+        } catch (IOException e) {
+            index.file.close();
+            throw e;
+        }
+        return index;
+    }
+
+    /**
+     * open an existing index
+     * @return the index, or null if it is missing, corrupted or was not closed cleanly
+     */
+    static DiskBlockIndex open(File path) throws IOException {
+        if (!path.exists() || path.length() < HEADER_SIZE) {
+            return null;
+        }
+        DiskBlockIndex index = new DiskBlockIndex(new RandomAccessFile(path, "rw"));
+        try {
+            index.map = index.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            int capacity = index.map.getInt(CAPACITY_OFFSET);
+            if (index.map.getInt(MAGIC_OFFSET) != MAGIC || index.map.get(CLEAN_OFFSET) != 1
+                    || Integer.bitCount(capacity) != 1 || index.channel.size() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                index.file.close();
+                return null;
+            }
+            index.capacity = capacity;
+            index.count = index.map.getInt(COUNT_OFFSET);
+            index.map(capacity);
+            index.map.put(CLEAN_OFFSET, (byte) 0);
+            index.map.force();
+        } catch (IOException e) {
+            index.file.close();
+            throw e;
+        }
+        return index;
+    }
+
+    private static int capacityFor(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < expected) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void map(int capacity) throws IOException {
+        long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Block index is too large: " + size);
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void writeHeader() {
+        map.putInt(CAPACITY_OFFSET, capacity);
+        map.putInt(COUNT_OFFSET, count);
+    }
+
+    /**
+     * @return position of the record, or -1 if the hash is not indexed
+     */
+    long get(SHA256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long w0 = readLong(bytes, 0), w1 = readLong(bytes, 8), w2 = readLong(bytes, 16), w3 = readLong(bytes, 24);
+        int mask = capacity - 1;
+        for (int slot = (int) w3 & mask; ; slot = (slot + 1) & mask) {
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            long position = map.getLong(offset + SHA256Hash.SIZE);
+            if (position == 0) {
+                return -1;
+            }
+            if (map.getLong(offset) == w0 && map.getLong(offset + 8) == w1
+                    && map.getLong(offset + 16) == w2 && map.getLong(offset + 24) == w3) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * index the record position of a block, an existing entry is replaced
+     * @param position position of the record, must be positive
+     */
+    void put(SHA256Hash hash, long position) throws IOException {
+        if ((count + 1) * 2 > capacity) {
+            grow();
+        }
+        if (insert(hash.getBytes(), position)) {
+            count++;
+            map.putInt(COUNT_OFFSET, count);
+        }
+    }
+
+    /** @return true if a new entry is inserted */
+    private boolean insert(byte[] bytes, long position) {
+        long w0 = readLong(bytes, 0), w1 = readLong(bytes, 8), w2 = readLong(bytes, 16), w3 = readLong(bytes, 24);
+        int mask = capacity - 1;
+        for (int slot = (int) w3 & mask; ; slot = (slot + 1) & mask) {
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            long existing = map.getLong(offset + SHA256Hash.SIZE);
+            if (existing == 0) {
+                map.putLong(offset, w0);
+                map.putLong(offset + 8, w1);
+                map.putLong(offset + 16, w2);
+                map.putLong(offset + 24, w3);
+                map.putLong(offset + SHA256Hash.SIZE, position);
+                return true;
+            }
+            if (map.getLong(offset) == w0 && map.getLong(offset + 8) == w1
+                    && map.getLong(offset + 16) == w2 && map.getLong(offset + 24) == w3) {
+                map.putLong(offset + SHA256Hash.SIZE, position);
+                return false;
+            }
+        }
+    }
+
+    /** double the table, entries are copied out and inserted again */
+    private void grow() throws IOException {
+        byte[] slots = new byte[capacity * SLOT_SIZE];
+        map.position(HEADER_SIZE);
+        map.get(slots);
+        map.position(0);
+
+        int oldCapacity = capacity;
+        capacity <<= 1;
+        map(capacity);
+        for (int offset = HEADER_SIZE; offset < HEADER_SIZE + capacity * SLOT_SIZE; offset += SLOT_SIZE) {
+            map.putLong(offset + SHA256Hash.SIZE, 0);
+        }
+        byte[] bytes = new byte[SHA256Hash.SIZE];
+        for (int i = 0; i < oldCapacity; i++) {
+            int offset = i * SLOT_SIZE;
+            long position = readLong(slots, offset + SHA256Hash.SIZE);
+            if (position != 0) {
+                System.arraycopy(slots, offset, bytes, 0, SHA256Hash.SIZE);
+                insert(bytes, position);
+            }
+        }
+        writeHeader();
+    }
+
+    /** visit every indexed hash */
+    void forEachHash(Consumer<SHA256Hash> action) {
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            if (map.getLong(offset + SHA256Hash.SIZE) != 0) {
+                byte[] bytes = new byte[SHA256Hash.SIZE];
+                for (int i = 0; i < SHA256Hash.SIZE; i++) {
+                    bytes[i] = map.get(offset + i);
+                }
+                action.accept(new SHA256Hash(bytes));
+            }
+        }
+    }
+
+    /** length of the block file whose records are all indexed */
+    long getIndexedLength() {
+        return map.getLong(LENGTH_OFFSET);
+    }
+
+    void setIndexedLength(long length) {
+        map.putLong(LENGTH_OFFSET, length);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** mark the index clean and flush it */
+    void close() throws IOException {
+        try {
+            map.put(CLEAN_OFFSET, (byte) 1);
+            map.force();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = v << 8 | (bytes[offset + i] & 0xFFL);
+        }
+        return v;
+    }
+}
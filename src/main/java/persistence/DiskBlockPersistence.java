@@ -15,17 +15,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import utils.SpringContextUtil;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
 
 /**
  * Stores the block chain to disk
@@ -33,109 +36,112 @@ import java.util.Set;
  * File Format --
  * 1 byte file format version
  * 32 bytes chain tip block hash
- * ... Block Record
+ * 8 bytes committed length, the file offset after the last committed record
+ * ... Block Record, see {@link StoredBlockCodec}
+ * A file of version 1 or 2 is migrated on open
+ *
+ * New records are written after the committed ones, then the chain tip and the committed length are written together
+ * in one write, forced after the records, which is the commit point. Only then the records are indexed and readable.
+ * Records after the committed length, e.g. of a commit broken off by a crash, are ignored on open and overwritten.
+ *
+ * Records are located by the hash index in a file next to it, see {@link DiskBlockIndex}
+ * and main chain blocks by the height index in another one, see {@link DiskHeightIndex}
+ * Lookups of blocks never stored are answered by a {@link ScalableBloomFilter} filled from the hash index on open
+ *
+ * There are two modes to keep the records --
+ * FILE: the file is opened in "rwd" mode, every record and commit is written synchronously
+ * MAPPED: records are kept in memory mapped segments and read without locking, they are readable once written,
+ *         and forced to disk then committed with the chain tip every checkpointInterval chain tip updates,
+ *         thus a crash loses at most the blocks after the last checkpoint
  */
 public class DiskBlockPersistence implements BlockPersistence {
     private static final Logger logger = LoggerFactory.getLogger(DiskBlockPersistence.class);
-    private static final byte FILE_FORMAT_VERSION = 1; // used for specified the format and version of the block file
+    private static final byte FILE_FORMAT_VERSION = 3; // used for specified the format and version of the block file
+    private static final byte LEGACY_FILE_FORMAT_VERSION = 1; // records without block hash, see LegacyRecord
+    private static final byte UNCOMMITTED_FILE_FORMAT_VERSION = 2; // records of the current format, no committed length
+    private static final int RECORD_SIZE = StoredBlockCodec.SIZE;
+    private static final int LEGACY_HEADER_SIZE = 1 + SHA256Hash.SIZE; // version byte and chain tip hash of version 1 and 2
+    private static final int HEADER_SIZE = 1 + SHA256Hash.SIZE + Long.BYTES; // version byte, chain tip hash and committed length
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String HEIGHT_INDEX_SUFFIX = ".height";
+    private static final String MIGRATE_SUFFIX = ".migrate";
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.001;
 
-    private RandomAccessFile file;
+    public enum Mode {
+        FILE,
+        MAPPED
+    }
 
-    /**
-     * Keep the cache of block into memory for up to 2050 blocks. It can help to optimize some cases where we are looking up
-     * recent blocks.
-     */
-    private LinkedHashMap<SHA256Hash, StoredBlock> blockCache = new LinkedHashMap<SHA256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<SHA256Hash, StoredBlock> entry) {
-            return size() > 2050;
-        }
-    };
+    private final Mode mode;
+    private final int checkpointInterval;
+    private int tipUpdates; // chain tip updates since the last checkpoint
+
+    private RandomAccessFile file;
 
     /**
-     * Keep the cache of not found block to track get() miss
+     * Keep the cache of recently used blocks into memory. It can help to optimize some cases where we are looking up
+     * recent blocks, a hit needs no lock of the store.
      */
-    private Set<SHA256Hash> notFoundCache = Collections.newSetFromMap(new LinkedHashMap<SHA256Hash, Boolean>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<SHA256Hash, Boolean> entry) {
-            return size() > 100;
-        }
-    });
+    private final BlockCache blockCache;
 
     private SHA256Hash chainTip;
     private FileChannel channel;
+    private RecordStore store;
+    private DiskBlockIndex index;
+    private DiskHeightIndex heightIndex;
+    private ScalableBloomFilter filter; // answers the lookups of blocks never stored
+    private long appendPosition; // records are appended here, the committed length in FILE mode
+    private final ByteBuffer header = ByteBuffer.allocate(SHA256Hash.SIZE + Long.BYTES); // the commit, reused by the writer
+    private ByteBuffer appendBuffer = ByteBuffer.allocateDirect(16 * RECORD_SIZE); // the appended records, grown by the writer
+    private volatile PendingBatch batch; // the open batch, null if none
 
     /**
-     * A Record represent a block data in disk file
-     * It contains some method to read or write from the file
+     * A record of file format version 1, it has neither the block hash nor the next field
+     * only read when the file is migrated
      */
-    private static class Record {
-        private static final int CHAIN_WORK_BYTES = 16; // the number of byte used for storing total work
-        private static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES]; // buffer hold byte 0
+    private static class LegacyRecord {
+        private static final int CHAIN_WORK_BYTES = 16;
+        public static final int SIZE = 4 + CHAIN_WORK_BYTES + BlockHead.BLOCK_HEAD_SIZE;
 
-        private int height; // 4 bytes
-        private byte[] chainWork; // 16 bytes
-        private byte[] blockHead; // 44 bytes
-
-        public static final int SIZE = 4 + Record.CHAIN_WORK_BYTES + BlockHead.BLOCK_HEAD_SIZE;
-
-        public Record() {
-            height = 0;
-            chainWork = new byte[CHAIN_WORK_BYTES];
-            blockHead = new byte[BlockHead.BLOCK_HEAD_SIZE];
-        }
-
-        public static void write(FileChannel channel, StoredBlock block) throws IOException {
-            ByteBuffer buf = ByteBuffer.allocate(Record.SIZE);
-            buf.putInt(block.getHeight());
-            byte[] chainWorkBytes = block.getChainWork().toByteArray();
-            /** chainWork use a constant 16 bytes to store, thus padding with 0 if necessary */
-            if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
-                buf.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
-            }
-            buf.put(chainWorkBytes);
-            buf.put(block.getBlock().serialize());
-            buf.position(0);
-            channel.position(channel.size());
-            if (channel.write(buf) < Record.SIZE) {
-                throw new IOException("Fail to write record!");
+        /** @return the block, or null if the record is zero filled */
+        public static StoredBlock decode(byte[] bytes) {
+            boolean empty = true;
+            for (byte b : bytes) {
+                empty &= b == 0;
             }
-            channel.position(channel.size() - Record.SIZE);
-        }
-
-        public boolean read(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
-            buffer.position(0);
-            long len = channel.read(buffer, position);
-            if (len < Record.SIZE) {
-                return false;
+            if (empty) {
+                return null;
             }
-            buffer.position(0);
-            height = buffer.getInt();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int height = buffer.getInt();
+            byte[] chainWork = new byte[CHAIN_WORK_BYTES];
             buffer.get(chainWork);
-            buffer.get(blockHead);
-            return true;
-        }
-
-        public BigInteger getChainWork() {
-            return new BigInteger(1, chainWork);
-        }
-
-        public BlockHead getHead() {
-            return BlockHead.deserialize(blockHead);
+            byte[] head = new byte[BlockHead.BLOCK_HEAD_SIZE];
+            buffer.get(head);
+            return new StoredBlock(new Block(BlockHead.deserialize(head)), new BigInteger(1, chainWork), height);
         }
+    }
 
-        public int getHeight() {
-            return height;
-        }
+    public DiskBlockPersistence(File file) throws BlockPersistenceException {
+        this(file, Mode.FILE, 1);
+    }
 
-        public StoredBlock toStoredBlock() {
-            return new StoredBlock(new Block(getHead()), getChainWork(), getHeight());
-        }
+    public DiskBlockPersistence(File file, Mode mode, int checkpointInterval) throws BlockPersistenceException {
+        this(file, mode, checkpointInterval, new ClockBlockCache(2050));
     }
 
-    public DiskBlockPersistence(File file) throws BlockPersistenceException {
+    /**
+     * @param mode how records are kept
+     * @param checkpointInterval in MAPPED mode, force records and chain tip to disk every such number of chain tip updates
+     * @param blockCache cache of recently used blocks
+     */
+    public DiskBlockPersistence(File file, Mode mode, int checkpointInterval, BlockCache blockCache) throws BlockPersistenceException {
+        this.mode = mode;
+        this.blockCache = blockCache;
+        this.checkpointInterval = Math.max(checkpointInterval, 1);
         if (file.exists()) {
             try {
+                migrateIfNeeded(file);
                 load(file);
                 return;
             } catch (Exception e) {
@@ -146,6 +152,14 @@ public class DiskBlockPersistence implements BlockPersistence {
         createNewStore(file);
     }
 
+    private static File indexFile(File file) {
+        return new File(file.getPath() + INDEX_SUFFIX);
+    }
+
+    private static File heightIndexFile(File file) {
+        return new File(file.getPath() + HEIGHT_INDEX_SUFFIX);
+    }
+
     private void createNewStore(File file) throws BlockPersistenceException {
         blockCache.clear();
         try {
@@ -155,9 +169,11 @@ public class DiskBlockPersistence implements BlockPersistence {
                 }
             }
             //recreate
-            this.file = new RandomAccessFile(file, "rwd");
-            this.channel = this.file.getChannel();
+            openFile(file);
             this.file.write(FILE_FORMAT_VERSION);
+            this.index = DiskBlockIndex.create(indexFile(file), 0);
+            this.filter = new ScalableBloomFilter(0, FILTER_FALSE_POSITIVE_RATE);
+            this.heightIndex = DiskHeightIndex.create(heightIndexFile(file));
         } catch (IOException e) {
             throw new BlockPersistenceException(e);
         }
@@ -165,8 +181,12 @@ public class DiskBlockPersistence implements BlockPersistence {
             Block genesis = ((NetworkParameters)(SpringContextUtil.getBean("network_params"))).genesisBlock;
             StoredBlock storedBlock = new StoredBlock(genesis, genesis.getWork(), 0);
             this.chainTip = genesis.getHash();
-            this.file.write(this.chainTip.getBytes());
+            this.appendPosition = HEADER_SIZE;
+            writeHeader(this.chainTip, this.appendPosition);
+            this.store = createStore();
             put(storedBlock);
+            updateHeightIndex(storedBlock);
+            checkpoint();
         } catch (VerificationException e) {
             throw new RuntimeException(e); //impossible
         } catch (IOException e) {
@@ -174,11 +194,19 @@ public class DiskBlockPersistence implements BlockPersistence {
         }
     }
 
+    private void openFile(File file) throws IOException {
+        this.file = new RandomAccessFile(file, mode == Mode.FILE ? "rwd" : "rw");
+        this.channel = this.file.getChannel();
+    }
+
+    private RecordStore createStore() throws IOException {
+        return mode == Mode.FILE ? new FileRecordStore(channel, RECORD_SIZE) : new MappedRecordStore(channel, HEADER_SIZE, RECORD_SIZE);
+    }
+
     private void load(File file) throws IOException, BlockPersistenceException {
         logger.info("Loading block from {}", file);
-        this.file = new RandomAccessFile(file, "rwd");
+        openFile(file);
         try {
-            channel = this.file.getChannel();
             //read version byte
             int version = this.file.read();
             if (version == -1) {
@@ -194,83 +222,281 @@ public class DiskBlockPersistence implements BlockPersistence {
             }
             this.chainTip = new SHA256Hash(chainTipHash);
             logger.info("Read chain tip from disk file: {}", this.chainTip);
-            channel.position(channel.size() - Record.SIZE);
+            long committed = this.file.readLong();
+            if (committed <= HEADER_SIZE || (committed - HEADER_SIZE) % RECORD_SIZE != 0 || committed > channel.size()) {
+                throw new BlockPersistenceException("Bad committed length: " + committed);
+            }
+            // records written after the last commit are ignored, the next append overwrites them
+            // the tail of a mapped file is beyond the last commit anyway
+            if (mode == Mode.FILE && committed < channel.size()) {
+                logger.warn("Ignoring {} bytes written after the last commit.", channel.size() - committed);
+            }
+            this.appendPosition = committed;
+            this.store = createStore();
+            this.index = DiskBlockIndex.open(indexFile(file));
+            if (index == null || index.getIndexedLength() != appendPosition) {
+                rebuildIndex(file);
+            }
+            this.filter = new ScalableBloomFilter(index.size(), FILTER_FALSE_POSITIVE_RATE);
+            index.forEachHash(filter::add);
+            this.heightIndex = DiskHeightIndex.open(heightIndexFile(file));
+            StoredBlock tip = getChainTip();
+            if (heightIndex == null || heightIndex.size() != tip.getHeight() + 1
+                    || !tip.getBlock().getHash().equals(heightIndex.get(tip.getHeight()))) {
+                rebuildHeightIndex(file, tip);
+            }
         } catch (Exception e) {
+            if (index != null) {
+                index.close();
+                index = null;
+            }
+            if (heightIndex != null) {
+                heightIndex.close();
+                heightIndex = null;
+            }
             this.file.close();
             throw e;
         }
     }
 
+    /**
+     * rewrite a file of version 1 or 2 into the current format, the indexes are dropped and rebuilt on load
+     * all the records of the old file are taken as committed
+     * every block of version 1 is hashed once here, as the legacy records do not keep the hash
+     */
+    private static void migrateIfNeeded(File file) throws IOException {
+        File migrated = new File(file.getPath() + MIGRATE_SUFFIX);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < LEGACY_HEADER_SIZE) {
+                return;
+            }
+            int version = in.read();
+            if (version != LEGACY_FILE_FORMAT_VERSION && version != UNCOMMITTED_FILE_FORMAT_VERSION) {
+                return;
+            }
+            logger.info("Migrating {} to file format version {}, it may need some time", file, FILE_FORMAT_VERSION);
+            byte[] chainTipHash = new byte[SHA256Hash.SIZE];
+            in.readFully(chainTipHash);
+            int oldRecordSize = version == LEGACY_FILE_FORMAT_VERSION ? LegacyRecord.SIZE : RECORD_SIZE;
+            long records = (in.length() - LEGACY_HEADER_SIZE) / oldRecordSize;
+            long committed = HEADER_SIZE;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(migrated))) {
+                out.write(FILE_FORMAT_VERSION);
+                out.write(chainTipHash);
+                out.write(new byte[Long.BYTES]); // the committed length, written once the records are copied
+                byte[] old = new byte[oldRecordSize];
+                ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+                for (long i = 0; i < records; i++) {
+                    in.readFully(old);
+                    if (version == LEGACY_FILE_FORMAT_VERSION) {
+                        StoredBlock block = LegacyRecord.decode(old);
+                        if (block == null) {
+                            break; // zero filled tail of a mapped file
+                        }
+                        record.clear();
+                        StoredBlockCodec.encode(block, record);
+                        out.write(record.array());
+                    } else {
+                        if (StoredBlockCodec.isEmpty(ByteBuffer.wrap(old), 0)) {
+                            break;
+                        }
+                        out.write(old);
+                    }
+                    committed += RECORD_SIZE;
+                }
+            }
+            try (RandomAccessFile out = new RandomAccessFile(migrated, "rwd")) {
+                out.seek(LEGACY_HEADER_SIZE);
+                out.writeLong(committed);
+            }
+        }
+        Files.move(migrated.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(indexFile(file).toPath());
+        Files.deleteIfExists(heightIndexFile(file).toPath());
+    }
+
+    /**
+     * rebuild the hash index from the hash kept in every record of the block file
+     */
+    private void rebuildIndex(File file) throws IOException {
+        logger.info("Rebuilding block index of {}, it may need some time", file);
+        if (index != null) {
+            index.close();
+        }
+        int records = (int) ((appendPosition - HEADER_SIZE) / RECORD_SIZE);
+        index = DiskBlockIndex.create(indexFile(file), records);
+        for (long pos = HEADER_SIZE; pos < appendPosition; pos += RECORD_SIZE) {
+            ByteBuffer record = store.read(pos);
+            record.position(record.position() + StoredBlockCodec.HASH_OFFSET);
+            byte[] hash = new byte[SHA256Hash.SIZE];
+            record.get(hash);
+            index.put(new SHA256Hash(hash), pos);
+        }
+        index.setIndexedLength(appendPosition);
+        logger.info("Block index rebuilt with {} blocks.", index.size());
+    }
+
+    /**
+     * rebuild the height index by walking back from the chain tip
+     */
+    private void rebuildHeightIndex(File file, StoredBlock tip) throws IOException, BlockPersistenceException {
+        logger.info("Rebuilding height index of {}, it may need some time", file);
+        if (heightIndex != null) {
+            heightIndex.close();
+        }
+        heightIndex = DiskHeightIndex.create(heightIndexFile(file));
+        updateHeightIndex(tip);
+    }
+
+    /**
+     * point the heights to the main chain ending at the tip
+     * walk back from the tip until the block is already indexed at its height, i.e. the fork point
+     */
+    private void updateHeightIndex(StoredBlock tip) throws IOException, BlockPersistenceException {
+        heightIndex.truncate(tip.getHeight() + 1);
+        for (StoredBlock cursor = tip; cursor != null; cursor = get(cursor.getBlock().getHashPrevBlock())) {
+            SHA256Hash hash = cursor.getBlock().getHash();
+            if (hash.equals(heightIndex.get(cursor.getHeight()))) {
+                break;
+            }
+            heightIndex.set(cursor.getHeight(), hash);
+        }
+    }
+
     @Override
     public synchronized void put(StoredBlock block) throws BlockPersistenceException {
+        awaitOtherBatch();
+        if (batch != null) {
+            batch.put(block);
+            return;
+        }
         try {
-            SHA256Hash hash = block.getBlock().getHash();
-            // Append to the end of the file.
-            Record.write(channel, block);
-            blockCache.put(hash, block);
+            commit(Collections.singletonList(block), null);
         } catch (IOException e) {
             throw new BlockPersistenceException(e);
         }
     }
 
+    /**
+     * append the records after the committed ones in one write, then commit them with the chain tip, see the class comment
+     * the records are indexed only after the commit, the height index follows the new chain tip
+     * @param tip the new chain tip, or null if it is not changed
+     */
+    private void commit(Collection<StoredBlock> blocks, StoredBlock tip) throws IOException, BlockPersistenceException {
+        if (!blocks.isEmpty()) {
+            int size = blocks.size() * RECORD_SIZE;
+            if (appendBuffer.capacity() < size) {
+                appendBuffer = ByteBuffer.allocateDirect(Math.max(size, 2 * appendBuffer.capacity()));
+            }
+            appendBuffer.clear();
+            for (StoredBlock block : blocks) {
+                StoredBlockCodec.encode(block, appendBuffer);
+            }
+            appendBuffer.flip();
+            store.write(appendPosition, appendBuffer);
+        }
+        SHA256Hash newTip = tip == null ? this.chainTip : tip.getBlock().getHash();
+        if (mode == Mode.FILE) {
+            writeHeader(newTip, appendPosition + (long) blocks.size() * RECORD_SIZE);
+        }
+        this.chainTip = newTip;
+        for (StoredBlock block : blocks) {
+            SHA256Hash hash = block.getBlock().getHash();
+            filter.add(hash);
+            index.put(hash, appendPosition);
+            appendPosition += RECORD_SIZE;
+            blockCache.put(hash, block);
+        }
+        index.setIndexedLength(appendPosition);
+        if (tip != null) {
+            updateHeightIndex(tip);
+            if (mode == Mode.MAPPED && ++tipUpdates >= checkpointInterval) {
+                checkpoint();
+            }
+        }
+    }
+
+    /** write the chain tip and the committed length in one write, it is synchronous in FILE mode */
+    private void writeHeader(SHA256Hash tip, long committed) throws IOException {
+        header.clear();
+        header.put(tip.getBytes());
+        header.putLong(committed);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, 1 + header.position());
+        }
+    }
+
+    /**
+     * only the index is accessed under the lock, neither the cache nor the record needs it
+     */
     @Override
-    public synchronized StoredBlock get(SHA256Hash hash) throws BlockPersistenceException {
+    public StoredBlock get(SHA256Hash hash) throws BlockPersistenceException {
+        PendingBatch current = batch;
+        if (current != null && current.isOwner()) {
+            // only the owner changes its batch
+            StoredBlock pending = current.get(hash);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        if (!filter.mightContain(hash)) {
+            return null;
+        }
         // Check the memory cache first.
         StoredBlock fromMem = blockCache.get(hash);
         if (fromMem != null) {
             return fromMem;
         }
-        if (notFoundCache.contains(hash)) {
+        long pos;
+        synchronized (this) {
+            pos = index.get(hash);
+        }
+        if (pos < 0) {
+            filter.reportFalsePositive();
             return null;
         }
-
         try {
-            Record fromDisk = getRecord(hash);
-            StoredBlock block = null;
-            if (fromDisk == null) {
-                notFoundCache.add(hash);
-            } else {
-                block = fromDisk.toStoredBlock();
-                blockCache.put(hash, block);
-            }
+            // decoded in place from the mapped file or the direct buffer of the thread
+            StoredBlock block = StoredBlockCodec.decode(store.read(pos));
+            blockCache.putIfAbsent(hash, block);
             return block;
         } catch (IOException e) {
             throw new BlockPersistenceException(e);
         }
     }
 
-    private ByteBuffer buf = ByteBuffer.allocateDirect(Record.SIZE);
-
-    private Record getRecord(SHA256Hash hash) throws IOException {
-        long startPos = channel.position();
-        // Use our own file pointer within the tight loop as updating channel positions is really expensive.
-        long pos = startPos;
-        Record record = new Record();
-        do {
-            if (!record.read(channel, pos, buf))
-                throw new IOException("Failed to read buffer");
-            if (new Block(record.getHead()).getHash().equals(hash)) {
-                // Found it. Update file position for next time.
-                channel.position(pos);
-                return record;
-            }
-            // Did not find it.
-            if (pos == 1 + 32) {
-                // At the start so wrap around to the end.
-                pos = channel.size() - Record.SIZE;
-            } else {
-                // Move backwards.
-                pos = pos - Record.SIZE;
-                assert pos >= 1 + 32 : pos;
-            }
-        } while (pos != startPos);
-        // Was never stored.
-        channel.position(pos);
-        return null;
+    /**
+     * the same as get() but no record is read
+     */
+    @Override
+    public boolean hasBlock(SHA256Hash hash) {
+        PendingBatch current = batch;
+        if (current != null && current.isOwner() && current.get(hash) != null) {
+            return true;
+        }
+        if (!filter.mightContain(hash)) {
+            return false;
+        }
+        if (blockCache.get(hash) != null) {
+            return true;
+        }
+        long pos;
+        synchronized (this) {
+            pos = index.get(hash);
+        }
+        if (pos < 0) {
+            filter.reportFalsePositive();
+            return false;
+        }
+        return true;
     }
 
     @Override
     public synchronized StoredBlock getChainTip() throws BlockPersistenceException {
+        if (batch != null && batch.isOwner() && batch.tip != null) {
+            return batch.tip;
+        }
         StoredBlock head = get(chainTip);
         if (head == null)
             throw new BlockPersistenceException("Corrupted block store: chain tip not found");
@@ -279,19 +505,129 @@ public class DiskBlockPersistence implements BlockPersistence {
 
     @Override
     public synchronized void setChainTip(StoredBlock block) throws BlockPersistenceException {
+        awaitOtherBatch();
+        if (batch != null) {
+            batch.tip = block;
+            return;
+        }
         try {
-            this.chainTip = block.getBlock().getHash();
-            channel.write(ByteBuffer.wrap(this.chainTip.getBytes()), 1);
+            commit(Collections.emptyList(), block);
         } catch (IOException e) {
             throw new BlockPersistenceException(e);
         }
     }
 
     @Override
-    public void close() throws BlockPersistenceException {
+    public StoredBlock getByHeight(int height) throws BlockPersistenceException {
+        SHA256Hash hash;
+        synchronized (this) {
+            try {
+                hash = heightIndex.get(height);
+            } catch (IOException e) {
+                throw new BlockPersistenceException(e);
+            }
+        }
+        return hash == null ? null : get(hash);
+    }
+
+    @Override
+    public synchronized void beginBatch() throws BlockPersistenceException {
+        awaitOtherBatch();
+        if (batch == null) {
+            batch = new PendingBatch();
+        } else {
+            batch.enter();
+        }
+    }
+
+    /**
+     * pending records are appended in one write, then committed together with the chain tip in another,
+     * nothing of the batch is readable before, see the class comment
+     */
+    @Override
+    public synchronized void commitBatch() throws BlockPersistenceException {
+        if (batch == null || !batch.isOwner()) {
+            throw new IllegalStateException("No batch of this thread to commit");
+        }
+        if (!batch.leave()) {
+            return;
+        }
+        boolean written = false;
+        try {
+            if (!batch.blocks.isEmpty() || batch.tip != null) {
+                commit(batch.blocks.values(), batch.tip);
+            }
+            written = true;
+        } catch (IOException e) {
+            throw new BlockPersistenceException(e);
+        } finally {
+            endBatch(written);
+        }
+    }
+
+    @Override
+    public synchronized void abortBatch() {
+        if (batch != null && batch.isOwner()) {
+            endBatch(false);
+        }
+    }
+
+    /** close the batch and wake up the waiting writers, cached copies of dropped blocks are evicted */
+    private void endBatch(boolean written) {
+        if (!written) {
+            for (SHA256Hash hash : batch.blocks.keySet()) {
+                blockCache.remove(hash);
+            }
+        }
+        batch = null;
+        notifyAll();
+    }
+
+    /** wait until the batch of another thread ends, the lock must be held */
+    private void awaitOtherBatch() throws BlockPersistenceException {
+        while (batch != null && !batch.isOwner()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BlockPersistenceException(e);
+            }
+        }
+    }
+
+    /**
+     * make the records durable first, then commit them with the chain tip which refers to them
+     */
+    private void checkpoint() throws IOException {
+        if (mode == Mode.FILE) {
+            return; // everything is committed synchronously
+        }
+        store.force();
+        writeHeader(this.chainTip, appendPosition);
+        channel.force(false);
+        tipUpdates = 0;
+    }
+
+    @Override
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    @Override
+    public ScalableBloomFilter getBloomFilter() {
+        return filter;
+    }
+
+    @Override
+    public synchronized void close() throws BlockPersistenceException {
+        logger.info("Block cache: {}", blockCache);
+        logger.info("Bloom filter: {}", filter);
         blockCache.clear();
-        notFoundCache.clear();
         try {
+            checkpoint();
+            store.close();
+            index.close();
+            heightIndex.close();
             this.file.close();
         } catch (IOException e) {
             throw new BlockPersistenceException(e);
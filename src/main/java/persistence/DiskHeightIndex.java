@@ -0,0 +1,126 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/26
+ */
+package persistence;
+
+import core.SHA256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Height index of main chain of {@link DiskBlockPersistence}, height -> block hash.
+ * Like {@link DiskBlockIndex} it can be rebuilt from the block file, so it is only trusted if it was closed cleanly.
+ *
+ * File Format --
+ * 1 byte clean flag
+ * ... padding to HEADER_SIZE
+ * 32 bytes block hash for every height from 0 to the chain tip
+ */
+class DiskHeightIndex {
+    private static final int HEADER_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private int size; // number of heights
+
+    private DiskHeightIndex(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.size = (int) ((channel.size() - HEADER_SIZE) / SHA256Hash.SIZE);
+    }
+
+    /** create an empty index, an existing file is overwritten */
+    static DiskHeightIndex create(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(HEADER_SIZE);
+            DiskHeightIndex index = new DiskHeightIndex(file);
+            index.setClean(false);
+            return index;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * open an existing index
+     * @return the index, or null if it is missing or was not closed cleanly
+     */
+    static DiskHeightIndex open(File path) throws IOException {
+        if (!path.exists() || path.length() < HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.read() != 1) {
+                file.close();
+                return null;
+            }
+            DiskHeightIndex index = new DiskHeightIndex(file);
+            index.setClean(false);
+            return index;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void setClean(boolean clean) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[]{(byte) (clean ? 1 : 0)}), 0);
+        channel.force(false);
+    }
+
+    /** number of heights, it is the chain height + 1 */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return hash of the main chain block at the height, or null if there is no such height
+     */
+    SHA256Hash get(int height) throws IOException {
+        if (height < 0 || height >= size) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(SHA256Hash.SIZE);
+        long position = HEADER_SIZE + (long) height * SHA256Hash.SIZE;
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Height " + height + " is beyond the end of index");
+            }
+        }
+        return new SHA256Hash(buf.array());
+    }
+
+    /** set the hash of a height, the index is extended if the height is beyond it */
+    void set(int height, SHA256Hash hash) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(hash.getBytes());
+        long position = HEADER_SIZE + (long) height * SHA256Hash.SIZE;
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+        size = Math.max(size, height + 1);
+    }
+
+    /** drop the heights from size */
+    void truncate(int size) throws IOException {
+        if (size < this.size) {
+            channel.truncate(HEADER_SIZE + (long) size * SHA256Hash.SIZE);
+            this.size = size;
+        }
+    }
+
+    void close() throws IOException {
+        try {
+            setClean(true);
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/25
+ */
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records read and written through the file channel with positional I/O.
+ * The file is opened in "rwd" mode, every write is synchronous, thus force() has nothing to do.
+ * A record is read into a direct buffer of the reading thread, which the channel fills without a copy.
+ */
+class FileRecordStore implements RecordStore {
+    private final FileChannel channel;
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    FileRecordStore(FileChannel channel, int recordSize) {
+        this.channel = channel;
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(recordSize));
+    }
+
+    @Override
+    public ByteBuffer read(long position) throws IOException {
+        ByteBuffer buf = buffers.get();
+        buf.clear();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Record at " + position + " is beyond the end of file");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        long offset = position - src.position();
+        while (src.hasRemaining()) {
+            channel.write(src, offset + src.position());
+        }
+    }
+
+    @Override
+    public void force() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
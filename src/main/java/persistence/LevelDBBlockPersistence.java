@@ -15,44 +15,61 @@ import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
  * LevelDB based block persistence
  * Use memory to cache recently used blocks
+ * Lookups of blocks never stored are answered by a {@link ScalableBloomFilter} built from the keys on open
+ *
+ * Keys --
+ * 32 bytes block hash -> StoredBlock, see {@link StoredBlockCodec}
+ * "chainTip" -> hash of chain tip
+ * "format" -> 1 byte version of the block values, values of a store without it are of the legacy format and migrated on open
+ * 'h' + 4 bytes big-endian height -> hash of the main chain block at the height
  */
 @Component
 public class LevelDBBlockPersistence implements BlockPersistence {
     private static final Logger logger = LoggerFactory.getLogger(LevelDBBlockPersistence.class);
     private static final byte[] CHAIN_TIP_KEY = "chainTip".getBytes();
+    private static final byte HEIGHT_KEY_PREFIX = 'h';
+    private static final byte[] FORMAT_KEY = "format".getBytes();
+    private static final int MIGRATE_BATCH_SIZE = 10000;
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.001;
 
     private NetworkParameters params;
 
     private DB db;
-    private ByteBuffer buf = ByteBuffer.allocate(StoredBlock.SIZE);
+    private int mainHeight = -1; // height of the indexed main chain
+    private volatile PendingBatch batch; // the open batch, null if none
+    private volatile ScalableBloomFilter filter; // answers the lookups of blocks never stored
+    private ByteBuffer buf = ByteBuffer.allocate(StoredBlockCodec.SIZE);
     private static File path = new File("data");
 
     /**
-     * Keep the cache of block into memory for up to 2050 blocks. It can help to optimize some cases where we are looking up
-     * recent blocks.
+     * Keep the cache of recently used blocks into memory. It can help to optimize some cases where we are looking up
+     * recent blocks, a hit needs no lock of the store.
      */
-    private LinkedHashMap<SHA256Hash, StoredBlock> blockCache = new LinkedHashMap<SHA256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<SHA256Hash, StoredBlock> entry) {
-            return size() > 2050;
-        }
-    };
+    private final BlockCache blockCache;
 
-    /** Creates a LevelDB block store using the given factory */
+    /**
+     * Creates a LevelDB block store using the given factory
+     * @param cacheEntries max number of cached blocks
+     * @param cacheBytes max heap size of cached blocks, it overrides cacheEntries if positive
+     */
     @Autowired
-    public LevelDBBlockPersistence(NetworkParameters params) throws BlockPersistenceException {
+    public LevelDBBlockPersistence(NetworkParameters params,
+                                   @Value("${mycoin.blockcache.entries:2050}") int cacheEntries,
+                                   @Value("${mycoin.blockcache.bytes:0}") long cacheBytes) throws BlockPersistenceException {
         this.params = params;
+        this.blockCache = cacheBytes > 0 ? ClockBlockCache.ofBytes(cacheBytes) : new ClockBlockCache(cacheEntries);
         DBFactory dbFactory = JniDBFactory.factory;
         if (!path.exists()) {
             path.mkdir();
@@ -75,13 +92,80 @@ public class LevelDBBlockPersistence implements BlockPersistence {
     /** try to open the leveldb files */
     private synchronized void tryOpen(File directory, DBFactory dbFactory, Options options) throws IOException, BlockPersistenceException, VerificationException {
         db = dbFactory.open(directory, options);
+        migrateIfNeeded();
+        buildFilter();
         initStoreIfNeeded();
     }
 
+    /**
+     * re-encode the values of legacy format, {@link StoredBlock#serialize(ByteBuffer)}, with {@link StoredBlockCodec}
+     * the block hash is taken from the key, so nothing is hashed
+     */
+    private void migrateIfNeeded() throws IOException, BlockPersistenceException {
+        byte[] format = db.get(FORMAT_KEY);
+        if (format != null && format[0] == StoredBlockCodec.VERSION) {
+            return;
+        }
+        int migrated = 0;
+        try (DBIterator it = db.iterator()) {
+            WriteBatch writes = db.createWriteBatch();
+            try {
+                for (it.seekToFirst(); it.hasNext(); ) {
+                    Map.Entry<byte[], byte[]> entry = it.next();
+                    if (entry.getKey().length != SHA256Hash.SIZE || entry.getValue().length != StoredBlock.SIZE) {
+                        continue;
+                    }
+                    StoredBlock block = StoredBlock.deserialize(ByteBuffer.wrap(entry.getValue()));
+                    block.getBlock().setHash(new SHA256Hash(entry.getKey()));
+                    ByteBuffer bytes = ByteBuffer.allocate(StoredBlockCodec.SIZE);
+                    StoredBlockCodec.encode(block, bytes);
+                    writes.put(entry.getKey(), bytes.array());
+                    if (++migrated % MIGRATE_BATCH_SIZE == 0) {
+                        db.write(writes);
+                        writes.close();
+                        writes = db.createWriteBatch();
+                    }
+                }
+                // the format is written last, a migration broken off is resumed on the next open
+                writes.put(FORMAT_KEY, new byte[]{StoredBlockCodec.VERSION});
+                db.write(writes);
+            } finally {
+                writes.close();
+            }
+        }
+        if (migrated > 0) {
+            logger.info("Migrated {} blocks to format version {}.", migrated, StoredBlockCodec.VERSION);
+        }
+    }
+
+    /** fill the bloom filter with the hash of every stored block, they are the only 32 bytes keys */
+    private void buildFilter() throws IOException {
+        ScalableBloomFilter built = new ScalableBloomFilter(0, FILTER_FALSE_POSITIVE_RATE);
+        try (DBIterator it = db.iterator()) {
+            for (it.seekToFirst(); it.hasNext(); ) {
+                byte[] key = it.next().getKey();
+                if (key.length == SHA256Hash.SIZE) {
+                    built.add(new SHA256Hash(key));
+                }
+            }
+        }
+        filter = built;
+        logger.info("Bloom filter built with {} blocks.", built.size());
+    }
+
     /** try to init the db files if needed */
     private synchronized void initStoreIfNeeded() throws BlockPersistenceException, VerificationException {
-        if (db.get(CHAIN_TIP_KEY) != null)
-            return;   // Already initialised.
+        if (db.get(CHAIN_TIP_KEY) != null) {
+            // Already initialised, index the heights if the store is older than the height index
+            StoredBlock tip = getChainTip();
+            mainHeight = tip.getHeight();
+            if (!Arrays.equals(tip.getBlock().getHash().getBytes(), db.get(heightKey(tip.getHeight())))) {
+                logger.info("Building height index, it may need some time");
+                mainHeight = -1;
+                setChainTip(tip);
+            }
+            return;
+        }
         Block genesis = params.genesisBlock;
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
         put(storedGenesis);
@@ -90,44 +174,228 @@ public class LevelDBBlockPersistence implements BlockPersistence {
 
     @Override
     public synchronized void put(StoredBlock block) throws BlockPersistenceException {
+        awaitOtherBatch();
+        if (batch != null) {
+            batch.put(block);
+            return;
+        }
         try {
             buf.clear();
-            block.serialize(buf);
+            StoredBlockCodec.encode(block, buf);
+            filter.add(block.getBlock().getHash());
             db.put(block.getBlock().getHash().getBytes(), buf.array());
             blockCache.put(block.getBlock().getHash(), block);
-        } catch (IOException e) {
+        } catch (DBException e) {
             throw new BlockPersistenceException(e);
         }
     }
 
+    /**
+     * get() does not lock the store, leveldb itself is thread safe
+     */
     @Override
-    public synchronized StoredBlock get(SHA256Hash hash) throws BlockPersistenceException {
+    public StoredBlock get(SHA256Hash hash) throws BlockPersistenceException {
+        PendingBatch current = batch;
+        if (current != null && current.isOwner()) {
+            // only the owner changes its batch
+            StoredBlock pending = current.get(hash);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        if (!filter.mightContain(hash)) {
+            return null;
+        }
         StoredBlock fromeMem = blockCache.get(hash);
         if (fromeMem != null) {
             return fromeMem;
         }
         byte[] bytes = db.get(hash.getBytes());
         if (bytes == null) {
+            filter.reportFalsePositive();
             return null;
         }
-        StoredBlock blockFound = StoredBlock.deserialize(ByteBuffer.wrap(bytes));
-        blockCache.put(hash, blockFound);
+        StoredBlock blockFound = StoredBlockCodec.decode(ByteBuffer.wrap(bytes));
+        blockCache.putIfAbsent(hash, blockFound);
         return blockFound;
     }
 
+    /**
+     * the same as get() but the block is not decoded
+     */
+    @Override
+    public boolean hasBlock(SHA256Hash hash) {
+        PendingBatch current = batch;
+        if (current != null && current.isOwner() && current.get(hash) != null) {
+            return true;
+        }
+        if (!filter.mightContain(hash)) {
+            return false;
+        }
+        if (blockCache.get(hash) != null) {
+            return true;
+        }
+        if (db.get(hash.getBytes()) == null) {
+            filter.reportFalsePositive();
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public synchronized StoredBlock getChainTip() throws BlockPersistenceException {
+        if (batch != null && batch.isOwner() && batch.tip != null) {
+            return batch.tip;
+        }
         return get(new SHA256Hash(db.get(CHAIN_TIP_KEY)));
     }
 
+    /**
+     * the chain tip and the heights of main chain are written in one batch
+     */
     @Override
     public synchronized void setChainTip(StoredBlock tip) throws BlockPersistenceException {
-        db.put(CHAIN_TIP_KEY, tip.getBlock().getHash().getBytes());
+        awaitOtherBatch();
+        if (batch != null) {
+            batch.tip = tip;
+            return;
+        }
+        try (WriteBatch writes = db.createWriteBatch()) {
+            writeChainTip(writes, tip);
+            db.write(writes);
+            mainHeight = tip.getHeight();
+        } catch (IOException e) {
+            throw new BlockPersistenceException(e);
+        }
+    }
+
+    /**
+     * add the chain tip and the heights of main chain to the write batch
+     * heights are pointed to the new main chain by walking back from the tip until the fork point
+     */
+    private void writeChainTip(WriteBatch writes, StoredBlock tip) throws BlockPersistenceException {
+        for (int height = mainHeight; height > tip.getHeight(); height--) {
+            writes.delete(heightKey(height));
+        }
+        for (StoredBlock cursor = tip; cursor != null; cursor = get(cursor.getBlock().getHashPrevBlock())) {
+            byte[] hash = cursor.getBlock().getHash().getBytes();
+            if (cursor.getHeight() <= mainHeight && Arrays.equals(hash, db.get(heightKey(cursor.getHeight())))) {
+                break;
+            }
+            writes.put(heightKey(cursor.getHeight()), hash);
+        }
+        writes.put(CHAIN_TIP_KEY, tip.getBlock().getHash().getBytes());
+    }
+
+    @Override
+    public StoredBlock getByHeight(int height) throws BlockPersistenceException {
+        byte[] hash;
+        synchronized (this) {
+            if (height < 0 || height > mainHeight) {
+                return null;
+            }
+            hash = db.get(heightKey(height));
+        }
+        return hash == null ? null : get(new SHA256Hash(hash));
+    }
+
+    @Override
+    public synchronized void beginBatch() throws BlockPersistenceException {
+        awaitOtherBatch();
+        if (batch == null) {
+            batch = new PendingBatch();
+        } else {
+            batch.enter();
+        }
+    }
+
+    /**
+     * pending blocks, heights and the chain tip go into one leveldb WriteBatch,
+     * thus a crash never leaves a half written re-organization
+     */
+    @Override
+    public synchronized void commitBatch() throws BlockPersistenceException {
+        if (batch == null || !batch.isOwner()) {
+            throw new IllegalStateException("No batch of this thread to commit");
+        }
+        if (!batch.leave()) {
+            return;
+        }
+        boolean written = false;
+        try (WriteBatch writes = db.createWriteBatch()) {
+            for (StoredBlock block : batch.blocks.values()) {
+                ByteBuffer bytes = ByteBuffer.allocate(StoredBlockCodec.SIZE);
+                StoredBlockCodec.encode(block, bytes);
+                filter.add(block.getBlock().getHash());
+                writes.put(block.getBlock().getHash().getBytes(), bytes.array());
+            }
+            if (batch.tip != null) {
+                writeChainTip(writes, batch.tip); // pending blocks are still visible to the walk
+            }
+            db.write(writes);
+            written = true;
+            for (StoredBlock block : batch.blocks.values()) {
+                blockCache.put(block.getBlock().getHash(), block);
+            }
+            if (batch.tip != null) {
+                mainHeight = batch.tip.getHeight();
+            }
+        } catch (IOException e) {
+            throw new BlockPersistenceException(e);
+        } finally {
+            endBatch(written);
+        }
+    }
+
+    @Override
+    public synchronized void abortBatch() {
+        if (batch != null && batch.isOwner()) {
+            endBatch(false);
+        }
+    }
+
+    /** close the batch and wake up the waiting writers, cached copies of dropped blocks are evicted */
+    private void endBatch(boolean written) {
+        if (!written) {
+            for (SHA256Hash hash : batch.blocks.keySet()) {
+                blockCache.remove(hash);
+            }
+        }
+        batch = null;
+        notifyAll();
+    }
+
+    /** wait until the batch of another thread ends, the lock must be held */
+    private void awaitOtherBatch() throws BlockPersistenceException {
+        while (batch != null && !batch.isOwner()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BlockPersistenceException(e);
+            }
+        }
+    }
+
+    private static byte[] heightKey(int height) {
+        return ByteBuffer.allocate(1 + Integer.BYTES).put(HEIGHT_KEY_PREFIX).putInt(height).array();
+    }
+
+    @Override
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    @Override
+    public ScalableBloomFilter getBloomFilter() {
+        return filter;
     }
 
     @Override
     public synchronized void close() throws BlockPersistenceException {
         try {
+            logger.info("Block cache: {}", blockCache);
+            logger.info("Bloom filter: {}", filter);
             blockCache.clear();
             db.close();
         } catch (IOException e) {
@@ -138,7 +406,12 @@ public class LevelDBBlockPersistence implements BlockPersistence {
     /** Below for test */
 
     public LevelDBBlockPersistence(NetworkParameters params, File file) throws BlockPersistenceException {
+        this(params, file, new ClockBlockCache(2050));
+    }
+
+    public LevelDBBlockPersistence(NetworkParameters params, File file, BlockCache blockCache) throws BlockPersistenceException {
         this.params = params;
+        this.blockCache = blockCache;
         DBFactory dbFactory = JniDBFactory.factory;
         Options options = new Options();
         options.createIfMissing();
@@ -163,6 +436,7 @@ public class LevelDBBlockPersistence implements BlockPersistence {
     /** Erases the contents of the database (but NOT the underlying files themselves) and then reinitialises with the genesis block. */
     public synchronized void reset() throws BlockPersistenceException {
         blockCache.clear();
+        mainHeight = -1;
         try {
             WriteBatch batch = db.createWriteBatch();
             try {
@@ -178,6 +452,7 @@ public class LevelDBBlockPersistence implements BlockPersistence {
             } finally {
                 batch.close();
             }
+            buildFilter();
             initStoreIfNeeded();
         } catch (IOException | VerificationException e) {
             throw new BlockPersistenceException(e);
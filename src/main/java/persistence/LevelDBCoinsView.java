@@ -0,0 +1,135 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/7
+ */
+package persistence;
+
+import core.Coin;
+import core.CoinsView;
+import core.CoinsViewCache;
+import core.SHA256Hash;
+import core.TransactionOutpoint;
+import exception.BlockPersistenceException;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBException;
+import org.iq80.leveldb.DBFactory;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The unspent transaction outputs in LevelDB, it is the base of the coins cache of the block chain
+ * A flush of the cache is written in one WriteBatch together with the best block,
+ * thus the stored coins are always those of a committed chain tip
+ *
+ * Keys --
+ * 'c' + 36 bytes outpoint, see {@link TransactionOutpoint#serialize(ByteBuffer)} -> Coin, see {@link Coin#serialize(ByteBuffer)}
+ * "bestBlock" -> hash of the chain tip the coins are of
+ */
+@Component
+public class LevelDBCoinsView implements CoinsView {
+    private static final Logger logger = LoggerFactory.getLogger(LevelDBCoinsView.class);
+    private static final byte COIN_KEY_PREFIX = 'c';
+    private static final byte[] BEST_BLOCK_KEY = "bestBlock".getBytes();
+
+    private DB db;
+    private static File path = new File("coins");
+
+    public LevelDBCoinsView() throws BlockPersistenceException {
+        this(path);
+    }
+
+    public LevelDBCoinsView(File directory) throws BlockPersistenceException {
+        DBFactory dbFactory = JniDBFactory.factory;
+        Options options = new Options();
+        options.createIfMissing();
+        try {
+            db = dbFactory.open(directory, options);
+        } catch (IOException e) {
+            try {
+                dbFactory.repair(directory, options);
+                db = dbFactory.open(directory, options);
+            } catch (IOException e1) {
+                throw new BlockPersistenceException(e1);
+            }
+        }
+    }
+
+    @Override
+    public Coin getCoin(TransactionOutpoint outpoint) throws BlockPersistenceException {
+        try {
+            byte[] bytes = db.get(coinKey(outpoint));
+            return bytes == null ? null : Coin.deserialize(ByteBuffer.wrap(bytes));
+        } catch (DBException e) {
+            throw new BlockPersistenceException(e);
+        }
+    }
+
+    @Override
+    public SHA256Hash getBestBlock() throws BlockPersistenceException {
+        try {
+            byte[] hash = db.get(BEST_BLOCK_KEY);
+            return hash == null ? null : new SHA256Hash(hash);
+        } catch (DBException e) {
+            throw new BlockPersistenceException(e);
+        }
+    }
+
+    /**
+     * unspent dirty coins are put and spent ones deleted, in one write with the best block
+     */
+    @Override
+    public synchronized void batchWrite(Map<TransactionOutpoint, CoinsViewCache.Entry> entries, SHA256Hash bestBlock) throws BlockPersistenceException {
+        int written = 0;
+        try (WriteBatch writes = db.createWriteBatch()) {
+            for (Map.Entry<TransactionOutpoint, CoinsViewCache.Entry> e : entries.entrySet()) {
+                CoinsViewCache.Entry entry = e.getValue();
+                if (!entry.isDirty()) {
+                    continue;
+                }
+                if (entry.isSpent()) {
+                    writes.delete(coinKey(e.getKey()));
+                } else {
+                    ByteBuffer bytes = ByteBuffer.allocate(Coin.SIZE);
+                    entry.getCoin().serialize(bytes);
+                    writes.put(coinKey(e.getKey()), bytes.array());
+                }
+                written++;
+            }
+            if (bestBlock != null) {
+                writes.put(BEST_BLOCK_KEY, bestBlock.getBytes());
+            }
+            db.write(writes);
+        } catch (IOException | DBException e) {
+            throw new BlockPersistenceException(e);
+        }
+        logger.debug("Flushed {} coins at block {}.", written, bestBlock);
+    }
+
+    private static byte[] coinKey(TransactionOutpoint outpoint) {
+        ByteBuffer key = ByteBuffer.allocate(1 + TransactionOutpoint.SIZE).put(COIN_KEY_PREFIX);
+        outpoint.serialize(key);
+        return key.array();
+    }
+
+    public synchronized void close() throws BlockPersistenceException {
+        try {
+            db.close();
+        } catch (IOException e) {
+            throw new BlockPersistenceException(e);
+        }
+    }
+
+    /** destroy the db files of the directory, the view must be closed */
+    public static void destroy(File directory) throws IOException {
+        JniDBFactory.factory.destroy(directory, new Options());
+    }
+}
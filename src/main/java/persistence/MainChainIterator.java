@@ -0,0 +1,41 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/26
+ */
+package persistence;
+
+import core.StoredBlock;
+import exception.BlockPersistenceException;
+
+/**
+ * Iterate the main chain blocks of a {@link BlockPersistence} by height.
+ * Blocks are looked up one by one, so the iterator stops early if the chain is re-organized below the range meanwhile.
+ *
+ * usage:
+ * for (StoredBlock block = it.next(); block != null; block = it.next())
+ */
+public class MainChainIterator {
+    private final BlockPersistence source;
+    private final int to;
+    private final int step;
+    private int height;
+
+    MainChainIterator(BlockPersistence source, int from, int to) {
+        this.source = source;
+        this.to = to;
+        this.step = from <= to ? 1 : -1;
+        this.height = from;
+    }
+
+    /**
+     * @return the next block, or null at the end of range
+     */
+    public StoredBlock next() throws BlockPersistenceException {
+        if (height < 0 || (step > 0 ? height > to : height < to)) {
+            return null;
+        }
+        StoredBlock block = source.getByHeight(height);
+        height = block == null ? to + step : height + step;
+        return block;
+    }
+}
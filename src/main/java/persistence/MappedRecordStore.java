@@ -0,0 +1,112 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/25
+ */
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Records kept in memory mapped segments of the block file.
+ * A segment holds a whole number of records, so a record never spans two segments.
+ * The file grows one segment at a time, its tail may be zero filled beyond the last record.
+ *
+ * Readers get a view of the record upon a published segment array and never lock, nothing is copied.
+ * Nothing is durable until force().
+ */
+class MappedRecordStore implements RecordStore {
+    private static final int SEGMENT_SHIFT = 16; // 64k records per segment
+
+    private final FileChannel channel;
+    private final long base; // file offset of the first record
+    private final int recordSize;
+    private final long segmentSize;
+    private volatile MappedByteBuffer[] segments;
+    private int dirtyFrom = Integer.MAX_VALUE; // first segment written since the last force, writer only
+
+    /**
+     * map the records already in the file
+     * @param base file offset of the first record
+     * @param recordSize size of a record
+     */
+    MappedRecordStore(FileChannel channel, long base, int recordSize) throws IOException {
+        this.channel = channel;
+        this.base = base;
+        this.recordSize = recordSize;
+        this.segmentSize = (long) recordSize << SEGMENT_SHIFT;
+        int existing = (int) ((Math.max(channel.size() - base, 0) + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[existing];
+        for (int i = 0; i < existing; i++) {
+            mapped[i] = mapSegment(i);
+        }
+        this.segments = mapped;
+    }
+
+    private MappedByteBuffer mapSegment(int index) throws IOException {
+        // mapping beyond the end of the file extends it
+        return channel.map(FileChannel.MapMode.READ_WRITE, base + index * segmentSize, segmentSize);
+    }
+
+    @Override
+    public ByteBuffer read(long position) throws IOException {
+        long record = (position - base) / recordSize;
+        int segment = (int) (record >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] current = segments;
+        if (segment >= current.length) {
+            throw new IOException("Record at " + position + " is beyond the mapped file");
+        }
+        int offset = (int) (record & ((1 << SEGMENT_SHIFT) - 1)) * recordSize;
+        ByteBuffer view = current[segment].duplicate();
+        view.limit(offset + recordSize);
+        view.position(offset);
+        return view;
+    }
+
+    @Override
+    public void write(long position, ByteBuffer src) throws IOException {
+        ByteBuffer record = src.duplicate();
+        for (int from = 0; from < src.remaining(); from += recordSize) {
+            record.limit(src.position() + from + recordSize);
+            record.position(src.position() + from);
+            writeRecord(position + from, record);
+        }
+        src.position(src.limit());
+    }
+
+    /** copy the record between the position and the limit of src in one bulk put */
+    private void writeRecord(long position, ByteBuffer src) throws IOException {
+        long record = (position - base) / recordSize;
+        int segment = (int) (record >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] current = segments;
+        if (segment >= current.length) {
+            current = Arrays.copyOf(current, segment + 1);
+            for (int i = segments.length; i <= segment; i++) {
+                current[i] = mapSegment(i);
+            }
+            segments = current;
+        }
+        dirtyFrom = Math.min(dirtyFrom, segment);
+        int offset = (int) (record & ((1 << SEGMENT_SHIFT) - 1)) * recordSize;
+        ByteBuffer view = current[segment].duplicate();
+        view.position(offset);
+        view.put(src);
+    }
+
+    @Override
+    public void force() {
+        MappedByteBuffer[] current = segments;
+        for (int i = dirtyFrom; i < current.length; i++) {
+            current[i].force();
+        }
+        dirtyFrom = Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+}
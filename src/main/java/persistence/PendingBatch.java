@@ -0,0 +1,46 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/27
+ */
+package persistence;
+
+import core.SHA256Hash;
+import core.StoredBlock;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Writes of an open batch of a {@link BlockPersistence}, see {@link BlockPersistence#beginBatch()}.
+ * A batch belongs to the thread which began it, only that thread sees the pending writes.
+ * It is guarded by the lock of the persistence.
+ */
+class PendingBatch {
+    private final Thread owner = Thread.currentThread();
+    private int depth = 1;
+
+    /** blocks put in the batch, in put order */
+    final LinkedHashMap<SHA256Hash, StoredBlock> blocks = new LinkedHashMap<>();
+    /** chain tip set in the batch, null if unchanged */
+    StoredBlock tip;
+
+    boolean isOwner() {
+        return owner == Thread.currentThread();
+    }
+
+    void enter() {
+        depth++;
+    }
+
+    /** @return true if the outermost batch is left */
+    boolean leave() {
+        return --depth == 0;
+    }
+
+    void put(StoredBlock block) {
+        blocks.put(block.getBlock().getHash(), block);
+    }
+
+    StoredBlock get(SHA256Hash hash) {
+        return blocks.get(hash);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/25
+ */
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size records of {@link DiskBlockPersistence} after the file header.
+ * Positions are absolute offsets in the block file and always record aligned.
+ * Reads may run concurrently with each other and with a single writer.
+ * Records are handed over in buffers, so they are decoded and encoded in place without a copy into an array.
+ */
+interface RecordStore {
+    /**
+     * the record at the position, from the position of the buffer on
+     * it is a view of the store or a buffer of the calling thread, valid until the next read of the thread
+     */
+    ByteBuffer read(long position) throws IOException;
+
+    /** write records from src between its position and limit, they are one or more whole records */
+    void write(long position, ByteBuffer src) throws IOException;
+
+    /** make all written records durable */
+    void force() throws IOException;
+
+    /** release the store, the file itself is closed by the owner */
+    void close() throws IOException;
+}
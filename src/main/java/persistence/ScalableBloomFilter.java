@@ -0,0 +1,196 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/29
+ */
+package persistence;
+
+import core.SHA256Hash;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A scalable Bloom filter of block hashes, it answers whether a block is definitely not stored.
+ *
+ * It is a series of slices. When the last slice is full, a new one with twice the capacity
+ * and half the false positive rate is added, so the filter grows without knowing the number of blocks
+ * and the compound false positive rate stays under twice the rate of the first slice.
+ *
+ * A block hash is already uniformly distributed, thus two of its words are used for double hashing
+ * instead of hashing it again. The leading words are skipped as they are mostly zero.
+ *
+ * Bits are only set and never cleared, a lookup never locks.
+ */
+public class ScalableBloomFilter {
+    private static final int MIN_CAPACITY = 1 << 12;
+
+    private final double falsePositiveRate; // of the first slice
+    private volatile Slice[] slices;
+
+    private final LongAdder negatives = new LongAdder(); // lookups answered by the filter alone
+    private final LongAdder falsePositives = new LongAdder(); // lookups passed but not found in the store
+
+    private static final class Slice {
+        final AtomicLongArray bits;
+        final long mask; // number of bits - 1, a power of 2
+        final int hashes;
+        final int capacity;
+        volatile int count;
+
+        Slice(int capacity, double falsePositiveRate) {
+            long bitCount = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            bitCount = Math.max(Long.highestOneBit(bitCount - 1) << 1, Long.SIZE);
+            this.bits = new AtomicLongArray((int) (bitCount / Long.SIZE));
+            this.mask = bitCount - 1;
+            this.hashes = Math.max(1, (int) Math.ceil(-Math.log(falsePositiveRate) / Math.log(2)));
+            this.capacity = capacity;
+        }
+
+        boolean mightContain(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = (h1 + i * h2) & mask;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(long h1, long h2) {
+            for (int i = 0; i < hashes; i++) {
+                long bit = (h1 + i * h2) & mask;
+                int word = (int) (bit >>> 6);
+                long value;
+                do {
+                    value = bits.get(word);
+                } while ((value & (1L << bit)) == 0 && !bits.compareAndSet(word, value, value | (1L << bit)));
+            }
+            count++;
+        }
+
+        /** (1 - e^(-kn/m))^k */
+        double falsePositiveRate() {
+            return Math.pow(1 - Math.exp(-(double) hashes * count / (mask + 1)), hashes);
+        }
+    }
+
+    /**
+     * @param expected number of hashes expected, the filter grows anyway
+     * @param falsePositiveRate false positive rate of the first slice, e.g. 0.001
+     */
+    public ScalableBloomFilter(int expected, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be in (0, 1): " + falsePositiveRate);
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        this.slices = new Slice[]{new Slice(Math.max(expected, MIN_CAPACITY), falsePositiveRate)};
+    }
+
+    private static long h1(byte[] bytes) {
+        return readLong(bytes, 24);
+    }
+
+    private static long h2(byte[] bytes) {
+        return readLong(bytes, 16) | 1; // odd, so the probes never repeat within a slice
+    }
+
+    /**
+     * @return false if the hash is definitely not added
+     */
+    public boolean mightContain(SHA256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long h1 = h1(bytes), h2 = h2(bytes);
+        for (Slice slice : slices) {
+            if (slice.mightContain(h1, h2)) {
+                return true;
+            }
+        }
+        negatives.increment();
+        return false;
+    }
+
+    /**
+     * add the hash, nothing is done if it might be added already
+     * bits are set before it returns, so they must be added before the block is visible in the store
+     */
+    public synchronized void add(SHA256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long h1 = h1(bytes), h2 = h2(bytes);
+        Slice[] current = slices;
+        for (Slice slice : current) {
+            if (slice.mightContain(h1, h2)) {
+                return;
+            }
+        }
+        Slice last = current[current.length - 1];
+        if (last.count >= last.capacity) {
+            last = new Slice(last.capacity * 2, falsePositiveRate * Math.pow(0.5, current.length));
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = last;
+            slices = current;
+        }
+        last.add(h1, h2);
+    }
+
+    /** called by the store when a lookup passed the filter but the block is not found */
+    public void reportFalsePositive() {
+        falsePositives.increment();
+    }
+
+    /** number of hashes added */
+    public long size() {
+        long size = 0;
+        for (Slice slice : slices) {
+            size += slice.count;
+        }
+        return size;
+    }
+
+    /** memory used by the bits */
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Slice slice : slices) {
+            bytes += (slice.mask + 1) / Byte.SIZE;
+        }
+        return bytes;
+    }
+
+    /** the false positive rate expected from the current fill of the slices */
+    public double getExpectedFalsePositiveRate() {
+        double none = 1;
+        for (Slice slice : slices) {
+            none *= 1 - slice.falsePositiveRate();
+        }
+        return 1 - none;
+    }
+
+    /** false positives among the lookups of absent blocks reported so far */
+    public double getObservedFalsePositiveRate() {
+        long fp = falsePositives.sum();
+        long absent = fp + negatives.sum();
+        return absent == 0 ? 0 : (double) fp / absent;
+    }
+
+    public long getNegatives() {
+        return negatives.sum();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hashes in %d bytes, expected false positive rate %.6f, %d negatives, %d false positives",
+                size(), getMemoryBytes(), getExpectedFalsePositiveRate(), getNegatives(), getFalsePositives());
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = v << 8 | (bytes[offset + i] & 0xFFL);
+        }
+        return v;
+    }
+}
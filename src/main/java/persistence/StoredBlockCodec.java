@@ -0,0 +1,96 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/30
+ */
+package persistence;
+
+import core.Block;
+import core.BlockHead;
+import core.SHA256Hash;
+import core.StoredBlock;
+import exception.BlockPersistenceException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed width record of a {@link StoredBlock}, shared by the block persistence implementations.
+ * It is encoded into and decoded from the buffer field by field, no temporary array is involved
+ * except the bytes owned by the decoded hashes.
+ *
+ * Format --
+ * 1 byte version
+ * 4 bytes height
+ * 16 bytes chain work, an unsigned 128 bits integer in two big-endian longs
+ * 32 bytes block hash, so a loaded block is never hashed again
+ * 32 bytes next block hash
+ * 44 bytes block header, the canonical encoding of {@link BlockHead#serialize(byte[], int)}
+ *
+ * The buffer must be big-endian, which is the default of ByteBuffer.
+ */
+public final class StoredBlockCodec {
+    /** the legacy format of {@link StoredBlock#serialize(ByteBuffer)} has no version byte and is taken as version 1 */
+    public static final byte VERSION = 2;
+    public static final int SIZE = 1 + 4 + 2 * Long.BYTES + 2 * SHA256Hash.SIZE + BlockHead.BLOCK_HEAD_SIZE;
+    /** offset of the block hash in a record */
+    public static final int HASH_OFFSET = 1 + 4 + 2 * Long.BYTES;
+
+    private StoredBlockCodec() {
+    }
+
+    /**
+     * write the record at the position of the buffer, it is advanced by SIZE
+     */
+    public static void encode(StoredBlock stored, ByteBuffer buf) {
+        Block block = stored.getBlock();
+        buf.put(VERSION);
+        buf.putInt(stored.getHeight());
+        buf.putLong(stored.getChainWorkHigh());
+        buf.putLong(stored.getChainWorkLow());
+        buf.put(block.getHash().getBytes());
+        buf.put(stored.getNext().getBytes());
+        buf.put(block.getHashPrevBlock().getBytes());
+        buf.putInt(Integer.reverseBytes((int) block.getnTime()));
+        buf.putInt(Integer.reverseBytes((int) block.getnBits()));
+        buf.putInt(Integer.reverseBytes((int) block.getnNonce()));
+    }
+
+    /**
+     * read the record at the position of the buffer, it is advanced by SIZE
+     * @throws BlockPersistenceException if the version is unknown
+     */
+    public static StoredBlock decode(ByteBuffer buf) throws BlockPersistenceException {
+        byte version = buf.get();
+        if (version != VERSION) {
+            throw new BlockPersistenceException("Unknown version of block record: " + version);
+        }
+        int height = buf.getInt();
+        long chainWorkHigh = buf.getLong();
+        long chainWorkLow = buf.getLong();
+        SHA256Hash hash = readHash(buf);
+        SHA256Hash next = readHash(buf);
+        SHA256Hash prev = readHash(buf);
+        long nTime = Integer.reverseBytes(buf.getInt()) & 0xFFFFFFFFL;
+        long nBits = Integer.reverseBytes(buf.getInt()) & 0xFFFFFFFFL;
+        long nNonce = Integer.reverseBytes(buf.getInt()) & 0xFFFFFFFFL;
+        Block block = new Block(new BlockHead(prev, nTime, nBits, nNonce));
+        block.setHash(hash);
+        return new StoredBlock(block, chainWorkHigh, chainWorkLow, height, next);
+    }
+
+    /** the zero hash, e.g. next of the chain tip and prev of genesis, is shared rather than allocated */
+    private static SHA256Hash readHash(ByteBuffer buf) {
+        int p = buf.position();
+        if (buf.getLong(p) == 0 && buf.getLong(p + 8) == 0 && buf.getLong(p + 16) == 0 && buf.getLong(p + 24) == 0) {
+            buf.position(p + SHA256Hash.SIZE);
+            return SHA256Hash.ZERO_HASH;
+        }
+        byte[] bytes = new byte[SHA256Hash.SIZE];
+        buf.get(bytes);
+        return new SHA256Hash(bytes);
+    }
+
+    /** whether the record is never written, i.e. zero filled */
+    public static boolean isEmpty(ByteBuffer buf, int offset) {
+        return buf.get(offset) == 0;
+    }
+}
@@ -15,6 +15,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
+import persistence.BlockCache;
+import persistence.ScalableBloomFilter;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -33,11 +35,14 @@ public class RestfulController {
 
     private final Miner miner;
 
+    private final TxMemPool mempool;
+
     @Autowired
-    public RestfulController(BlockChain chain, PeerGroup network, Miner miner) {
+    public RestfulController(BlockChain chain, PeerGroup network, Miner miner, TxMemPool mempool) {
         this.chain = chain;
         this.network = network;
         this.miner = miner;
+        this.mempool = mempool;
     }
 
     @GetMapping("/block/{hash}")
@@ -73,21 +78,14 @@ public class RestfulController {
     public Result getRecentBlocks() {
         Result result = new Result();
         JSONArray jsonArray = new JSONArray();
-        try {
-            StoredBlock cursor = chain.getChainTip();
-            for (int i = 0; i < 10 && cursor != null; i++) {
-                JSONObject jsonObject = Utils.storedBlock2Json(cursor, true);
-                jsonArray.add(jsonObject);
-                cursor = cursor.getPreviousBlock(chain.getBlockPersistence());
-            }
-            result.setCode(Result.ResultCode.SUCCESS.getCode());
-            result.setMessage(Result.ResultCode.SUCCESS.getErrMsg());
-            result.setData(jsonArray);
-        } catch (BlockPersistenceException e) {
-            logger.error("Database has some problem when request for recent blocks. {}", e);
-            result.setCode(Result.ResultCode.EXCEPTION.getCode());
-            result.setMessage(Result.ResultCode.EXCEPTION.getErrMsg());
+        // read from the chain snapshot, it does not wait for the blocks being added
+        for (StoredBlock cursor : chain.getChainState().getMainBlocks(chain.getHeaderIndex(), 10)) {
+            JSONObject jsonObject = Utils.storedBlock2Json(cursor, true);
+            jsonArray.add(jsonObject);
         }
+        result.setCode(Result.ResultCode.SUCCESS.getCode());
+        result.setMessage(Result.ResultCode.SUCCESS.getErrMsg());
+        result.setData(jsonArray);
 
         return result;
     }
@@ -100,20 +98,14 @@ public class RestfulController {
         Result result = new Result();
         JSONArray data = new JSONArray();
 
-        try {
-
-            for (StoredBlock cursor = chain.getChainTip(); cursor != null; cursor = cursor.getPreviousBlock(chain.getBlockPersistence())) {
-                JSONObject jsonObject = Utils.storedBlock2Json(cursor, true);
-                data.add(jsonObject);
-            }
-            result.setCode(Result.ResultCode.SUCCESS.getCode());
-            result.setMessage(Result.ResultCode.SUCCESS.getErrMsg());
-            result.setData(data);
-        } catch (BlockPersistenceException e) {
-            logger.error("Database has some problem when request for recent blocks. {}", e);
-            result.setCode(Result.ResultCode.EXCEPTION.getCode());
-            result.setMessage(Result.ResultCode.EXCEPTION.getErrMsg());
+        ChainState state = chain.getChainState();
+        for (StoredBlock cursor : state.getMainBlocks(chain.getHeaderIndex(), state.getHeight() + 1)) {
+            JSONObject jsonObject = Utils.storedBlock2Json(cursor, true);
+            data.add(jsonObject);
         }
+        result.setCode(Result.ResultCode.SUCCESS.getCode());
+        result.setMessage(Result.ResultCode.SUCCESS.getErrMsg());
+        result.setData(data);
 
         return result;
     }
@@ -144,7 +136,7 @@ public class RestfulController {
         Result result = new Result();
 
         try {
-            Peer peer = new Peer(new PeerAddress(InetAddress.getByName(address), port), chain, network.getParams());
+            Peer peer = new Peer(new PeerAddress(InetAddress.getByName(address), port), network.getBlockPipeline(), network.getParams());
             network.addPeer(peer);
             result.setCode(Result.ResultCode.SUCCESS.getCode());
             result.setMessage(Result.ResultCode.SUCCESS.getErrMsg());
@@ -171,6 +163,14 @@ public class RestfulController {
         } else {
             data.put("status", "stop");
         }
+        data.put("threads", miner.getThreads());
+        data.put("hashRate", miner.getHashRate());
+        data.put("totalHashes", miner.getTotalHashes());
+        JSONArray threadHashRates = new JSONArray();
+        for (double rate : miner.getThreadHashRates()) {
+            threadHashRates.add(rate);
+        }
+        data.put("threadHashRates", threadHashRates);
         result.setCode(Result.ResultCode.SUCCESS.getCode());
         result.setMessage(Result.ResultCode.SUCCESS.getErrMsg());
         result.setData(data);
@@ -220,6 +220,28 @@ public class RestfulController {
         return result;
     }
 
+    @GetMapping("/mempool")
+    @ResponseStatus(HttpStatus.OK)
+    @ApiOperation(value = "获得交易池状态", notes = "交易数量、估计占用的内存和驱逐统计")
+    @CrossOrigin
+    public Result getMempoolStatus() {
+        Result result = new Result();
+        JSONObject data = new JSONObject();
+
+        result.setCode(Result.ResultCode.SUCCESS.getCode());
+        result.setMessage(Result.ResultCode.SUCCESS.getErrMsg());
+        data.put("count", mempool.size());
+        data.put("bytes", mempool.getBytes());
+        data.put("maxBytes", mempool.getMaxBytes());
+        data.put("evicted", mempool.getEvicted());
+        data.put("evictedBytes", mempool.getEvictedBytes());
+        data.put("rejected", mempool.getRejected());
+        data.put("minFeeRate", mempool.getMinFeeRate());
+        result.setData(data);
+
+        return result;
+    }
+
     @GetMapping("/network")
     @ResponseStatus(HttpStatus.OK)
     @ApiOperation(value = "获得网络状态", notes = "获得网络状态")
@@ -235,12 +257,53 @@ public class RestfulController {
         } else {
             data.put("status", "stop");
         }
+        OrphanBlockPool orphans = chain.getOrphanBlocks();
+        JSONObject orphanData = new JSONObject();
+        orphanData.put("count", orphans.size());
+        orphanData.put("bytes", orphans.getBytes());
+        orphanData.put("resolved", orphans.getResolved());
+        orphanData.put("evicted", orphans.getEvicted());
+        orphanData.put("expired", orphans.getExpired());
+        orphanData.put("meanResolveMillis", orphans.getMeanResolveMillis());
+        orphanData.put("maxResolveMillis", orphans.getMaxResolveMillis());
+        data.put("orphans", orphanData);
         result.setData(data);
 
 
         return result;
     }
 
+    @GetMapping("/storage")
+    @ResponseStatus(HttpStatus.OK)
+    @ApiOperation(value = "获得存储状态", notes = "区块布隆过滤器的误判率和内存占用，区块缓存的命中、未命中和驱逐次数")
+    @CrossOrigin
+    public Result getStorageStatus() {
+        Result result = new Result();
+        JSONObject data = new JSONObject();
+
+        result.setCode(Result.ResultCode.SUCCESS.getCode());
+        result.setMessage(Result.ResultCode.SUCCESS.getErrMsg());
+        ScalableBloomFilter filter = chain.getBlockPersistence().getBloomFilter();
+        JSONObject filterData = new JSONObject();
+        filterData.put("count", filter.size());
+        filterData.put("bytes", filter.getMemoryBytes());
+        filterData.put("expectedFalsePositiveRate", filter.getExpectedFalsePositiveRate());
+        filterData.put("observedFalsePositiveRate", filter.getObservedFalsePositiveRate());
+        filterData.put("negatives", filter.getNegatives());
+        filterData.put("falsePositives", filter.getFalsePositives());
+        data.put("bloomFilter", filterData);
+        BlockCache cache = chain.getBlockPersistence().getBlockCache();
+        JSONObject cacheData = new JSONObject();
+        cacheData.put("count", cache.size());
+        cacheData.put("hits", cache.getHits());
+        cacheData.put("misses", cache.getMisses());
+        cacheData.put("evictions", cache.getEvictions());
+        data.put("blockCache", cacheData);
+        result.setData(data);
+
+        return result;
+    }
+
     @PatchMapping("/network")
     @ResponseStatus(HttpStatus.CREATED)
     @ApiOperation(value = "启动网络", notes = "启动网络")
@@ -0,0 +1,40 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/20
+ */
+package core;
+
+import net.NetworkParameters;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BlockHeadHasherTest {
+
+    @Test
+    public void v1HashTest() throws IOException {
+        NetworkParameters params = new NetworkParameters(NetworkParameters.ID_TESTNET);
+        Block genesis = params.genesisBlock;
+        BlockHeadHasher hasher = new BlockHeadHasher(new Block(genesis), NetworkParameters.HEADER_HASH_V1);
+        hasher.setNonce(genesis.getnNonce());
+        byte[] digest = new byte[SHA256Hash.SIZE];
+        hasher.digest(digest);
+        assertEquals(genesis.getHash(), new SHA256Hash(Utils.reverseBytes(digest)));
+    }
+
+    @Test
+    public void v2HashTest() throws IOException {
+        Block block = new Block(new BlockHead(SHA256Hash.ZERO_HASH, 1, 2, 0));
+        BlockHeadHasher hasher = new BlockHeadHasher(block, NetworkParameters.HEADER_HASH_V2);
+        byte[] digest = new byte[SHA256Hash.SIZE];
+        for (long nonce = 0xFFFFFFF0L; nonce <= 0xFFFFFFFFL; nonce++) {
+            hasher.setNonce(nonce);
+            hasher.digest(digest);
+            block.setnNonce(nonce);
+            assertArrayEquals(Utils.doubleDigest(block.serialize()), digest);
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.math.BigInteger;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 
@@ -51,6 +52,22 @@ public class BlockTest {
     @Test
     public void genesisBlockTest() throws VerificationException {
         NetworkParameters params = new NetworkParameters(NetworkParameters.ID_TESTNET);
-        assertTrue(params.genesisBlock.verifyBlock());
+        assertTrue(params.genesisBlock.verifyBlock(params));
+    }
+
+    @Test
+    public void headerHashVersionTest() throws IOException {
+        NetworkParameters params = new NetworkParameters(NetworkParameters.ID_UNITTESTNET);
+        // the genesis is hashed with the version of its network even without a spring context
+        Block genesis = new Block(params.genesisBlock);
+        byte[] digest = new byte[SHA256Hash.SIZE];
+        new BlockHeadHasher(genesis, NetworkParameters.HEADER_HASH_V2).digest(digest);
+        assertEquals(new SHA256Hash(Utils.reverseBytes(digest)), genesis.getHash(params));
+        assertEquals(genesis.getHash(params), params.genesisBlock.getHash());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noParamsTest() {
+        new Block(new BlockHead(SHA256Hash.ZERO_HASH, 1556696368L, 0x207fffffL, 0)).getHash();
     }
 }
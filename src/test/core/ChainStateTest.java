@@ -0,0 +1,61 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/4
+ */
+package core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChainStateTest {
+    private final TestChains chains = new TestChains();
+
+    @Test
+    public void snapshotTest() throws Exception {
+        HeaderIndex index = new HeaderIndex();
+        StoredBlock genesis = chains.genesis();
+        List<StoredBlock> main = new ArrayList<>();
+        main.add(genesis);
+        main.addAll(chains.extend(genesis, 9));
+        for (StoredBlock stored : main) {
+            index.add(stored);
+        }
+        int tipSlot = index.slotOf(main.get(9).getBlock().getHash());
+        index.setTip(tipSlot);
+        ChainState state = new ChainState(main.get(9), tipSlot, 0);
+
+        // a longer fork re-organizes the index, the snapshot still sees its own main chain
+        List<StoredBlock> fork = chains.extend(main.get(4), 6);
+        for (StoredBlock stored : fork) {
+            index.add(stored);
+        }
+        index.setTip(index.slotOf(fork.get(5).getBlock().getHash()));
+        ChainState reorganized = new ChainState(fork.get(5), index.slotOf(fork.get(5).getBlock().getHash()), 1);
+
+        assertEquals(9, state.getHeight());
+        for (int h = 0; h <= 9; h++) {
+            int slot = index.slotOf(main.get(h).getBlock().getHash());
+            assertEquals(slot, state.getMainSlot(index, h));
+            assertTrue(state.isMain(index, slot));
+            assertEquals(h < 5, reorganized.isMain(index, slot));
+        }
+        assertFalse(state.isMain(index, index.slotOf(fork.get(0).getBlock().getHash())));
+        assertFalse(state.isMain(index, HeaderIndex.NONE));
+        assertEquals(HeaderIndex.NONE, state.getMainSlot(index, 10));
+
+        List<StoredBlock> blocks = state.getMainBlocks(index, 20);
+        assertEquals(10, blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock expected = main.get(9 - i);
+            assertEquals(expected.getBlock().getHash(), blocks.get(i).getBlock().getHash());
+            assertEquals(i == 0 ? SHA256Hash.ZERO_HASH : main.get(10 - i).getBlock().getHash(), blocks.get(i).getNext());
+        }
+        assertEquals(3, reorganized.getMainBlocks(index, 3).size());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/7
+ */
+package core;
+
+import exception.VerificationException;
+import org.junit.Test;
+
+import java.util.List;
+
+import static core.TestChains.hashOf;
+import static org.junit.Assert.*;
+
+public class CoinsViewCacheTest {
+    private static Transaction spend(TransactionOutpoint prevout, double value) {
+        Transaction tx = new Transaction();
+        tx.addInput(new TransactionInput(prevout, SHA256Hash.ZERO_HASH));
+        tx.addOutput(new TransactionOutput(value, hashOf(9)));
+        return tx;
+    }
+
+    @Test
+    public void freshTest() throws Exception {
+        MemoryCoinsView db = new MemoryCoinsView();
+        CoinsViewCache cache = new CoinsViewCache(db, 100);
+        TransactionOutpoint a = new TransactionOutpoint(hashOf(1), 0);
+        TransactionOutpoint b = new TransactionOutpoint(hashOf(2), 0);
+        Coin coin = new Coin(new TransactionOutput(1.0, hashOf(9)), 1, false);
+
+        // created and spent before a flush, it never reaches the base
+        cache.addCoin(a, coin);
+        assertEquals(coin, cache.spendCoin(a));
+        assertNull(cache.spendCoin(a));
+        assertEquals(0, cache.size());
+
+        cache.addCoin(b, coin);
+        assertEquals(1, cache.getDirtyCount());
+        cache.setBestBlock(hashOf(3));
+        cache.flush();
+        assertEquals(1, db.size());
+        assertEquals(hashOf(3), db.getBestBlock());
+        assertEquals(0, cache.getDirtyCount());
+
+        // a coin of the base is spent by a dirty entry until the flush
+        assertEquals(coin, cache.spendCoin(b));
+        assertNotNull(db.getCoin(b));
+        assertFalse(cache.haveCoin(b));
+        cache.flush();
+        assertNull(db.getCoin(b));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void layerTest() throws Exception {
+        MemoryCoinsView db = new MemoryCoinsView();
+        CoinsViewCache chain = new CoinsViewCache(db, 100);
+        TransactionOutpoint a = new TransactionOutpoint(hashOf(1), 0);
+        chain.addCoin(a, new Coin(new TransactionOutput(1.0, hashOf(9)), 1, true));
+        chain.flush();
+
+        Transaction tx = spend(a, 0.5);
+        Transaction child = spend(new TransactionOutpoint(tx.getHash(), 0), 0.4);
+        CoinsViewCache block = new CoinsViewCache(chain);
+        List<Coin> undo = block.connect(tx, 2);
+        assertEquals(1.0, undo.get(0).getValue(), 0);
+        assertTrue(chain.haveCoin(a)); // nothing is merged before the flush
+        assertTrue(tx.isValid(chain));
+        assertFalse(tx.isValid(block));
+        assertEquals(0.5, child.getInputValue(block), 0);
+        assertTrue(child.isValid(block));
+        assertEquals(-1, child.getInputValue(chain), 0);
+        List<Coin> childUndo = block.connect(child, 2);
+
+        // disconnected in the reverse order, the cache is back where it began
+        block.disconnect(child, childUndo);
+        block.disconnect(tx, undo);
+        assertTrue(block.haveCoin(a));
+        assertFalse(block.haveCoin(new TransactionOutpoint(tx.getHash(), 0)));
+
+        block.connect(tx, 2);
+        block.connect(child, 2);
+        block.setBestBlock(hashOf(4));
+        block.flush();
+        assertFalse(chain.haveCoin(a));
+        assertFalse(chain.haveCoin(new TransactionOutpoint(tx.getHash(), 0))); // fresh and spent, dropped
+        assertTrue(chain.haveCoin(new TransactionOutpoint(child.getHash(), 0)));
+        assertEquals(hashOf(4), chain.getBestBlock());
+        assertNotNull(db.getCoin(a));
+        chain.flush();
+        assertNull(db.getCoin(a));
+        assertEquals(1, db.size());
+        assertEquals(hashOf(4), db.getBestBlock());
+    }
+
+    @Test(expected = VerificationException.class)
+    public void missingInputTest() throws Exception {
+        CoinsViewCache cache = new CoinsViewCache(new MemoryCoinsView());
+        cache.connect(spend(new TransactionOutpoint(hashOf(1), 0), 1.0), 1);
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/3
+ */
+package core;
+
+import exception.VerificationException;
+import net.NetworkParameters;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class DifficultyEngineTest {
+    private static final NetworkParameters params = new NetworkParameters(NetworkParameters.ID_TESTNET);
+    private final TestChains chains = new TestChains();
+
+    /** the retarget on BigInteger, as it was computed before */
+    private static long reference(long startnBits, long startTime, long endTime) {
+        int timespan = (int) (endTime - startTime);
+        timespan = Math.max(timespan, params.targetTimespan / 4);
+        timespan = Math.min(timespan, params.targetTimespan * 4);
+        BigInteger target = Utils.decodeCompactBits(startnBits)
+                .multiply(BigInteger.valueOf(timespan)).divide(BigInteger.valueOf(params.targetTimespan));
+        if (target.compareTo(params.proofOfWorkLimit) > 0) {
+            target = params.proofOfWorkLimit;
+        }
+        return Utils.encodeCompactBits(target);
+    }
+
+    /** extend the chain by count blocks spaced by seconds, the nBits is given by the engine */
+    private int extend(HeaderIndex index, DifficultyEngine engine, int slot, int count, long spacing) throws Exception {
+        for (int i = 0; i < count; i++) {
+            StoredBlock prev = index.get(slot);
+            long nBits = engine.getNextnBits(index, slot);
+            Block block = new Block(new BlockHead(prev.getBlock().getHash(), prev.getBlock().getnTime() + spacing, nBits, 0));
+            block.setHash(chains.nextHash());
+            slot = index.add(prev.build(block));
+        }
+        return slot;
+    }
+
+    @Test
+    public void retargetTest() throws Exception {
+        DifficultyEngine engine = new DifficultyEngine(params);
+        HeaderIndex index = new HeaderIndex();
+        Block genesis = new Block(new BlockHead(SHA256Hash.ZERO_HASH, 1556696368L, 0x1d00ffffL, 0));
+        genesis.setHash(TestChains.hashOf(0));
+        int slot = index.add(new StoredBlock(genesis, genesis.getWork(), 0));
+
+        int interval = params.interval;
+        long spacing = params.targetTimespan / interval;
+        slot = extend(index, engine, slot, interval - 1, spacing / 3); // fast, the difficulty rises
+        int boundary = slot;
+        long startTime = index.getnTime(index.getAncestor(slot, 0));
+        long expected = reference(0x1d00ffffL, startTime, index.getnTime(slot));
+        assertEquals(expected, engine.getNextnBits(index, slot));
+        assertNotEquals(0x1d00ffffL, expected);
+
+        // the epoch keeps its nBits, the next epoch is slower and limited to the proof of work limit after a while
+        slot = extend(index, engine, slot, interval, spacing * 10);
+        assertEquals(expected, index.getnBits(slot));
+        long start = index.getnTime(index.getAncestor(slot, interval));
+        assertEquals(reference(expected, start, index.getnTime(slot)), engine.getNextnBits(index, slot));
+        slot = extend(index, engine, slot, 5 * interval, spacing * 10);
+        assertEquals(Utils.encodeCompactBits(params.proofOfWorkLimit), index.getnBits(slot));
+
+        // a fork retargeting differently replaces the cached epoch
+        int fork = extend(index, engine, index.getParent(boundary), 1, spacing);
+        long forked = reference(0x1d00ffffL, startTime, index.getnTime(fork));
+        assertEquals(forked, engine.getNextnBits(index, fork));
+        assertEquals(expected, engine.getNextnBits(index, boundary));
+
+        engine.checkNextnBits(index, boundary, expected);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void wrongBitsTest() throws Exception {
+        DifficultyEngine engine = new DifficultyEngine(params);
+        HeaderIndex index = new HeaderIndex();
+        Block genesis = new Block(new BlockHead(SHA256Hash.ZERO_HASH, 1556696368L, 0x1d00ffffL, 0));
+        genesis.setHash(TestChains.hashOf(0));
+        int slot = index.add(new StoredBlock(genesis, genesis.getWork(), 0));
+        engine.checkNextnBits(index, slot, 0x1d00fffeL);
+    }
+}
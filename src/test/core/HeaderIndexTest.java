@@ -0,0 +1,124 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/31
+ */
+package core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderIndexTest {
+    private final TestChains chains = new TestChains();
+
+    @Test
+    public void chainTest() throws Exception {
+        HeaderIndex index = new HeaderIndex();
+        StoredBlock genesis = chains.genesis();
+        List<StoredBlock> main = new ArrayList<>();
+        main.add(genesis);
+        main.addAll(chains.extend(genesis, 9));
+        List<StoredBlock> fork = chains.extend(main.get(4), 5); // heights 5..9, as much work as the main chain
+        for (StoredBlock block : main) {
+            index.add(block);
+        }
+        for (StoredBlock block : fork) {
+            index.add(block);
+        }
+        assertEquals(15, index.size());
+        assertEquals(HeaderIndex.NONE, index.slotOf(TestChains.hashOf(12345)));
+
+        int tip = index.slotOf(main.get(9).getBlock().getHash());
+        int forkTip = index.slotOf(fork.get(4).getBlock().getHash());
+        index.setTip(tip);
+        assertEquals(9, index.getTipHeight());
+        assertTrue(index.isMain(index.slotOf(main.get(5).getBlock().getHash())));
+        assertFalse(index.isMain(forkTip));
+
+        // headers are kept as they are
+        StoredBlock stored = index.get(index.slotOf(main.get(3).getBlock().getHash()));
+        assertEquals(main.get(3).getBlock(), stored.getBlock());
+        assertEquals(main.get(3).getChainWork(), stored.getChainWork());
+        assertEquals(main.get(4).getBlock().getHash(), stored.getNext());
+        assertEquals(SHA256Hash.ZERO_HASH, index.get(tip).getNext());
+        assertEquals(main.get(3).getBlock().getnTime(), index.getnTime(index.slotOf(main.get(3).getBlock().getHash())));
+
+        int split = index.slotOf(main.get(4).getBlock().getHash());
+        assertEquals(split, index.findSplit(forkTip, tip));
+        assertEquals(split, index.findSplit(tip, forkTip));
+        assertEquals(index.slotOf(main.get(2).getBlock().getHash()), index.getAncestor(forkTip, 2));
+        assertEquals(index.slotOf(fork.get(1).getBlock().getHash()), index.getAncestor(forkTip, 6));
+        assertEquals(HeaderIndex.NONE, index.getAncestor(forkTip, 10));
+
+        // re-organize
+        assertEquals(fork.get(4).moreWorkThan(main.get(9)), index.moreWorkThan(forkTip, tip));
+        index.setTip(forkTip);
+        assertFalse(index.isMain(tip));
+        assertTrue(index.isMain(forkTip));
+        assertTrue(index.isMain(split));
+        assertEquals(index.slotOf(fork.get(0).getBlock().getHash()), index.getMainSlot(5));
+        assertEquals(fork.get(0).getBlock().getHash(), index.get(split).getNext());
+
+        // drop the fork tip
+        index.setTip(index.getParent(forkTip));
+        index.truncate(forkTip);
+        assertEquals(HeaderIndex.NONE, index.slotOf(fork.get(4).getBlock().getHash()));
+        assertEquals(forkTip, index.add(fork.get(4)));
+    }
+
+    @Test
+    public void growTest() throws Exception {
+        HeaderIndex index = new HeaderIndex();
+        StoredBlock genesis = chains.genesis();
+        index.add(genesis);
+        List<StoredBlock> blocks = chains.extend(genesis, 100000); // more than one segment and many table resizes
+        for (StoredBlock block : blocks) {
+            index.add(block);
+        }
+        index.setTip(index.size() - 1);
+        assertEquals(100000, index.getTipHeight());
+        for (StoredBlock block : blocks) {
+            int slot = index.slotOf(block.getBlock().getHash());
+            assertEquals(block.getHeight(), slot);
+            assertEquals(slot, index.getMainSlot(block.getHeight()));
+        }
+        assertEquals(0, index.getAncestor(index.size() - 1, 0));
+    }
+
+    @Test
+    public void skipTest() throws Exception {
+        HeaderIndex index = new HeaderIndex();
+        StoredBlock genesis = chains.genesis();
+        List<StoredBlock> main = new ArrayList<>();
+        main.add(genesis);
+        main.addAll(chains.extend(genesis, 3000));
+        List<StoredBlock> fork = chains.extend(main.get(1000), 2500); // a long side chain, heights 1001..3500
+        for (StoredBlock block : main) {
+            index.add(block);
+        }
+        for (StoredBlock block : fork) {
+            index.add(block);
+        }
+        index.setTip(index.slotOf(main.get(3000).getBlock().getHash()));
+
+        for (StoredBlock block : fork) {
+            int skip = index.getSkip(index.slotOf(block.getBlock().getHash()));
+            assertEquals(HeaderIndex.skipHeight(block.getHeight()), index.getHeight(skip));
+            assertTrue(index.getHeight(skip) < block.getHeight());
+        }
+        int forkTip = index.slotOf(fork.get(2499).getBlock().getHash());
+        for (int height = 0; height <= 3500; height += 7) {
+            StoredBlock expected = height <= 1000 ? main.get(height) : fork.get(height - 1001);
+            assertEquals(index.slotOf(expected.getBlock().getHash()), index.getAncestor(forkTip, height));
+        }
+        int split = index.slotOf(main.get(1000).getBlock().getHash());
+        assertEquals(split, index.findSplit(forkTip, index.slotOf(main.get(3000).getBlock().getHash())));
+        assertEquals(split, index.findSplit(index.slotOf(fork.get(0).getBlock().getHash()), index.slotOf(main.get(1001).getBlock().getHash())));
+        assertEquals(index.slotOf(fork.get(100).getBlock().getHash()), index.findSplit(forkTip, index.slotOf(fork.get(100).getBlock().getHash())));
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/1
+ */
+package core;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static core.TestChains.hashOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrphanBlockPoolTest {
+    private static Block blockOf(int id, int prev) {
+        Block block = new Block(new BlockHead(hashOf(prev), id, 0x1e00ffffL, 0));
+        block.setHash(hashOf(id));
+        return block;
+    }
+
+    @Test
+    public void childrenTest() {
+        OrphanBlockPool pool = new OrphanBlockPool();
+        assertTrue(pool.add(blockOf(2, 1), "a"));
+        assertTrue(pool.add(blockOf(3, 1), "b"));
+        assertTrue(pool.add(blockOf(4, 2), "a"));
+        assertFalse(pool.add(blockOf(4, 2), "a"));
+        assertEquals(3, pool.size());
+        assertEquals(2, pool.getCount("a"));
+        assertEquals(3 * OrphanBlockPool.ORPHAN_BYTES, pool.getBytes());
+
+        List<Block> children = pool.takeChildren(hashOf(1));
+        assertEquals(2, children.size());
+        assertEquals(hashOf(2), children.get(0).getHash());
+        assertEquals(hashOf(3), children.get(1).getHash());
+        assertTrue(pool.takeChildren(hashOf(1)).isEmpty());
+        assertEquals(1, pool.size());
+        assertEquals(0, pool.getCount("b"));
+        assertEquals(hashOf(4), pool.takeChildren(hashOf(2)).get(0).getHash());
+        assertEquals(0, pool.size());
+        assertEquals(3, pool.getResolved());
+    }
+
+    @Test
+    public void evictTest() {
+        OrphanBlockPool pool = new OrphanBlockPool(4, 0, 0);
+        pool.add(blockOf(10, 1), "honest");
+        for (int i = 0; i < 10; i++) {
+            pool.add(blockOf(100 + i, 2), "flood");
+        }
+        assertEquals(4, pool.size());
+        assertEquals(7, pool.getEvicted());
+        assertTrue(pool.contains(hashOf(10))); // the peer holding most is evicted first
+        assertEquals(3, pool.getCount("flood"));
+        assertFalse(pool.contains(hashOf(100))); // oldest first
+        assertTrue(pool.contains(hashOf(109)));
+
+        OrphanBlockPool small = new OrphanBlockPool(100, 2 * OrphanBlockPool.ORPHAN_BYTES, 0);
+        for (int i = 0; i < 5; i++) {
+            small.add(blockOf(100 + i, 2), null);
+        }
+        assertEquals(2, small.size());
+        assertEquals(2, small.getCount(OrphanBlockPool.LOCAL));
+    }
+
+    @Test
+    public void expireTest() throws InterruptedException {
+        OrphanBlockPool pool = new OrphanBlockPool(100, 0, 1);
+        pool.add(blockOf(10, 1), "a");
+        Thread.sleep(1100);
+        pool.add(blockOf(11, 1), "a");
+        assertFalse(pool.contains(hashOf(10)));
+        assertEquals(1, pool.getExpired());
+        assertEquals(1, pool.takeChildren(hashOf(1)).size());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/22
+ */
+package core;
+
+import exception.VerificationException;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PowTargetTest {
+
+    @Test
+    public void decodeCompactTest() throws VerificationException {
+        long[] compacts = {0x1e00dfffL, 0x1d00ffffL, 0x207fffffL, 0x1b0404cbL, 0x04000001L, 0x03123456L, 0x02123456L, 0x01123456L};
+        for (long compact : compacts) {
+            assertEquals(Utils.decodeCompactBits(compact), PowTarget.decodeCompact(compact).toBigInteger());
+        }
+        assertEquals(PowTarget.MAX, PowTarget.decodeCompact(0x22012345L));
+    }
+
+    @Test(expected = VerificationException.class)
+    public void negativeCompactTest() throws VerificationException {
+        PowTarget.decodeCompact(0x1e80dfffL);
+    }
+
+    @Test
+    public void hashCompareTest() throws VerificationException {
+        PowTarget target = PowTarget.decodeCompact(0x1e00dfffL);
+        BigInteger value = target.toBigInteger();
+        Random random = new Random(0);
+        byte[] digest = new byte[SHA256Hash.SIZE];
+        for (int i = 0; i < 10000; i++) {
+            random.nextBytes(digest);
+            int zeros = random.nextInt(SHA256Hash.SIZE);
+            for (int k = 0; k < zeros; k++) {
+                digest[SHA256Hash.SIZE - 1 - k] = 0; // leading zeros of the little-endian number
+            }
+            SHA256Hash hash = new SHA256Hash(Utils.reverseBytes(digest));
+            boolean expected = hash.toBigInteger().compareTo(value) <= 0;
+            assertEquals(expected, target.isMetByDigest(digest, 0));
+            assertEquals(expected, target.isMetByHash(hash));
+        }
+        assertTrue(target.isMetByHash(new SHA256Hash(String.format("%064x", value))));
+        assertFalse(target.isMetByHash(new SHA256Hash(String.format("%064x", value.add(BigInteger.ONE)))));
+    }
+
+    @Test
+    public void multiplyDivideTest() throws VerificationException {
+        Random random = new Random(0);
+        long[] compacts = {0x1e00dfffL, 0x1d00ffffL, 0x207fffffL, 0x1b0404cbL, 0x04000001L, 0x03123456L, 0x02123456L};
+        for (long compact : compacts) {
+            PowTarget target = PowTarget.decodeCompact(compact);
+            for (int i = 0; i < 1000; i++) {
+                long den = 1 + random.nextInt(Integer.MAX_VALUE);
+                long num = random.nextInt(Integer.MAX_VALUE);
+                BigInteger expected = target.toBigInteger().multiply(BigInteger.valueOf(num)).divide(BigInteger.valueOf(den));
+                PowTarget scaled = target.multiplyDivide(num, den);
+                assertEquals(expected.bitLength() > 256 ? PowTarget.MAX.toBigInteger() : expected, scaled.toBigInteger());
+                if (expected.signum() > 0 && expected.bitLength() <= 256) {
+                    assertEquals(Utils.encodeCompactBits(expected), scaled.encodeCompact());
+                    assertEquals(expected.bitLength(), scaled.bitLength());
+                }
+            }
+        }
+    }
+}
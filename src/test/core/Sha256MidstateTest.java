@@ -0,0 +1,40 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/21
+ */
+package core;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class Sha256MidstateTest {
+
+    @Test
+    public void digestTest() throws NoSuchAlgorithmException {
+        Random random = new Random(1);
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[] out = new byte[SHA256Hash.SIZE];
+        for (int length = 0; length < 200; length++) {
+            byte[] message = new byte[length];
+            random.nextBytes(message);
+            int variableOffset = random.nextInt(length + 1);
+            Sha256Midstate midstate = new Sha256Midstate(message, length, variableOffset);
+            // change the variable part a few times
+            for (int round = 0; round < 3; round++) {
+                for (int i = variableOffset; i < length; i++) {
+                    message[i] = (byte) random.nextInt();
+                    midstate.getBuffer()[i] = message[i];
+                }
+                midstate.digest(out, 0);
+                assertArrayEquals(sha256.digest(message), out);
+                midstate.doubleDigest(out, 0);
+                assertArrayEquals(Utils.doubleDigest(message), out);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/8
+ */
+package core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashes and chains of blocks for the tests, the hashes are set instead of mined
+ * Blocks are numbered by the instance from 1 on, the genesis is 0, so a test building its own chains
+ * gets the same hashes whatever the order the tests run in
+ */
+public final class TestChains {
+    private int nextId = 1;
+
+    /**
+     * a distinct hash for each id, spread like a real one and never zero
+     * its last byte is the low byte of the id, so consecutive ids fill evenly the stripes picked by it, see ClockBlockCache
+     */
+    public static SHA256Hash hashOf(int id) {
+        byte[] bytes = SHA256Hash.create(new byte[]{(byte) (id >>> 24), (byte) (id >>> 16), (byte) (id >>> 8), (byte) id}).getBytes().clone();
+        bytes[SHA256Hash.SIZE - 1] = (byte) id;
+        return new SHA256Hash(bytes);
+    }
+
+    /** the hash of the next block of this instance */
+    SHA256Hash nextHash() {
+        return hashOf(nextId++);
+    }
+
+    /** a genesis of the hash of id 0 */
+    StoredBlock genesis() {
+        Block block = new Block(new BlockHead(SHA256Hash.ZERO_HASH, 1000, 0x1e00ffffL, 0));
+        block.setHash(hashOf(0));
+        return new StoredBlock(block, BigInteger.ONE, 0);
+    }
+
+    /** extend the chain from prev by count blocks */
+    List<StoredBlock> extend(StoredBlock prev, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int id = nextId;
+            Block block = new Block(new BlockHead(prev.getBlock().getHash(), 1000 + id, 0x1e00ffffL, id));
+            block.setHash(nextHash());
+            prev = prev.build(block);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+}
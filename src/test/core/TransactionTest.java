@@ -0,0 +1,111 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/6
+ */
+package core;
+
+import exception.ProtocolException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TransactionTest {
+    private static final SHA256Hash prev = new SHA256Hash(Utils.doubleDigest(new byte[]{1}));
+    private static final SHA256Hash pubkey = new SHA256Hash(Utils.doubleDigest(new byte[]{2}));
+
+    private static Transaction create() {
+        Transaction tx = new Transaction();
+        tx.addInput(new TransactionInput(new TransactionOutpoint(prev, 1), SHA256Hash.ZERO_HASH));
+        tx.addOutput(new TransactionOutput(1.5, pubkey));
+        tx.addOutput(new TransactionOutput(0.25, pubkey));
+        return tx;
+    }
+
+    @Test
+    public void encodingTest() throws Exception {
+        Transaction tx = create();
+        byte[] bytes = tx.serialize();
+        assertEquals(1 + 68 + 1 + 2 * 40, bytes.length);
+        assertEquals(bytes.length, tx.getSize());
+        assertEquals(1, bytes[0]); // one input
+        assertArrayEquals(prev.getBytes(), Arrays.copyOfRange(bytes, 1, 33));
+        assertArrayEquals(new byte[]{1, 0, 0, 0}, Arrays.copyOfRange(bytes, 33, 37)); // n in little-endian
+        assertEquals(2, bytes[69]); // two outputs
+        // 1.5 coins in fixed-point little-endian
+        assertEquals(150_000_000L, ByteBuffer.wrap(bytes, 70, 8).order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong());
+
+        Transaction decoded = Transaction.deserialize(ByteBuffer.wrap(bytes));
+        assertEquals(tx, decoded);
+        assertEquals(tx.getHash(), decoded.getHash());
+        assertEquals(new SHA256Hash(Utils.doubleDigest(bytes)), tx.getHash());
+
+        // the null outpoint of a coinbase
+        Transaction coinbase = new Transaction();
+        coinbase.addInput(new TransactionInput());
+        coinbase.addOutput(new TransactionOutput(50, pubkey));
+        assertTrue(Transaction.deserialize(ByteBuffer.wrap(coinbase.serialize())).getInputs().get(0).getPrevout().isNull());
+    }
+
+    @Test
+    public void hashCacheTest() {
+        Transaction tx = create();
+        SHA256Hash hash = tx.getHash();
+        assertSame(hash, tx.getHash());
+        assertEquals(create(), tx); // the cached hash does not matter
+        assertEquals(create().hashCode(), tx.hashCode());
+        tx.addOutput(new TransactionOutput(1, pubkey));
+        assertNotEquals(hash, tx.getHash());
+    }
+
+    @Test
+    public void changedAfterHashTest() throws Exception {
+        Transaction tx = create();
+        SHA256Hash hash = tx.getHash();
+        tx.getInputs().get(0).setSignature(pubkey);
+        SHA256Hash signed = tx.getHash();
+        assertNotEquals(hash, signed);
+        assertEquals(new SHA256Hash(Utils.doubleDigest(tx.serialize())), signed);
+
+        tx.getInputs().get(0).getPrevout().setN(2);
+        assertNotEquals(signed, tx.getHash());
+        tx.getOutputs().get(1).setValue(0.5);
+        assertEquals(new SHA256Hash(Utils.doubleDigest(tx.serialize())), tx.getHash());
+
+        // the owners are linked again by the java serialization as well
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(tx);
+        }
+        Transaction received = (Transaction) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(tx.getHash(), received.getHash());
+        received.getOutputs().get(0).setPubkey(prev);
+        assertNotEquals(tx.getHash(), received.getHash());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnlyListsTest() {
+        create().getInputs().add(new TransactionInput());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedTest() throws Exception {
+        byte[] bytes = create().serialize();
+        Transaction.deserialize(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+    }
+
+    @Test
+    public void messageTest() throws Exception {
+        Transaction tx = create();
+        Message msg = new Message(MessageHeader.TX, 0, null);
+        msg.setTransactionIntoPayload(tx);
+        assertTrue(msg.valid());
+        assertEquals(tx.getHash(), msg.getPayloadAsTransaction().getHash());
+    }
+}
@@ -6,10 +6,25 @@ package core;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 public class TxMemPoolTest {
-    TxMemPool mempool = TxMemPool.getInstance();
+    TxMemPool mempool = new TxMemPool();
+
+    private static Transaction spend(SHA256Hash prev, int n, double value) {
+        Transaction tx = new Transaction();
+        tx.addInput(new TransactionInput(new TransactionOutpoint(prev, n), SHA256Hash.ZERO_HASH));
+        tx.addOutput(new TransactionOutput(value, prev));
+        return tx;
+    }
 
     @Test
     public void addRemoveTest() {
@@ -21,5 +36,239 @@ public class TxMemPoolTest {
         assertFalse(mempool.remove(tx));
     }
 
+    @Test
+    public void conflictTest() {
+        SHA256Hash prev = new SHA256Hash(Utils.doubleDigest(new byte[]{1}));
+        Transaction tx = spend(prev, 0, 1.0);
+        Transaction doubleSpend = spend(prev, 0, 2.0);
+        long updated = mempool.getnTransactionsaUpdated();
+        assertTrue(mempool.add(tx.getHash(), tx));
+        assertFalse(mempool.add(tx.getHash(), tx));
+        assertFalse(mempool.add(doubleSpend.getHash(), doubleSpend));
+        assertTrue(mempool.isSpent(new TransactionOutpoint(prev, 0)));
+        assertEquals(updated + 1, mempool.getnTransactionsaUpdated());
+
+        // a block confirms the double spend, the pooled one is removed
+        mempool.removeConflicts(doubleSpend);
+        assertNull(mempool.lookup(tx.getHash()));
+        assertFalse(mempool.isSpent(new TransactionOutpoint(prev, 0)));
+        assertTrue(mempool.add(doubleSpend.getHash(), doubleSpend));
+        assertSame(doubleSpend, mempool.getTransactions().iterator().next());
+    }
+
+    @Test
+    public void ancestorScoreTest() {
+        SHA256Hash coin = new SHA256Hash(Utils.doubleDigest(new byte[]{3}));
+        Transaction parent = spend(coin, 0, 5.0);
+        Transaction child = spend(parent.getHash(), 0, 4.0);
+        Transaction other = spend(coin, 1, 5.0);
+
+        // the child arrives before its parent, it is linked once the parent is pooled
+        assertTrue(mempool.add(child.getHash(), child, 10));
+        assertTrue(mempool.add(other.getHash(), other, 3));
+        assertTrue(mempool.add(parent.getHash(), parent, 0));
+        double packageRate = 10.0 / (parent.getSize() + child.getSize());
+        assertEquals(packageRate, mempool.getAncestorFeeRate(child.getHash()), 1e-12);
+        assertEquals(0, mempool.getAncestorFeeRate(parent.getHash()), 1e-12);
+
+        // the child pays for its parent, the parent is selected first
+        List<Transaction> selected = mempool.selectTransactions(Long.MAX_VALUE);
+        assertEquals(3, selected.size());
+        assertSame(parent, selected.get(0));
+        assertSame(child, selected.get(1));
+        assertSame(other, selected.get(2));
+        // the package does not fit
+        selected = mempool.selectTransactions(other.getSize());
+        assertEquals(1, selected.size());
+        assertSame(other, selected.get(0));
+
+        // the value of the spent pooled output is known
+        Transaction grandChild = spend(child.getHash(), 0, 3.5);
+        assertTrue(mempool.add(grandChild.getHash(), grandChild));
+        long packageSize = parent.getSize() + child.getSize() + grandChild.getSize();
+        assertEquals(10.5 / packageSize, mempool.getAncestorFeeRate(grandChild.getHash()), 1e-12);
+
+        // a block confirms the parent, it is taken out of the packages of its descendants
+        assertTrue(mempool.removeForBlock(parent));
+        assertEquals(10.0 / child.getSize(), mempool.getAncestorFeeRate(child.getHash()), 1e-12);
+        assertEquals(-1, mempool.getAncestorFeeRate(parent.getHash()), 0);
+        assertSame(child, mempool.selectTransactions(Long.MAX_VALUE).get(0));
+    }
+
+    @Test
+    public void evictTest() {
+        SHA256Hash coin = new SHA256Hash(Utils.doubleDigest(new byte[]{4}));
+        Transaction[] txs = new Transaction[5];
+        for (int n = 0; n < txs.length; n++) {
+            txs[n] = spend(coin, n, 1.0);
+        }
+        long memory = TxMemPool.memoryOf(txs[0]);
+        int size = txs[0].getSize();
+        TxMemPool pool = new TxMemPool(3 * memory);
+        assertTrue(pool.add(txs[0].getHash(), txs[0], 3 * size));
+        assertTrue(pool.add(txs[1].getHash(), txs[1], size));
+        assertTrue(pool.add(txs[2].getHash(), txs[2], 2 * size));
+        assertEquals(3 * memory, pool.getBytes());
+        assertEquals(0, pool.getMinFeeRate(), 0);
+
+        // the lowest fee rate is evicted, the floor is raised above it
+        assertTrue(pool.add(txs[3].getHash(), txs[3], 4 * size));
+        assertEquals(3, pool.size());
+        assertEquals(3 * memory, pool.getBytes());
+        assertNull(pool.lookup(txs[1].getHash()));
+        assertEquals(1, pool.getEvicted());
+        assertTrue(pool.getMinFeeRate() > 1);
+        assertFalse(pool.add(txs[4].getHash(), txs[4], size));
+        assertEquals(1, pool.getRejected());
+
+        pool.clear();
+        assertEquals(0, pool.getBytes());
+    }
+
+    @Test
+    public void removeDescendantsTest() {
+        SHA256Hash coin = new SHA256Hash(Utils.doubleDigest(new byte[]{9}));
+        Transaction parent = spend(coin, 0, 5.0);
+        Transaction child = spend(parent.getHash(), 0, 4.0);
+        Transaction grandChild = spend(child.getHash(), 0, 3.0);
+        Transaction other = spend(coin, 1, 5.0);
+        assertTrue(mempool.add(parent.getHash(), parent, 1));
+        assertTrue(mempool.add(child.getHash(), child, 1));
+        assertTrue(mempool.add(grandChild.getHash(), grandChild, 1));
+        assertTrue(mempool.add(other.getHash(), other, 1));
+
+        // the descendants spend outputs which are gone with the parent
+        assertTrue(mempool.remove(parent));
+        assertEquals(1, mempool.size());
+        assertSame(other, mempool.lookup(other.getHash()));
+        assertFalse(mempool.isSpent(new TransactionOutpoint(parent.getHash(), 0)));
+        assertFalse(mempool.isSpent(new TransactionOutpoint(child.getHash(), 0)));
+        assertEquals(TxMemPool.memoryOf(other), mempool.getBytes());
+
+        // so do the descendants of a conflict
+        assertTrue(mempool.add(parent.getHash(), parent, 1));
+        assertTrue(mempool.add(child.getHash(), child, 1));
+        mempool.removeConflicts(spend(coin, 0, 1.0));
+        assertEquals(1, mempool.size());
+        assertEquals(TxMemPool.memoryOf(other), mempool.getBytes());
+    }
+
+    @Test
+    public void concurrentLinkTest() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 200; round++) {
+                SHA256Hash coin = new SHA256Hash(Utils.doubleDigest(new byte[]{10, (byte) round}));
+                Transaction parent = spend(coin, 0, 5.0);
+                Transaction child = spend(parent.getHash(), 0, 4.0);
+                CyclicBarrier start = new CyclicBarrier(2);
+                // the parent and the child are added at once, the edge is never lost
+                Future<Boolean> p = pool.submit(() -> {
+                    start.await();
+                    return mempool.add(parent.getHash(), parent, 0);
+                });
+                Future<Boolean> c = pool.submit(() -> {
+                    start.await();
+                    return mempool.add(child.getHash(), child, 10);
+                });
+                assertTrue(p.get());
+                assertTrue(c.get());
+                assertEquals(10.0 / (parent.getSize() + child.getSize()), mempool.getAncestorFeeRate(child.getHash()), 1e-12);
+                assertTrue(mempool.remove(parent));
+                assertEquals(0, mempool.size());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void evictByPooledHashTest() {
+        SHA256Hash coin = new SHA256Hash(Utils.doubleDigest(new byte[]{7}));
+        Transaction tx = spend(coin, 0, 1.0);
+        Transaction other = spend(coin, 1, 1.0);
+        int size = tx.getSize();
+        TxMemPool pool = new TxMemPool(TxMemPool.memoryOf(tx));
+        // pooled by a hash other than its own, it is still evicted
+        SHA256Hash pooledBy = new SHA256Hash(Utils.doubleDigest(new byte[]{8}));
+        assertTrue(pool.add(pooledBy, tx, size));
+        assertTrue(pool.add(other.getHash(), other, 2 * size));
+        assertNull(pool.lookup(pooledBy));
+        assertEquals(1, pool.size());
+        assertEquals(1, pool.getEvicted());
+        assertTrue(pool.remove(other.getHash()));
+        assertEquals(0, pool.getBytes());
+    }
 
+    @Test
+    public void packageLimitTest() {
+        Transaction prev = spend(new SHA256Hash(Utils.doubleDigest(new byte[]{5})), 0, 1.0);
+        assertTrue(mempool.add(prev.getHash(), prev, 0));
+        for (int i = 1; i < TxMemPool.MAX_PACKAGE_COUNT; i++) {
+            Transaction tx = spend(prev.getHash(), 0, 1.0);
+            assertTrue(mempool.add(tx.getHash(), tx, 0));
+            prev = tx;
+        }
+        Transaction tx = spend(prev.getHash(), 0, 1.0);
+        assertFalse(mempool.add(tx.getHash(), tx, 0));
+        assertEquals(TxMemPool.MAX_PACKAGE_COUNT, mempool.size());
+        assertFalse(mempool.isSpent(new TransactionOutpoint(prev.getHash(), 0)));
+    }
+
+    @Test
+    public void concurrentTest() throws Exception {
+        int threads = 4, perThread = 500;
+        SHA256Hash prev = new SHA256Hash(Utils.doubleDigest(new byte[]{2}));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            double value = t + 1;
+            // every thread spends the same outpoints, only one transaction of each outpoint is taken
+            results.add(pool.submit(() -> {
+                int added = 0;
+                for (int n = 0; n < perThread; n++) {
+                    Transaction tx = spend(prev, n, value);
+                    if (mempool.add(tx.getHash(), tx)) {
+                        added++;
+                    }
+                }
+                return added;
+            }));
+        }
+        int added = 0;
+        for (Future<Integer> result : results) {
+            added += result.get();
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(perThread, added);
+        assertEquals(perThread, mempool.size());
+        for (Transaction tx : mempool.getTransactions()) {
+            assertTrue(mempool.remove(tx));
+        }
+        assertEquals(0, mempool.size());
+        for (int n = 0; n < perThread; n++) {
+            assertFalse(mempool.isSpent(new TransactionOutpoint(prev, n)));
+        }
+    }
+
+    @Test
+    public void coinsTest() throws Exception {
+        CoinsViewCache coins = new CoinsViewCache(new MemoryCoinsView());
+        SHA256Hash coin = new SHA256Hash(Utils.doubleDigest(new byte[]{6}));
+        coins.addCoin(new TransactionOutpoint(coin, 0), new Coin(new TransactionOutput(2.0, coin), 1, false));
+        TxMemPool pool = new TxMemPool(0, coins);
+
+        // only unspent coins and pooled outputs are spent, the fee is valued from them
+        Transaction missing = spend(coin, 1, 1.0);
+        assertFalse(pool.add(missing.getHash(), missing));
+        Transaction tooMuch = spend(coin, 0, 2.5);
+        assertFalse(pool.add(tooMuch.getHash(), tooMuch));
+        Transaction tx = spend(coin, 0, 1.5);
+        assertTrue(pool.add(tx.getHash(), tx));
+        assertEquals(0.5 / tx.getSize(), pool.getAncestorFeeRate(tx.getHash()), 1e-12);
+        Transaction child = spend(tx.getHash(), 0, 1.0);
+        assertTrue(pool.add(child.getHash(), child));
+        assertEquals(1.0 / (tx.getSize() + child.getSize()), pool.getAncestorFeeRate(child.getHash()), 1e-12);
+    }
 }
@@ -4,9 +4,12 @@
  */
 package core;
 
+import exception.ProtocolException;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import static org.junit.Assert.*;
 
@@ -16,4 +19,28 @@ public class UtilsTest {
     public void getSetCompactTest() {
         assertEquals(Utils.decodeCompactBits(Utils.encodeCompactBits(new BigInteger("123456789", 10))), new BigInteger("123456789", 10));
     }
+
+    @Test
+    public void varIntTest() throws Exception {
+        long[] values = {0, 0xFC, 0xFD, 0xFFFF, 0x10000, 0xFFFFFFFFL, 0x100000000L, Long.MAX_VALUE};
+        int[] sizes = {1, 1, 3, 3, 5, 5, 9, 9};
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int i = 0; i < values.length; i++) {
+                ByteBuffer buf = ByteBuffer.allocate(9).order(order);
+                Utils.putVarInt(buf, values[i]);
+                assertEquals(sizes[i], buf.position());
+                assertEquals(sizes[i], Utils.varIntSize(values[i]));
+                buf.flip();
+                assertEquals(values[i], Utils.getVarInt(buf));
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap(new byte[]{(byte) 0xFD, 0x01, 0x00});
+        assertEquals(1, buf.get(1));
+        try {
+            Utils.getVarInt(buf);
+            fail("1 must be a single byte");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
 }
@@ -0,0 +1,96 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/28
+ */
+package persistence;
+
+import core.Block;
+import core.BlockHead;
+import core.SHA256Hash;
+import core.StoredBlock;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static core.TestChains.hashOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClockBlockCacheTest {
+    private static StoredBlock blockOf(int i) {
+        return new StoredBlock(new Block(new BlockHead(SHA256Hash.ZERO_HASH, i, 0x207fffffL, 0)), BigInteger.ONE, i);
+    }
+
+    @Test
+    public void putGetTest() {
+        ClockBlockCache cache = new ClockBlockCache(100);
+        StoredBlock block = blockOf(1);
+        cache.put(hashOf(1), block);
+        assertSame(block, cache.get(hashOf(1)));
+        assertNull(cache.get(hashOf(2)));
+
+        // a reader never replaces the block put by the writer
+        cache.putIfAbsent(hashOf(1), blockOf(1));
+        assertSame(block, cache.get(hashOf(1)));
+        StoredBlock newer = blockOf(1);
+        cache.put(hashOf(1), newer);
+        assertSame(newer, cache.get(hashOf(1)));
+
+        cache.remove(hashOf(1));
+        assertNull(cache.get(hashOf(1)));
+        assertEquals(0, cache.size());
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void evictionTest() {
+        ClockBlockCache cache = new ClockBlockCache(64);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(hashOf(i), blockOf(i));
+            cache.get(hashOf(0)); // keep it referenced
+            assertTrue(cache.size() <= 64);
+        }
+        assertEquals(64, cache.size());
+        assertEquals(1000 - 64, cache.getEvictions());
+        assertNotNull(cache.get(hashOf(0)));
+        assertNotNull(cache.get(hashOf(999)));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        for (int i = 0; i < 64; i++) {
+            cache.put(hashOf(i), blockOf(i));
+        }
+        assertEquals(64, cache.size());
+    }
+
+    @Test
+    public void concurrentTest() throws InterruptedException {
+        ClockBlockCache cache = ClockBlockCache.ofBytes(256L * ClockBlockCache.ENTRY_BYTES);
+        assertEquals(256, cache.getCapacity());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int key = (i * 31 + seed) % 1024;
+                    StoredBlock block = cache.get(hashOf(key));
+                    if (block == null) {
+                        cache.putIfAbsent(hashOf(key), blockOf(key));
+                    } else if (block.getHeight() != key) {
+                        throw new AssertionError("wrong block for " + key);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.size() <= 256);
+        assertEquals(4 * 20000, cache.getHits() + cache.getMisses());
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/24
+ */
+package persistence;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static core.TestChains.hashOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DiskBlockIndexTest {
+    private static final int ENTRIES = 10000; // enough to grow the table a few times
+
+    @Test
+    public void putGetTest() throws IOException {
+        File f = File.createTempFile("index", null);
+        try {
+            DiskBlockIndex index = DiskBlockIndex.create(f, 0);
+            for (int i = 0; i < ENTRIES; i++) {
+                index.put(hashOf(i), 33 + i * 64L);
+            }
+            index.put(hashOf(0), 1); // replace
+            assertEquals(ENTRIES, index.size());
+            assertEquals(1, index.get(hashOf(0)));
+            for (int i = 1; i < ENTRIES; i++) {
+                assertEquals(33 + i * 64L, index.get(hashOf(i)));
+            }
+            assertEquals(-1, index.get(hashOf(ENTRIES)));
+            index.setIndexedLength(12345);
+            index.close();
+
+            // reopen the cleanly closed index
+            index = DiskBlockIndex.open(f);
+            assertNotNull(index);
+            assertEquals(ENTRIES, index.size());
+            assertEquals(12345, index.getIndexedLength());
+            assertEquals(33 + 64L, index.get(hashOf(1)));
+
+            // not closed, so it is dirty
+            assertNull(DiskBlockIndex.open(f));
+            index.close();
+        } finally {
+            f.delete();
+        }
+    }
+}
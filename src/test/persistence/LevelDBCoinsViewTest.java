@@ -0,0 +1,56 @@
+/**
+ * Created By Yufan Wu
+ * 2019/6/7
+ */
+package persistence;
+
+import core.Coin;
+import core.CoinsViewCache;
+import core.SHA256Hash;
+import core.TransactionOutpoint;
+import core.TransactionOutput;
+import core.Utils;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class LevelDBCoinsViewTest {
+    @Test
+    public void flushTest() throws Exception {
+        File f = File.createTempFile("coins", null);
+        f.delete();
+        SHA256Hash txHash = new SHA256Hash(Utils.doubleDigest(new byte[]{1}));
+        SHA256Hash best = new SHA256Hash(Utils.doubleDigest(new byte[]{2}));
+        TransactionOutpoint a = new TransactionOutpoint(txHash, 0);
+        TransactionOutpoint b = new TransactionOutpoint(txHash, 1);
+        Coin coin = new Coin(new TransactionOutput(12.5, best), 7, true);
+
+        LevelDBCoinsView db = new LevelDBCoinsView(f);
+        try {
+            assertNull(db.getBestBlock());
+            CoinsViewCache cache = new CoinsViewCache(db, 1);
+            cache.addCoin(a, coin);
+            cache.addCoin(b, new Coin(new TransactionOutput(0.25, best), 7, false));
+            assertNull(db.getCoin(a));
+            cache.setBestBlock(best);
+            cache.flush();
+            assertEquals(0, cache.size()); // over its limit, emptied
+
+            assertEquals(coin, db.getCoin(a));
+            assertEquals(coin, cache.getCoin(a));
+            assertEquals(coin, cache.spendCoin(a));
+            cache.flush();
+            db.close();
+
+            db = new LevelDBCoinsView(f);
+            assertNull(db.getCoin(a));
+            assertEquals(0.25, db.getCoin(b).getValue(), 0);
+            assertEquals(best, db.getBestBlock());
+        } finally {
+            db.close();
+            LevelDBCoinsView.destroy(f);
+        }
+    }
+}
@@ -5,6 +5,7 @@
 package persistence;
 
 import core.Block;
+import core.SHA256Hash;
 import core.StoredBlock;
 import net.NetworkParameters;
 import org.junit.Test;
@@ -12,14 +13,18 @@ import org.junit.Test;
 import java.io.File;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class LevelDBPersistenceTest {
+    private static final NetworkParameters params = new NetworkParameters(NetworkParameters.ID_TESTNET);
+
     @Test
     public void test() throws Exception {
         File f = File.createTempFile("leveldb", null);
         f.delete();
 
-        NetworkParameters params = new NetworkParameters(NetworkParameters.ID_TESTNET);
         LevelDBBlockPersistence persistence = new LevelDBBlockPersistence(params, f);
         persistence.reset();
 
@@ -32,6 +37,7 @@ public class LevelDBPersistenceTest {
         Block block = new Block();
         block.setnBits(params.genesisBlock.getnBits());
         block.setHashPrevBlock(params.genesisBlock.getHash());
+        block.getHash(params);
         StoredBlock b1 = genesis.build(block);
         persistence.put(b1);
         persistence.setChainTip(b1);
@@ -45,9 +51,124 @@ public class LevelDBPersistenceTest {
             // Check the chain head was stored correctly also.
             StoredBlock chainHead = persistence.getChainTip();
             assertEquals(b1, chainHead);
+            // the bloom filter is rebuilt on open
+            assertTrue(persistence.hasBlock(b1.getBlock().getHash()));
+            assertFalse(persistence.hasBlock(SHA256Hash.ZERO_HASH));
+            assertNull(persistence.get(SHA256Hash.ZERO_HASH));
         } finally {
             persistence.close();
             persistence.destroy();
         }
     }
+
+    private static StoredBlock buildOn(StoredBlock prev, long nTime) throws Exception {
+        Block block = new Block();
+        block.setnBits(prev.getBlock().getnBits());
+        block.setnTime(nTime);
+        block.setHashPrevBlock(prev.getBlock().getHash());
+        block.getHash(params);
+        return prev.build(block);
+    }
+
+    @Test
+    public void heightIndexTest() throws Exception {
+        File f = File.createTempFile("leveldb", null);
+        f.delete();
+
+        LevelDBBlockPersistence persistence = new LevelDBBlockPersistence(params, f);
+        persistence.reset();
+        StoredBlock genesis = persistence.getChainTip();
+
+        // genesis <- a1 <- a2 <- a3
+        //               <- b2 <- b3 <- b4
+        StoredBlock a1 = buildOn(genesis, 1);
+        StoredBlock a2 = buildOn(a1, 2);
+        StoredBlock a3 = buildOn(a2, 3);
+        StoredBlock b2 = buildOn(a1, 4);
+        StoredBlock b3 = buildOn(b2, 5);
+        StoredBlock b4 = buildOn(b3, 6);
+        for (StoredBlock block : new StoredBlock[]{a1, a2, a3, b2, b3, b4}) {
+            persistence.put(block);
+        }
+        persistence.setChainTip(a3);
+        assertEquals(a2, persistence.getByHeight(2));
+        assertNull(persistence.getByHeight(4));
+
+        persistence.setChainTip(b4);
+        StoredBlock[] expected = {genesis, a1, b2, b3, b4};
+        MainChainIterator it = persistence.getMainChain(0, 4);
+        for (StoredBlock block : expected) {
+            assertEquals(block, it.next());
+        }
+        assertNull(it.next());
+
+        persistence.setChainTip(a3);
+        persistence.close();
+
+        persistence = new LevelDBBlockPersistence(params, f);
+        try {
+            assertNull(persistence.getByHeight(4));
+            it = persistence.getMainChain(3, 0);
+            for (StoredBlock block : new StoredBlock[]{a3, a2, a1, genesis}) {
+                assertEquals(block, it.next());
+            }
+            assertNull(it.next());
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void batchTest() throws Exception {
+        File f = File.createTempFile("leveldb", null);
+        f.delete();
+
+        LevelDBBlockPersistence persistence = new LevelDBBlockPersistence(params, f);
+        persistence.reset();
+        StoredBlock genesis = persistence.getChainTip();
+        StoredBlock b1 = buildOn(genesis, 1);
+        StoredBlock b2 = buildOn(b1, 2);
+
+        try {
+            // pending writes are only visible to the thread owning the batch
+            persistence.beginBatch();
+            persistence.put(b1);
+            persistence.beginBatch();
+            persistence.put(b2);
+            persistence.setChainTip(b2);
+            persistence.commitBatch(); // nested, nothing is written yet
+            assertEquals(b2, persistence.getChainTip());
+            assertEquals(b1, persistence.get(b1.getBlock().getHash()));
+            StoredBlock[] seen = new StoredBlock[2];
+            LevelDBBlockPersistence source = persistence;
+            Thread reader = new Thread(() -> {
+                try {
+                    seen[0] = source.getChainTip();
+                    seen[1] = source.get(b1.getBlock().getHash());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            reader.start();
+            reader.join();
+            assertEquals(genesis, seen[0]);
+            assertNull(seen[1]);
+            persistence.abortBatch();
+            assertEquals(genesis, persistence.getChainTip());
+            assertNull(persistence.get(b2.getBlock().getHash()));
+
+            persistence.beginBatch();
+            persistence.put(b1);
+            persistence.put(b2);
+            persistence.setChainTip(b2);
+            persistence.commitBatch();
+            persistence.close();
+
+            persistence = new LevelDBBlockPersistence(params, f);
+            assertEquals(b2, persistence.getChainTip());
+            assertEquals(b1, persistence.getByHeight(1));
+        } finally {
+            persistence.close();
+        }
+    }
 }
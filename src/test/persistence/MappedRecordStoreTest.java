@@ -0,0 +1,86 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/25
+ */
+package persistence;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MappedRecordStoreTest {
+    private static final int BASE = 33;
+    private static final int RECORD_SIZE = 64;
+    private static final int RECORDS = 70000; // more than one segment
+
+    private static byte[] recordOf(int i) {
+        byte[] record = new byte[RECORD_SIZE];
+        Arrays.fill(record, (byte) i);
+        record[0] = (byte) (i >>> 8);
+        record[1] = (byte) (i >>> 16);
+        return record;
+    }
+
+    @Test
+    public void writeReadTest() throws IOException {
+        File f = File.createTempFile("records", null);
+        try {
+            try (RandomAccessFile file = new RandomAccessFile(f, "rw")) {
+                MappedRecordStore store = new MappedRecordStore(file.getChannel(), BASE, RECORD_SIZE);
+                for (int i = 0; i < RECORDS; i++) {
+                    store.write(BASE + (long) i * RECORD_SIZE, ByteBuffer.wrap(recordOf(i)));
+                }
+                store.close();
+            }
+            try (RandomAccessFile file = new RandomAccessFile(f, "rw")) {
+                MappedRecordStore store = new MappedRecordStore(file.getChannel(), BASE, RECORD_SIZE);
+                byte[] record = new byte[RECORD_SIZE];
+                for (int i = 0; i < RECORDS; i++) {
+                    store.read(BASE + (long) i * RECORD_SIZE).get(record);
+                    assertArrayEquals(recordOf(i), record);
+                }
+                // the tail of the last segment is zero filled
+                ByteBuffer tail = store.read(BASE + (long) RECORDS * RECORD_SIZE);
+                assertEquals(RECORD_SIZE, tail.remaining());
+                tail.get(record);
+                assertArrayEquals(new byte[RECORD_SIZE], record);
+                store.close();
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void batchWriteTest() throws IOException {
+        File f = File.createTempFile("records", null);
+        try (RandomAccessFile file = new RandomAccessFile(f, "rw")) {
+            MappedRecordStore store = new MappedRecordStore(file.getChannel(), BASE, RECORD_SIZE);
+            // records in one buffer, from its position to its limit
+            ByteBuffer src = ByteBuffer.allocateDirect(4 * RECORD_SIZE);
+            src.position(RECORD_SIZE);
+            for (int i = 1; i < 4; i++) {
+                src.put(recordOf(i));
+            }
+            src.flip();
+            src.position(RECORD_SIZE);
+            store.write(BASE, src);
+            assertEquals(0, src.remaining());
+            byte[] record = new byte[RECORD_SIZE];
+            for (int i = 1; i < 4; i++) {
+                store.read(BASE + (long) (i - 1) * RECORD_SIZE).get(record);
+                assertArrayEquals(recordOf(i), record);
+            }
+            store.close();
+        } finally {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/29
+ */
+package persistence;
+
+import core.SHA256Hash;
+import core.Utils;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScalableBloomFilterTest {
+    private static SHA256Hash randomHash(Random random) {
+        byte[] bytes = new byte[SHA256Hash.SIZE];
+        random.nextBytes(bytes);
+        return new SHA256Hash(bytes);
+    }
+
+    @Test
+    public void growTest() {
+        Random random = new Random(42);
+        ScalableBloomFilter filter = new ScalableBloomFilter(0, 0.001);
+        long initialBytes = filter.getMemoryBytes();
+        SHA256Hash[] added = new SHA256Hash[50000]; // more than a few slices
+        for (int i = 0; i < added.length; i++) {
+            added[i] = randomHash(random);
+            filter.add(added[i]);
+        }
+        assertTrue(filter.getMemoryBytes() > initialBytes);
+        // no false negative
+        for (SHA256Hash hash : added) {
+            assertTrue(filter.mightContain(hash));
+        }
+        assertEquals(0, filter.getNegatives());
+
+        int positives = 0;
+        int lookups = 100000;
+        for (int i = 0; i < lookups; i++) {
+            if (filter.mightContain(randomHash(random))) {
+                filter.reportFalsePositive();
+                positives++;
+            }
+        }
+        // the compound rate is bounded by twice the rate of the first slice
+        assertTrue(filter.getExpectedFalsePositiveRate() < 0.002);
+        assertTrue((double) positives / lookups < 0.004);
+        assertEquals(positives, filter.getFalsePositives());
+        assertEquals(lookups - positives, filter.getNegatives());
+        assertEquals((double) positives / lookups, filter.getObservedFalsePositiveRate(), 1e-9);
+    }
+
+    @Test
+    public void duplicateTest() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, 0.01);
+        SHA256Hash hash = new SHA256Hash(Utils.doubleDigest(new byte[]{1, 2, 3}));
+        filter.add(hash);
+        filter.add(hash);
+        assertEquals(1, filter.size());
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Created By Yufan Wu
+ * 2019/5/30
+ */
+package persistence;
+
+import core.Block;
+import core.BlockHead;
+import core.SHA256Hash;
+import core.StoredBlock;
+import exception.BlockPersistenceException;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StoredBlockCodecTest {
+    private static Block blockOf(long nTime) {
+        Block block = new Block(new BlockHead(SHA256Hash.create(new byte[]{1}), nTime, 0x1e00dfffL, 0xfedcba98L));
+        block.setHash(SHA256Hash.create(new byte[]{(byte) nTime}));
+        return block;
+    }
+
+    @Test
+    public void encodeDecodeTest() throws BlockPersistenceException {
+        BigInteger work = new BigInteger("fedcba9876543210123456789abcdef0", 16); // all 128 bits used
+        StoredBlock stored = new StoredBlock(blockOf(0xfffffff0L), work, 123456, SHA256Hash.create(new byte[]{2}));
+        ByteBuffer buf = ByteBuffer.allocate(StoredBlockCodec.SIZE);
+        StoredBlockCodec.encode(stored, buf);
+        assertEquals(StoredBlockCodec.SIZE, buf.position());
+
+        buf.flip();
+        StoredBlock decoded = StoredBlockCodec.decode(buf);
+        assertEquals(stored, decoded);
+        assertEquals(work, decoded.getChainWork());
+        assertEquals(stored.getBlock().getHash(), decoded.getBlock().getHash());
+        assertEquals(0xfffffff0L, decoded.getBlock().getnTime());
+
+        // the header is kept in its canonical encoding
+        byte[] header = new byte[BlockHead.BLOCK_HEAD_SIZE];
+        stored.getBlock().serialize(header, 0);
+        for (int i = 0; i < header.length; i++) {
+            assertEquals(header[i], buf.get(StoredBlockCodec.SIZE - BlockHead.BLOCK_HEAD_SIZE + i));
+        }
+    }
+
+    @Test
+    public void zeroHashTest() throws BlockPersistenceException {
+        StoredBlock stored = new StoredBlock(blockOf(1), BigInteger.ONE, 0);
+        ByteBuffer buf = ByteBuffer.allocate(StoredBlockCodec.SIZE);
+        StoredBlockCodec.encode(stored, buf);
+        buf.flip();
+        assertSame(SHA256Hash.ZERO_HASH, StoredBlockCodec.decode(buf).getNext());
+    }
+
+    @Test(expected = BlockPersistenceException.class)
+    public void unknownVersionTest() throws BlockPersistenceException {
+        StoredBlockCodec.decode(ByteBuffer.allocate(StoredBlockCodec.SIZE));
+    }
+
+    @Test
+    public void chainWorkTest() throws Exception {
+        BigInteger low = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE); // carry into the high word
+        StoredBlock prev = new StoredBlock(blockOf(1), low, 0);
+        Block block = blockOf(2);
+        StoredBlock next = prev.build(block);
+        assertEquals(low.add(block.getWork()), next.getChainWork());
+        assertTrue(next.moreWorkThan(prev));
+        assertFalse(prev.moreWorkThan(next));
+    }
+}